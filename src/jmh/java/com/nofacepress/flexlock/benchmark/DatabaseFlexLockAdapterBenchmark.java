@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.nofacepress.flexlock.FlexLockRegistry;
+import com.nofacepress.flexlock.adapter.DatabaseFlexLockAdapter;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Round trips through DatabaseFlexLockAdapter against an in-memory H2
+ * database, directly and through a FlexLockRegistry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseFlexLockAdapterBenchmark {
+
+  private static final String DB_DRIVER = "org.h2.Driver";
+  private static final String DB_URL = "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1;INIT=RUNSCRIPT FROM 'classpath:initTestData.sql'";
+  private static final String DB_TABLE_NAME = "TESTMUTEX";
+  private static final int MAX_TIME = 10000;
+
+  @State(Scope.Benchmark)
+  public static class Database {
+    DatabaseFlexLockAdapter<String> adapter;
+    FlexLockRegistry<String> registry;
+    final FlexLockHandle held = new FlexLockHandle();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      adapter = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, "", "", DB_TABLE_NAME);
+      registry = new FlexLockRegistry<String>(adapter);
+      adapter.ensureKeyExistsCreatingIfNessessary("held");
+      final long now = System.currentTimeMillis();
+      adapter.tryLock("held", held, now, Long.MAX_VALUE);
+      for (int i = 0; i < 1000; i++)
+        adapter.ensureKeyExistsCreatingIfNessessary("key-" + i);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Owner {
+    final FlexLockHandle handle = new FlexLockHandle();
+    final String key = "thread-" + handle.getUuid();
+
+    @Setup(Level.Trial)
+    public void setup(final Database database) throws Exception {
+      database.adapter.ensureKeyExistsCreatingIfNessessary(key);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void adapterTryLockUnlock(final Database database, final Owner owner) throws Exception {
+    final long now = System.currentTimeMillis();
+    database.adapter.tryLock(owner.key, owner.handle, now, now + MAX_TIME);
+    database.adapter.unlock(owner.key, owner.handle);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void adapterTryLockUnlock4Threads(final Database database, final Owner owner) throws Exception {
+    final long now = System.currentTimeMillis();
+    database.adapter.tryLock(owner.key, owner.handle, now, now + MAX_TIME);
+    database.adapter.unlock(owner.key, owner.handle);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean adapterTryLockFailure(final Database database, final Owner owner) throws Exception {
+    final long now = System.currentTimeMillis();
+    return database.adapter.tryLock("held", owner.handle, now, now + MAX_TIME);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void adapterEnsureKeyExists(final Database database) throws Exception {
+    database.adapter.ensureKeyExistsCreatingIfNessessary("key-" + ThreadLocalRandom.current().nextInt(1000));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void registryDistinctKeys(final Database database) throws Exception {
+    final String key = "key-" + ThreadLocalRandom.current().nextInt(1000);
+    database.registry.unlock(database.registry.lock(key, MAX_TIME));
+  }
+}
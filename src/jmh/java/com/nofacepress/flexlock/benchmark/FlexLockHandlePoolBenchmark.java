@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.nofacepress.flexlock.handle.FlexLockHandlePool;
+
+/**
+ * FlexLockHandlePool reserve/release, alone and with all cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FlexLockHandlePoolBenchmark {
+
+  private final FlexLockHandlePool<Object> pool = new FlexLockHandlePool<Object>();
+  private final Object data = new Object();
+
+  @Benchmark
+  @Threads(1)
+  public Object reserveRelease() {
+    return pool.release(pool.reserve(data));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object reserveReleaseMaxThreads() {
+    return pool.release(pool.reserve(data));
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.nofacepress.flexlock.FlexLockRegistry;
+import com.nofacepress.flexlock.exception.AlreadyLockedException;
+import com.nofacepress.flexlock.exception.FlexLockException;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * In-memory FlexLockRegistry hot path: uncontended, hot key, many distinct keys
+ * and failing tryLock.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlexLockRegistryBenchmark {
+
+  private static final int MAX_TIME = 10000;
+
+  @State(Scope.Benchmark)
+  public static class Registry {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    FlexLockHandle held;
+
+    @Setup(Level.Trial)
+    public void setup() throws FlexLockException {
+      held = registry.tryLock("held", Integer.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws FlexLockException {
+      registry.unlock(held);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Keys {
+    @Param({ "100000" })
+    int keyCount;
+    String[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      keys = new String[keyCount];
+      for (int i = 0; i < keyCount; i++)
+        keys[i] = "key-" + i;
+    }
+
+    String next() {
+      return keys[ThreadLocalRandom.current().nextInt(keyCount)];
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void uncontended(final Registry state) throws InterruptedException, FlexLockException {
+    state.registry.unlock(state.registry.lock("key", MAX_TIME));
+  }
+
+  @Benchmark
+  @Threads(2)
+  public void hotKey2Threads(final Registry state) throws InterruptedException, FlexLockException {
+    state.registry.unlock(state.registry.lock("key", MAX_TIME));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void hotKey4Threads(final Registry state) throws InterruptedException, FlexLockException {
+    state.registry.unlock(state.registry.lock("key", MAX_TIME));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void hotKeyMaxThreads(final Registry state) throws InterruptedException, FlexLockException {
+    state.registry.unlock(state.registry.lock("key", MAX_TIME));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void distinctKeys(final Registry state, final Keys keys) throws InterruptedException, FlexLockException {
+    state.registry.unlock(state.registry.lock(keys.next(), MAX_TIME));
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean tryLockFailure(final Registry state) throws FlexLockException {
+    try {
+      state.registry.unlock(state.registry.tryLock("held", MAX_TIME));
+      return true;
+    } catch (final AlreadyLockedException e) {
+      return false;
+    }
+  }
+}
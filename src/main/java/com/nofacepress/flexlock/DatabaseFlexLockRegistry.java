@@ -14,6 +14,7 @@
 package com.nofacepress.flexlock;
 
 import java.sql.SQLException;
+import javax.sql.DataSource;
 import com.nofacepress.flexlock.adapter.DatabaseFlexLockAdapter;
 
 /**
@@ -37,4 +38,14 @@ public class DatabaseFlexLockRegistry<KeyType> extends FlexLockRegistry<KeyType>
     super(new DatabaseFlexLockAdapter<KeyType>(dbDriver, dbUrl, dbUser, dbPassword, tableName, primaryKeyName,
         expiresColumnName, ownerColumnName));
   }
+
+  public DatabaseFlexLockRegistry(final DataSource dataSource, final String tableName) {
+    super(new DatabaseFlexLockAdapter<KeyType>(dataSource, tableName));
+  }
+
+  public DatabaseFlexLockRegistry(final DataSource dataSource, final String tableName, final String primaryKeyName,
+      final String expiresColumnName, final String ownerColumnName) {
+    super(new DatabaseFlexLockAdapter<KeyType>(dataSource, tableName, primaryKeyName, expiresColumnName,
+        ownerColumnName));
+  }
 }
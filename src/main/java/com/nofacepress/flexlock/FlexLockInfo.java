@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * The state of one key of a registry when it was inspected, see
+ * FlexLockRegistry.snapshot. Times are in milliseconds since the epoch.
+ *
+ * @param <KeyType> the key type of the registry.
+ */
+@Getter
+@RequiredArgsConstructor
+@ToString
+public class FlexLockInfo<KeyType> {
+  private final KeyType key;
+  /** owner token of the exclusive holder, null if not held exclusively */
+  private final String owner;
+  /** when the exclusive holder obtained the lock, 0 if not held exclusively */
+  private final long heldSince;
+  /** when the exclusive lock expires, 0 if not held exclusively */
+  private final long expireTime;
+  /** shared holders, including any that expired and were not yet cleared */
+  private final int sharedHolders;
+  /** permit holders, including any that expired and were not yet cleared */
+  private final int permitHolders;
+  /** requests queued for the key */
+  private final int waiters;
+
+  /**
+   * @return true if the key is held exclusively
+   */
+  public boolean isHeld() {
+    return heldSince != 0;
+  }
+
+  /**
+   * @param now the current time
+   * @return how long the exclusive holder has held the key, 0 if not held
+   */
+  public long getHeldForInMilliseconds(final long now) {
+    return heldSince != 0 ? now - heldSince : 0;
+  }
+}
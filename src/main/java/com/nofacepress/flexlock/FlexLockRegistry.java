@@ -13,38 +13,197 @@
  */
 package com.nofacepress.flexlock;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import com.nofacepress.flexlock.adapter.BatchFlexLockAdapter;
+import com.nofacepress.flexlock.adapter.ExpiryAwareFlexLockAdapter;
 import com.nofacepress.flexlock.adapter.FlexLockAdapter;
+import com.nofacepress.flexlock.adapter.RenewableFlexLockAdapter;
+import com.nofacepress.flexlock.adapter.SemaphoreFlexLockAdapter;
+import com.nofacepress.flexlock.adapter.SharedFlexLockAdapter;
+import com.nofacepress.flexlock.adapter.TryLockResult;
 import com.nofacepress.flexlock.exception.AlreadyLockedException;
 import com.nofacepress.flexlock.exception.FlexLockException;
 import com.nofacepress.flexlock.handle.FlexLockHandle;
 import com.nofacepress.flexlock.handle.FlexLockHandlePool;
+import com.nofacepress.flexlock.handle.OwnerTokenGenerator;
+import com.nofacepress.flexlock.metrics.FlexLockMetrics;
+import com.nofacepress.flexlock.retry.RetryPolicy;
 import lombok.Getter;
-import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 /**
  * Main interface for obtaining and managing FlexLock's.
+ *
+ * Each key has its own mutex guarded by a ReentrantLock, so no monitor is held
+ * while waiting and the registry can be used from virtual threads. The mutex
+ * lock is never held while calling the adapter; instead the mutex is marked
+ * busy so that adapter calls for a key are still made one at a time.
+ *
+ * A key is either locked exclusively by one holder or shared by any number of
+ * holders. Shared holders are counted in memory; the adapter is only asked for
+ * one shared claim per key, which later holders join while it lasts long
+ * enough for them.
+ *
+ * A key can also be a counting semaphore, whose permits are held and expire
+ * like locks; see FlexSemaphore. A key is used either for locks or for a
+ * semaphore, not both.
+ *
+ * In reentrant mode an owner that already holds a key exclusively may lock it
+ * again; the nested lock only counts a hold in memory.
  */
-@NoArgsConstructor
 public class FlexLockRegistry<KeyType> {
 
   public static long DEFAULT_POLLING_INTERVAL_IN_MILLISECONDS = 100;
+  public static long DEFAULT_IDLE_EVICTION_IN_MILLISECONDS = 60000;
+  public static int DEFAULT_ASYNC_THREADS = 2;
+
+  static class Mutex<KeyType> {
+    private static final AtomicLong CREATED = new AtomicLong();
 
-  private static class Mutex<KeyType> {
     final KeyType key;
+    // creation order, the last resort of the canonical order
+    final long sequence = CREATED.incrementAndGet();
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notBusy = lock.newCondition();
     long timeout = 0;
     FlexLockHandle handle = null;
-    int waiters = 0;
+    // written after handle and timeout so that snapshot can read them unlocked
+    volatile long heldSince = 0;
+    FlexLockHandle rowHandle = null;
+    long rowExpireTime = 0;
+    int localHandOffs = 0;
+    long retryDelay = 0;
+    long holderExpireTime = 0;
+    // deadline of the mutex's entry in the expiry wheel, 0 for none
+    long wheelDeadline = 0;
+    Object owner = null;
+    FlexLockHandle ownerHandle = null;
+    int holds = 0;
+    HashMap<FlexLockHandle, Long> readers = null;
+    HashMap<FlexLockHandle, Long> permitHolders = null;
+    int sharedClaims = 0;
+    long sharedExpireTime = 0;
+    ArrayDeque<Waiter> waiters = null;
+    boolean busy = false;
+    boolean leased = false;
+    volatile boolean keyExists = false;
+    int refs = 0;
+    long idleSince = 0;
+    boolean retired = false;
 
     Mutex(final KeyType key) {
       this.key = key;
     }
+
+    boolean hasWaiters() {
+      return waiters != null && !waiters.isEmpty();
+    }
+
+    boolean hasReaders() {
+      return readers != null && !readers.isEmpty();
+    }
+  }
+
+  /**
+   * A thread or future queued for a mutex. Waiters are served in arrival order;
+   * only the head of the queue competes for the lock. Threads park while they
+   * wait, futures have their next attempt scheduled on the async executor.
+   */
+  private static class Waiter {
+    final Thread thread;
+    final CompletableFuture<FlexLockHandle> future;
+    final int maxTimeInMilliseconds;
+    final long deadline;
+    final boolean shared;
+    final int permits;
+    FlexLockHandle granted = null;
+    ScheduledFuture<?> pending = null;
+    long started = 0;
+    int polls = 0;
+
+    Waiter(final int maxTimeInMilliseconds, final boolean shared, final int permits) {
+      this.thread = Thread.currentThread();
+      this.future = null;
+      this.maxTimeInMilliseconds = maxTimeInMilliseconds;
+      this.deadline = Long.MAX_VALUE;
+      this.shared = shared;
+      this.permits = permits;
+    }
+
+    Waiter(final int maxTimeInMilliseconds, final long deadline, final CompletableFuture<FlexLockHandle> future) {
+      this.thread = null;
+      this.future = future;
+      this.maxTimeInMilliseconds = maxTimeInMilliseconds;
+      this.deadline = deadline;
+      this.shared = false;
+      this.permits = 0;
+    }
   }
 
-  private final FlexLockHandlePool<Mutex<KeyType>> handles = new FlexLockHandlePool<Mutex<KeyType>>();
-  private final Map<KeyType, Mutex<KeyType>> locks = new HashMap<KeyType, Mutex<KeyType>>();
+  /**
+   * Order in which several keys are claimed: by class name, then natural order
+   * for comparable keys, otherwise hash code and string form. Every caller uses
+   * the same order, so callers locking overlapping keys cannot deadlock.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private static final Comparator<Object> CANONICAL_ORDER = (final Object a, final Object b) -> {
+    final int byClass = a.getClass().getName().compareTo(b.getClass().getName());
+    if (byClass != 0)
+      return byClass;
+    if (a instanceof Comparable)
+      return ((Comparable) a).compareTo(b);
+    final int byHash = Integer.compare(a.hashCode(), b.hashCode());
+    return byHash != 0 ? byHash : a.toString().compareTo(b.toString());
+  };
+
+  /**
+   * Canonical order of the mutexes of several keys. Distinct keys the key
+   * order cannot tell apart are ordered by when their mutexes were created,
+   * which does not change while the mutexes are in use.
+   */
+  private static final Comparator<Mutex<?>> MUTEX_ORDER = (final Mutex<?> a, final Mutex<?> b) -> {
+    final int byKey = CANONICAL_ORDER.compare(a.key, b.key);
+    return byKey != 0 ? byKey : Long.compare(a.sequence, b.sequence);
+  };
+
+  private final FlexLockHandlePool<Mutex<KeyType>> handles;
+  private final ConcurrentMap<KeyType, Mutex<KeyType>> locks = new ConcurrentHashMap<KeyType, Mutex<KeyType>>();
+  private final LongAdder reclaimedMutexes = new LongAdder();
+  private final LongAdder localHandOffs = new LongAdder();
+  private final AtomicLong lastIdleSweep = new AtomicLong(System.currentTimeMillis());
+  private final AtomicInteger leasedMutexes = new AtomicInteger();
+  private final AtomicBoolean leaseWatchdogRunning = new AtomicBoolean();
+  private final AtomicBoolean expiryTickerRunning = new AtomicBoolean();
+  private volatile TimerWheel<Mutex<KeyType>> expiryWheel = null;
+  private final ReentrantLock asyncExecutorLock = new ReentrantLock();
+  private volatile ScheduledExecutorService asyncExecutor = null;
 
   @Getter
   @Setter
@@ -54,189 +213,2642 @@ public class FlexLockRegistry<KeyType> {
   @Setter
   private long pollingIntervalInMilliseconds = DEFAULT_POLLING_INTERVAL_IN_MILLISECONDS;
 
+  /**
+   * How long the first request queued for a key held elsewhere waits between
+   * attempts. Null, the default, polls every pollingIntervalInMilliseconds; see
+   * DecorrelatedJitterRetryPolicy for a backoff that spreads nodes out.
+   */
+  @Getter
+  @Setter
+  private RetryPolicy retryPolicy = null;
+
+  /**
+   * When set and the adapter reports how long a refused lock is held, see
+   * ExpiryAwareFlexLockAdapter, the first request queued for the key sleeps
+   * until the holder's lock expires instead of polling. A release on another
+   * node is then only noticed at that time, so this suits leased locks and
+   * holders that usually run to their maximum time; a release on this node
+   * still wakes the request at once.
+   */
+  @Getter
+  @Setter
+  private boolean waitForHolderExpiry = false;
+
+  /**
+   * How long an unused mutex is kept in memory before it is reclaimed. Zero
+   * reclaims a mutex as soon as it is unused, a negative value never reclaims.
+   */
+  @Getter
+  @Setter
+  private long idleEvictionInMilliseconds = DEFAULT_IDLE_EVICTION_IN_MILLISECONDS;
+
+  /**
+   * When positive and the adapter is renewable, locks are taken in the adapter
+   * with a lease of this length that a watchdog keeps renewing until they are
+   * unlocked or reach their maximum time. A node that dies holding a lock then
+   * blocks others for at most one lease. Zero disables leases.
+   */
+  @Getter
+  @Setter
+  private long leaseTimeInMilliseconds = 0;
+
+  /**
+   * How many times in a row a lock held in the adapter may be passed straight
+   * to the next waiter in this registry, without releasing and claiming it
+   * again in the adapter. Other nodes get a chance at the lock once the limit
+   * is reached. A lock is only passed on while the adapter keeps it for as long
+   * as the next waiter asks for, which is always the case with leases. Zero
+   * disables local hand-offs.
+   */
+  @Getter
+  @Setter
+  private int localHandOffLimit = 0;
+
+  /**
+   * Whether lock and tryLock let the owner of an exclusive lock lock the same
+   * key again. The nested lock returns the same handle, keeps the original
+   * maximum time and is counted in memory without calling the adapter; the
+   * key is released when it has been unlocked as many times as it was locked.
+   * Locks of several keys at once and asynchronous locks are not reentrant.
+   */
+  @Getter
+  @Setter
+  private boolean reentrant = false;
+
+  /**
+   * Identifies the owner of a lock in reentrant mode, the current thread by
+   * default. A supplier returning a request or transaction context makes locks
+   * reentrant across the threads working for it. Owners are compared with
+   * equals.
+   */
+  @Getter
+  @Setter
+  private Supplier<?> reentrancyOwner = Thread::currentThread;
+
+  /**
+   * @return the tick of the expiry wheel in milliseconds, 0 if it is off
+   */
+  public long getExpiryTickInMilliseconds() {
+    final TimerWheel<Mutex<KeyType>> wheel = expiryWheel;
+    return wheel == null ? 0 : wheel.getTickInMilliseconds();
+  }
+
+  /**
+   * When positive, locks, shared locks and permits held in memory are expired
+   * by a timer wheel ticking at this interval, at most one tick late. The
+   * handles of expired holders go back to the pool, a late unlock with them
+   * being ignored, and waiters sleep until they are woken instead of timing
+   * their own wait. Zero, the default, leaves an expired lock in place until
+   * the key is next used.
+   * 
+   * @param tickInMilliseconds the tick of the expiry wheel, 0 to turn it off
+   */
+  public void setExpiryTickInMilliseconds(final long tickInMilliseconds) {
+    final long now = System.currentTimeMillis();
+    final TimerWheel<Mutex<KeyType>> wheel = tickInMilliseconds > 0
+        ? new TimerWheel<Mutex<KeyType>>(tickInMilliseconds, TimerWheel.DEFAULT_SLOTS, now)
+        : null;
+    expiryWheel = wheel;
+    for (final Mutex<KeyType> mutex : locks.values()) {
+      mutex.lock.lock();
+      try {
+        mutex.wheelDeadline = 0;
+        if (wheel != null)
+          scheduleExpiryWhileLocked(mutex, earliestExpiryWhileLocked(mutex, now));
+        else
+          // waiters may be asleep until the wheel fires
+          wakeHeadWhileLocked(mutex);
+      } finally {
+        mutex.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Receives the wait, hold, queue and adapter call times of the registry.
+   * FlexLockMetrics.NONE by default, in which case no time is measured at all;
+   * see FlexLockStatistics for metrics kept in memory.
+   */
+  @Getter
+  private FlexLockMetrics metrics = FlexLockMetrics.NONE;
+
+  /**
+   * @param metrics the metrics to report to, null for none
+   */
+  public void setMetrics(final FlexLockMetrics metrics) {
+    this.metrics = metrics != null ? metrics : FlexLockMetrics.NONE;
+  }
+
+  /**
+   * Constructor for a registry that only locks with-in the application.
+   */
+  public FlexLockRegistry() {
+    this(null);
+  }
+
   /**
    * Constructor
    * 
    * @param adapter the adapter to use for creating new FlexLock's.
    */
   public FlexLockRegistry(final FlexLockAdapter<KeyType> adapter) {
+    this(adapter, FlexLockHandle.getDefaultOwnerTokenGenerator());
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param adapter             the adapter to use for creating new FlexLock's.
+   * @param ownerTokenGenerator the generator for the owner tokens of handles.
+   */
+  public FlexLockRegistry(final FlexLockAdapter<KeyType> adapter, final OwnerTokenGenerator ownerTokenGenerator) {
     this.adapter = adapter;
+    this.handles = new FlexLockHandlePool<Mutex<KeyType>>(ownerTokenGenerator);
   }
 
   /**
    * Unlocks a FlexLock even if the caller is not the current owner of the lock.
+   * Semaphore permits held through this registry are released as well, and
+   * the freed permits are passed on to waiters.
    * 
    * @param key the key identifying the lock
    * @throws FlexLockException unexpected adapter exception
    */
   public void forceUnlock(final KeyType key) throws FlexLockException {
-    final Mutex<KeyType> mutex = getMutex(key);
-    if (mutex == null)
-      return;
-    synchronized (mutex) {
-      FlexLockException err = null;
-      if (mutex.handle == null)
-        return;
-      if (adapter != null) {
-        try {
-          adapter.forceUnlock(mutex.key);
-        } catch (final Exception e) {
-          err = new FlexLockException(e);
+    final Mutex<KeyType> mutex = acquireMutex(key);
+    try {
+      mutex.lock.lock();
+      try {
+        awaitNotBusyWhileLocked(mutex);
+        final boolean locked = mutex.handle != null || mutex.hasReaders();
+        final List<FlexLockHandle> permits = livePermitHoldersWhileLocked(mutex, System.currentTimeMillis()) == 0
+            ? new ArrayList<FlexLockHandle>() : new ArrayList<FlexLockHandle>(mutex.permitHolders.keySet());
+        if (!locked && permits.isEmpty())
+          return;
+        FlexLockException err = null;
+        if (adapter != null) {
+          final long started = startTimer();
+          beginAdapterCallWhileLocked(mutex);
+          try {
+            if (locked)
+              adapter.forceUnlock(mutex.key);
+            for (final FlexLockHandle permit : permits)
+              ((SemaphoreFlexLockAdapter<KeyType>) adapter).releasePermit(mutex.key, permit);
+          } catch (final Exception e) {
+            err = new FlexLockException(e);
+          } finally {
+            endAdapterCall(mutex);
+          }
+          recordAdapterCall(started, err != null);
         }
+        releaseHolderWhileLocked(mutex);
+        mutex.readers = null;
+        mutex.sharedClaims = 0;
+        mutex.permitHolders = null;
+        handOffWhileLocked(mutex, System.currentTimeMillis());
+        if (err != null)
+          throw err;
+      } finally {
+        mutex.lock.unlock();
       }
-      mutex.timeout = 0;
-      mutex.handle = null;
-      if (mutex.waiters > 0) {
-        mutex.notify();
-      }
-      if (err != null)
-        throw err;
+    } finally {
+      releaseMutex(mutex);
     }
   }
 
   /**
-   * Returns a mutex from the registry, creating one if needed.
+   * Returns a mutex from the registry, creating one if needed, and marks it as
+   * in use so that it cannot be reclaimed. Lookups of existing keys do not take
+   * any registry wide lock; the adapter is only consulted once per key. Every
+   * call must be paired with a call to releaseMutex.
    * 
    * @param key the key identifying the lock
    * @throws FlexLockException unexpected exception
    * @return a new or existing mutex
    */
-  private synchronized Mutex<KeyType> getMutex(final KeyType key) throws FlexLockException {
-    Mutex<KeyType> mutex = locks.get(key);
-    if (mutex == null) {
-      if (adapter != null) {
-        try {
-          adapter.ensureKeyExistsCreatingIfNessessary(key);
-        } catch (final Exception e) {
-          throw new FlexLockException(e);
-        }
+  private Mutex<KeyType> acquireMutex(final KeyType key) throws FlexLockException {
+    return acquireMutex(referenceMutex(key));
+  }
+
+  /**
+   * Finishes acquiring a mutex marked as in use, consulting the adapter if the
+   * key is new. The mutex is given back if that fails.
+   * 
+   * @param mutex the mutex, from referenceMutex or tryReferenceMutex
+   * @throws FlexLockException unexpected exception
+   * @return the mutex
+   */
+  Mutex<KeyType> acquireMutex(final Mutex<KeyType> mutex) throws FlexLockException {
+    if (!mutex.keyExists) {
+      try {
+        ensureKeyExists(mutex);
+      } catch (final FlexLockException e) {
+        releaseMutex(mutex);
+        throw e;
       }
-      mutex = new Mutex<KeyType>(key);
-      locks.put(key, mutex);
     }
     return mutex;
   }
 
   /**
-   * Locks a FlexLock. This will block until lock is obtained.
+   * Returns a mutex from the registry, creating one if needed, and marks it as
+   * in use without consulting the adapter.
    * 
-   * @param key                   the key identifying the lock
-   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
-   *                              applied if it does not get unlocked in time.
-   * @return A handle to the FlexLock
-   * @throws InterruptedException if thread is interrupted
-   * @throws FlexLockException    unexpected adapter exception
+   * @param key the key identifying the lock
+   * @return a new or existing mutex
    */
-  public FlexLockHandle lock(final KeyType key, final int maxTimeInMilliseconds)
-      throws InterruptedException, FlexLockException {
-    final Mutex<KeyType> mutex = getMutex(key);
+  Mutex<KeyType> referenceMutex(final KeyType key) {
+    Mutex<KeyType> mutex;
     for (;;) {
-      synchronized (mutex) {
-        try {
-          return lockWhileSynchronized(mutex, maxTimeInMilliseconds);
-        } catch (final AlreadyLockedException ignoreThisException) {
-        }
-
-        mutex.waiters++;
-        mutex
-            .wait(Math.max(Math.min(pollingIntervalInMilliseconds, mutex.timeout - System.currentTimeMillis() + 1), 1));
-        mutex.waiters--;
+      mutex = locks.get(key);
+      if (mutex == null) {
+        final Mutex<KeyType> created = new Mutex<KeyType>(key);
+        mutex = locks.putIfAbsent(key, created);
+        if (mutex == null)
+          mutex = created;
       }
+      if (tryReferenceMutex(mutex))
+        break;
     }
+    return mutex;
   }
 
   /**
-   * Obtain the lock with the assumption that the thread is already synchronized.
+   * Marks a mutex found outside the registry's map as in use, unless it has
+   * been reclaimed.
    * 
-   * @param mutex                 the mutex
-   * @param maxTimeInMilliseconds the maximum time to hold the lock
-   * @return the handle
-   * @throws FlexLockException      unexpected adapter exception
-   * @throws AlreadyLockedException if the FlexLock is already locked.
+   * @param mutex the mutex
+   * @return false if the mutex was reclaimed and must not be used
    */
-  private FlexLockHandle lockWhileSynchronized(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds)
-      throws FlexLockException {
+  boolean tryReferenceMutex(final Mutex<KeyType> mutex) {
+    mutex.lock.lock();
+    try {
+      if (mutex.retired)
+        return false;
+      mutex.refs++;
+      return true;
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
 
-    final long now = System.currentTimeMillis();
-    if (mutex.handle != null && mutex.timeout >= now) {
-      throw new AlreadyLockedException();
+  /**
+   * Returns the mutexes for several keys, marked as in use. Keys new to the
+   * registry are checked with a single adapter call when the adapter supports
+   * batches. Every call must be paired with a call to releaseMutexes.
+   * 
+   * @param keys the keys in canonical order
+   * @throws FlexLockException unexpected exception
+   * @return the mutexes, in the order of the keys
+   */
+  private List<Mutex<KeyType>> acquireMutexes(final List<KeyType> keys) throws FlexLockException {
+    final List<Mutex<KeyType>> mutexes = new ArrayList<Mutex<KeyType>>(keys.size());
+    final List<Mutex<KeyType>> unknown = new ArrayList<Mutex<KeyType>>();
+    for (final KeyType key : keys) {
+      final Mutex<KeyType> mutex = referenceMutex(key);
+      mutexes.add(mutex);
+      if (!mutex.keyExists)
+        unknown.add(mutex);
+    }
+    try {
+      if (unknown.size() > 1 && adapter instanceof BatchFlexLockAdapter) {
+        ensureKeysExist(unknown);
+      } else {
+        for (final Mutex<KeyType> mutex : unknown)
+          ensureKeyExists(mutex);
+      }
+    } catch (final FlexLockException e) {
+      releaseMutexes(mutexes);
+      throw e;
     }
+    return mutexes;
+  }
 
-    final long expireTime = now + maxTimeInMilliseconds;
-    final FlexLockHandle handle = handles.reserve(mutex);
+  private void releaseMutexes(final List<Mutex<KeyType>> mutexes) {
+    for (final Mutex<KeyType> mutex : mutexes)
+      releaseMutex(mutex);
+  }
 
-    if (adapter == null) {
-      mutex.timeout = expireTime;
-      mutex.handle = handle;
-      return handle;
+  /**
+   * Makes sure the adapter knows about the key of the mutex. Concurrent callers
+   * for the same key wait for the first one; other keys are not affected.
+   * 
+   * @param mutex the mutex
+   * @throws FlexLockException unexpected adapter exception
+   */
+  private void ensureKeyExists(final Mutex<KeyType> mutex) throws FlexLockException {
+    mutex.lock.lock();
+    try {
+      awaitNotBusyWhileLocked(mutex);
+      if (mutex.keyExists)
+        return;
+      if (adapter != null) {
+        FlexLockException err = null;
+        final long started = startTimer();
+        beginAdapterCallWhileLocked(mutex);
+        try {
+          adapter.ensureKeyExistsCreatingIfNessessary(mutex.key);
+        } catch (final Exception e) {
+          err = new FlexLockException(e);
+        } finally {
+          endAdapterCall(mutex);
+        }
+        recordAdapterCall(started, err != null);
+        if (err != null)
+          throw err;
+      }
+      mutex.keyExists = true;
+    } finally {
+      mutex.lock.unlock();
     }
+  }
 
-    FlexLockException err = null;
+  /**
+   * Makes sure the adapter knows about the keys of several mutexes with one
+   * batch call.
+   * 
+   * @param mutexes the mutexes in canonical order
+   * @throws FlexLockException unexpected adapter exception
+   */
+  private void ensureKeysExist(final List<Mutex<KeyType>> mutexes) throws FlexLockException {
+    final List<Mutex<KeyType>> missing = new ArrayList<Mutex<KeyType>>(mutexes.size());
+    final List<KeyType> keys = new ArrayList<KeyType>(mutexes.size());
+    lockMutexes(mutexes);
     try {
-      if (adapter.tryLock(mutex.key, handle, now, expireTime)) {
-        mutex.timeout = expireTime;
-        mutex.handle = handle;
-        return handle;
+      for (final Mutex<KeyType> mutex : mutexes) {
+        if (!mutex.keyExists) {
+          mutex.busy = true;
+          missing.add(mutex);
+          keys.add(mutex.key);
+        }
       }
-    } catch (final FlexLockException e) {
-      err = e;
+    } finally {
+      unlockMutexes(mutexes);
+    }
+    if (missing.isEmpty())
+      return;
+
+    final long started = startTimer();
+    boolean created = false;
+    try {
+      ((BatchFlexLockAdapter<KeyType>) adapter).ensureKeysExistCreatingIfNessessary(keys);
+      created = true;
     } catch (final Exception e) {
-      err = new FlexLockException(e);
+      throw new FlexLockException(e);
+    } finally {
+      recordAdapterCall(started, !created);
+      for (int i = missing.size() - 1; i >= 0; i--) {
+        final Mutex<KeyType> mutex = missing.get(i);
+        endAdapterCall(mutex);
+        mutex.keyExists = created;
+        mutex.lock.unlock();
+      }
     }
+  }
 
-    handles.release(handle);
-    throw err == null ? new AlreadyLockedException() : err;
+  /**
+   * Locks several mutexes in canonical order, waiting for each to stop being
+   * busy. A batch marks all of its mutexes busy at once and clears them in
+   * reverse order, so holding earlier mutexes while waiting on a later one
+   * cannot deadlock.
+   * 
+   * @param mutexes the mutexes in canonical order
+   */
+  private static void lockMutexes(final List<? extends Mutex<?>> mutexes) {
+    for (final Mutex<?> mutex : mutexes) {
+      mutex.lock.lock();
+      awaitNotBusyWhileLocked(mutex);
+    }
+  }
+
+  private static void unlockMutexes(final List<? extends Mutex<?>> mutexes) {
+    for (int i = mutexes.size() - 1; i >= 0; i--)
+      mutexes.get(i).lock.unlock();
   }
 
   /**
-   * Tries to obtain a lock without blocking.
+   * Waits until no adapter call is in progress for the mutex.
    * 
-   * @param key                   the key identifying the lock
-   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
-   *                              applied if it does not get unlocked in time.
+   * @param mutex the mutex, locked by the caller
+   */
+  private static void awaitNotBusyWhileLocked(final Mutex<?> mutex) {
+    while (mutex.busy)
+      mutex.notBusy.awaitUninterruptibly();
+  }
+
+  /**
+   * Marks the mutex busy and unlocks it so the adapter can be called without
+   * holding any lock. Must be followed by endAdapterCall.
+   * 
+   * @param mutex the mutex, locked by the caller
+   */
+  private static void beginAdapterCallWhileLocked(final Mutex<?> mutex) {
+    mutex.busy = true;
+    mutex.lock.unlock();
+  }
+
+  /**
+   * Locks the mutex again after an adapter call and wakes anyone waiting for it
+   * to stop being busy.
+   * 
+   * @param mutex the mutex
+   */
+  private static void endAdapterCall(final Mutex<?> mutex) {
+    mutex.lock.lock();
+    mutex.busy = false;
+    mutex.notBusy.signalAll();
+  }
+
+  /**
+   * @return the current time in nanoseconds, or 0 without metrics
+   */
+  long startTimer() {
+    return metrics != FlexLockMetrics.NONE ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Reports an adapter call to the metrics.
+   * 
+   * @param started the start of the call from startTimer
+   * @param failed  true if the call failed with an exception
+   */
+  private void recordAdapterCall(final long started, final boolean failed) {
+    if (started != 0)
+      metrics.adapterCalled(System.nanoTime() - started, failed);
+  }
+
+  /**
+   * Reports an obtained lock to the metrics.
+   * 
+   * @param handle  the handle of the lock
+   * @param started the start of the request from startTimer
+   * @param polls   the attempts made after first being refused
    * @return the handle
-   * @throws FlexLockException      unexpected adapter exception
-   * @throws AlreadyLockedException if the FlexLock is already locked.
    */
-  public FlexLockHandle tryLock(final KeyType key, final int maxTimeInMilliseconds)
-      throws AlreadyLockedException, FlexLockException {
-    final Mutex<KeyType> mutex = getMutex(key);
-    synchronized (mutex) {
-      return lockWhileSynchronized(mutex, maxTimeInMilliseconds);
-    }
+  private FlexLockHandle acquired(final FlexLockHandle handle, final long started, final int polls) {
+    if (started != 0)
+      metrics.acquired(System.nanoTime() - started, polls);
+    return handle;
   }
 
   /**
-   * Unlocks a lock. An non-existing lock or already expired lock is ignored.
+   * Reserves a handle for a mutex, noting when for the metrics.
    * 
-   * @param handle handle to lock.
-   * @throws FlexLockException unexpected adapter exception.
+   * @param mutex the mutex
+   * @return the handle
    */
-  public void unlock(final FlexLockHandle handle) throws FlexLockException {
-    if (handle == null)
-      return;
+  private FlexLockHandle reserveHandle(final Mutex<KeyType> mutex) {
+    final FlexLockHandle handle = handles.reserve(mutex);
+    if (metrics != FlexLockMetrics.NONE)
+      handles.stamp(handle, System.nanoTime());
+    return handle;
+  }
+
+  /**
+   * Gives back the handle of a held lock, reporting how long it was held.
+   * 
+   * @param handle the handle
+   * @return the mutex of the handle, null if it was not held
+   */
+  private Mutex<KeyType> releaseHandle(final FlexLockHandle handle) {
+    if (metrics == FlexLockMetrics.NONE)
+      return handles.release(handle);
+    final long stamp = handles.getStamp(handle);
     final Mutex<KeyType> mutex = handles.release(handle);
-    if (mutex == null)
-      return;
-    synchronized (mutex) {
-      FlexLockException err = null;
-      if (mutex.handle != handle)
-        return;
-      if (adapter != null) {
-        try {
-          adapter.unlock(mutex.key, mutex.handle);
-        } catch (final Exception e) {
-          err = new FlexLockException(e);
-        }
-      }
-      mutex.timeout = 0;
-      mutex.handle = null;
-      if (mutex.waiters > 0) {
-        mutex.notify();
-      }
-      if (err != null)
-        throw err;
+    if (mutex != null && stamp != 0)
+      metrics.released(System.nanoTime() - stamp);
+    return mutex;
+  }
+
+  /**
+   * Gives back a mutex obtained with acquireMutex.
+   * 
+   * @param mutex the mutex
+   */
+  private void releaseMutex(final Mutex<KeyType> mutex) {
+    final long now = System.currentTimeMillis();
+    mutex.lock.lock();
+    try {
+      mutex.refs--;
+      markIdleWhileLocked(mutex, now);
+    } finally {
+      mutex.lock.unlock();
     }
+    sweepIdleMutexesIfDue(now);
+  }
+
+  /**
+   * Records the time a mutex became unused, reclaiming it right away if idle
+   * eviction is immediate.
+   * 
+   * @param mutex the mutex
+   * @param now   the current time
+   */
+  private void markIdleWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (mutex.refs > 0)
+      return;
+    mutex.idleSince = now;
+    if (idleEvictionInMilliseconds == 0 && isIdle(mutex, now))
+      retireWhileLocked(mutex);
+  }
+
+  /**
+   * A mutex is idle when nobody is using it, waiting on it or holding a valid
+   * lock on it.
+   * 
+   * @param mutex the mutex
+   * @param now   the current time
+   * @return true if the mutex may be reclaimed
+   */
+  private static boolean isIdle(final Mutex<?> mutex, final long now) {
+    return mutex.refs == 0 && !mutex.busy && !mutex.hasWaiters()
+        && (mutex.handle == null || mutex.timeout < now) && latestTimeout(mutex.readers) < now
+        && latestTimeout(mutex.permitHolders) < now;
+  }
+
+  /**
+   * @param holders the shared holders or permit holders of a mutex, may be null
+   * @return the latest time a holder must be released by, 0 if there are none
+   */
+  private static long latestTimeout(final Map<FlexLockHandle, Long> holders) {
+    long latest = 0;
+    if (holders != null) {
+      for (final Long timeout : holders.values())
+        latest = Math.max(latest, timeout);
+    }
+    return latest;
+  }
+
+  /**
+   * @param holders the shared holders or permit holders of a mutex, may be null
+   * @param now     the current time
+   * @param until   the time to start from
+   * @return the earliest time a holder still valid must be released by, or
+   *         until if that is earlier
+   */
+  private static long earliestTimeout(final Map<FlexLockHandle, Long> holders, final long now, final long until) {
+    long earliest = until;
+    if (holders != null) {
+      for (final Long timeout : holders.values()) {
+        if (timeout >= now)
+          earliest = Math.min(earliest, timeout);
+      }
+    }
+    return earliest;
+  }
+
+  /**
+   * Drops permit holders that have reached their maximum time.
+   * 
+   * @param mutex the mutex, locked by the caller
+   * @param now   the current time
+   * @return the number of permits held
+   */
+  private int livePermitHoldersWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (mutex.permitHolders == null)
+      return 0;
+    expireHoldersWhileLocked(mutex, mutex.permitHolders, now);
+    return mutex.permitHolders.size();
+  }
+
+  /**
+   * Drops shared holders or permit holders that have reached their maximum
+   * time, giving their handles back to the pool.
+   * 
+   * @param mutex   the mutex, locked by the caller
+   * @param holders the holders of the mutex
+   * @param now     the current time
+   */
+  private void expireHoldersWhileLocked(final Mutex<KeyType> mutex, final Map<FlexLockHandle, Long> holders,
+      final long now) {
+    final Iterator<Map.Entry<FlexLockHandle, Long>> it = holders.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<FlexLockHandle, Long> holder = it.next();
+      if (holder.getValue() < now) {
+        final FlexLockHandle handle = holder.getKey();
+        it.remove();
+        expireHandleWhileLocked(mutex, handle);
+      }
+    }
+  }
+
+  /**
+   * Gives the handle of a holder that has reached its maximum time back to the
+   * pool, reporting how long it was held. The slot gets a new handle, so an
+   * unlock with the old one is ignored.
+   * 
+   * @param mutex  the mutex, locked by the caller
+   * @param handle the handle
+   */
+  private void expireHandleWhileLocked(final Mutex<KeyType> mutex, final FlexLockHandle handle) {
+    // only the holder of the mutex lock reserves handles for the mutex
+    if (handles.get(handle) != mutex)
+      return;
+    final long stamp = metrics == FlexLockMetrics.NONE ? 0 : handles.getStamp(handle);
+    if (handles.expire(handle) != null && stamp != 0)
+      metrics.released(System.nanoTime() - stamp);
+  }
+
+  /**
+   * Gives back the handle of an exclusive holder that has reached its maximum
+   * time, before the lock is taken over.
+   * 
+   * @param mutex the mutex, locked by the caller
+   * @param now   the current time
+   */
+  private void expireHolderWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (mutex.handle != null && mutex.timeout < now)
+      expireHandleWhileLocked(mutex, mutex.handle);
+  }
+
+  /**
+   * Drops shared holders that have reached their maximum time and tells
+   * whether any are left. Once the adapter's shared claim has expired as well
+   * there is nothing left to release there.
+   * 
+   * @param mutex the mutex, locked by the caller
+   * @param now   the current time
+   * @return true if the mutex has shared holders
+   */
+  private boolean hasLiveReadersWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (mutex.readers == null)
+      return false;
+    expireHoldersWhileLocked(mutex, mutex.readers, now);
+    if (!mutex.readers.isEmpty())
+      return true;
+    if (mutex.sharedExpireTime < now)
+      mutex.sharedClaims = 0;
+    return false;
+  }
+
+  /**
+   * Removes the mutex from the registry. Callers racing to acquire it will see
+   * the retired flag and create a fresh one.
+   * 
+   * @param mutex the mutex
+   */
+  private void retireWhileLocked(final Mutex<KeyType> mutex) {
+    mutex.retired = true;
+    setLeasedWhileLocked(mutex, false);
+    if (locks.remove(mutex.key, mutex))
+      reclaimedMutexes.increment();
+    retiredWhileLocked(mutex);
+  }
+
+  /**
+   * Called when a mutex is removed from the registry, for subclasses keeping
+   * mutexes of their own.
+   * 
+   * @param mutex the mutex, locked by the caller
+   */
+  void retiredWhileLocked(final Mutex<KeyType> mutex) {
+  }
+
+  /**
+   * Runs an idle sweep if one has not been done within the idle eviction
+   * interval. Only one caller does the sweep.
+   * 
+   * @param now the current time
+   */
+  private void sweepIdleMutexesIfDue(final long now) {
+    final long interval = idleEvictionInMilliseconds;
+    if (interval <= 0)
+      return;
+    final long last = lastIdleSweep.get();
+    if (now - last < interval || !lastIdleSweep.compareAndSet(last, now))
+      return;
+    evictIdleMutexes(interval, now);
+  }
+
+  /**
+   * Reclaims every mutex that has been idle for at least the idle eviction
+   * interval. This happens automatically as the registry is used, but can be
+   * called to free memory right away.
+   */
+  public void evictIdleMutexes() {
+    evictIdleMutexes(Math.max(idleEvictionInMilliseconds, 0), System.currentTimeMillis());
+  }
+
+  private void evictIdleMutexes(final long minIdleTime, final long now) {
+    for (final Mutex<KeyType> mutex : locks.values()) {
+      if (!mutex.lock.tryLock())
+        continue;
+      try {
+        if (mutex.retired || !isIdle(mutex, now))
+          continue;
+        final long idleSince = mutex.handle == null ? mutex.idleSince : Math.max(mutex.idleSince, mutex.timeout);
+        if (now - idleSince >= minIdleTime)
+          retireWhileLocked(mutex);
+      } finally {
+        mutex.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return the number of mutexes currently held in memory
+   */
+  public int getLiveMutexCount() {
+    return locks.size();
+  }
+
+  /**
+   * @return the number of mutexes reclaimed since the registry was created
+   */
+  public long getReclaimedMutexCount() {
+    return reclaimedMutexes.sum();
+  }
+
+  /**
+   * @return the number of locks passed straight to a local waiter while still
+   *         held in the adapter
+   */
+  public long getLocalHandOffCount() {
+    return localHandOffs.sum();
+  }
+
+  /**
+   * Describes every key that is held or has requests waiting. This never waits
+   * for a mutex, so it can be called while the registry is stalled; a key
+   * whose mutex is locked by another thread is read while it may be changing,
+   * so the result is a close approximation rather than one consistent picture.
+   * 
+   * @return the busy keys, in no particular order
+   */
+  public List<FlexLockInfo<KeyType>> snapshot() {
+    final long now = System.currentTimeMillis();
+    final List<FlexLockInfo<KeyType>> result = new ArrayList<FlexLockInfo<KeyType>>();
+    for (final Mutex<KeyType> mutex : locks.values()) {
+      final FlexLockInfo<KeyType> info = inspect(mutex, now);
+      if (info != null)
+        result.add(info);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the state of a mutex, under its lock if that is free. Otherwise the
+   * state is read without the lock: the holder and waiter collections may be
+   * changed while their sizes are read, so the sizes may be stale, but reading
+   * them does not fail.
+   * 
+   * @param mutex the mutex
+   * @param now   the current time
+   * @return the state, null if the key is neither held nor waited for
+   */
+  private static <KeyType> FlexLockInfo<KeyType> inspect(final Mutex<KeyType> mutex, final long now) {
+    if (!mutex.lock.tryLock())
+      return inspectUnlocked(mutex, now);
+    try {
+      return inspectUnlocked(mutex, now);
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Reads the state of a mutex without locking it.
+   * 
+   * @param mutex the mutex
+   * @param now   the current time
+   * @return the state, null if the key is neither held nor waited for
+   */
+  private static <KeyType> FlexLockInfo<KeyType> inspectUnlocked(final Mutex<KeyType> mutex, final long now) {
+    final long heldSince = mutex.heldSince;
+    final FlexLockHandle handle = mutex.handle;
+    final long timeout = mutex.timeout;
+    final boolean held = heldSince != 0 && handle != null && timeout >= now;
+    final int sharedHolders = sizeOf(mutex.readers);
+    final int permitHolders = sizeOf(mutex.permitHolders);
+    final ArrayDeque<Waiter> waiters = mutex.waiters;
+    final int waiting = waiters == null ? 0 : waiters.size();
+    if (!held && sharedHolders == 0 && permitHolders == 0 && waiting == 0)
+      return null;
+    return new FlexLockInfo<KeyType>(mutex.key, held ? handle.getUuid() : null, held ? heldSince : 0,
+        held ? timeout : 0, sharedHolders, permitHolders, waiting);
+  }
+
+  private static int sizeOf(final Map<?, ?> holders) {
+    return holders == null ? 0 : holders.size();
+  }
+
+  /**
+   * Locks a FlexLock. This will block until lock is obtained. Threads waiting
+   * for the same key are served in the order they arrived.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return A handle to the FlexLock
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public FlexLockHandle lock(final KeyType key, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    return lock(key, maxTimeInMilliseconds, false, 0);
+  }
+
+  /**
+   * Locks a FlexLock exclusively, the same as lock.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return A handle to the FlexLock
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public FlexLockHandle lockExclusive(final KeyType key, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    return lock(key, maxTimeInMilliseconds, false, 0);
+  }
+
+  /**
+   * Locks a FlexLock shared with other shared holders, blocking while it is
+   * locked exclusively. Once an exclusive lock is waiting, later shared
+   * requests queue behind it so that it is not starved. Needs an adapter that
+   * supports shared locks, if any. Shared locks are not leased.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return A handle to the FlexLock, released with unlock
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public FlexLockHandle lockShared(final KeyType key, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    return lock(key, maxTimeInMilliseconds, true, 0);
+  }
+
+  /**
+   * Acquires one of the permits of a counting semaphore, blocking until one is
+   * free. Usually called through FlexSemaphore.
+   * 
+   * @param key                   the key identifying the semaphore
+   * @param permits               the number of permits of the semaphore
+   * @param maxTimeInMilliseconds the maximum time to hold the permit. This is
+   *                              only applied if it is not released in time.
+   * @return A handle to the permit, released with unlock
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public FlexLockHandle acquirePermit(final KeyType key, final int permits, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    return lock(key, maxTimeInMilliseconds, false, checkPermits(permits));
+  }
+
+  /**
+   * Tries to acquire one of the permits of a counting semaphore without
+   * blocking. Usually called through FlexSemaphore.
+   * 
+   * @param key                   the key identifying the semaphore
+   * @param permits               the number of permits of the semaphore
+   * @param maxTimeInMilliseconds the maximum time to hold the permit. This is
+   *                              only applied if it is not released in time.
+   * @return A handle to the permit, released with unlock
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if every permit is taken or others are
+   *                                waiting.
+   */
+  public FlexLockHandle tryAcquirePermit(final KeyType key, final int permits, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    return tryLock(key, maxTimeInMilliseconds, false, checkPermits(permits));
+  }
+
+  private static int checkPermits(final int permits) {
+    if (permits < 1)
+      throw new IllegalArgumentException("A semaphore needs at least one permit");
+    return permits;
+  }
+
+  private FlexLockHandle lock(final KeyType key, final int maxTimeInMilliseconds, final boolean shared,
+      final int permits) throws InterruptedException, FlexLockException {
+    final long started = startTimer();
+    return lock(acquireMutex(key), maxTimeInMilliseconds, shared, permits, started);
+  }
+
+  /**
+   * Locks the key of an acquired mutex, giving the mutex back when done.
+   * 
+   * @param mutex                 the mutex, from acquireMutex
+   * @param maxTimeInMilliseconds the maximum time to hold the lock
+   * @param shared                true for a shared lock
+   * @param permits               the number of permits of a semaphore, 0 for a
+   *                              lock
+   * @param started               the start of the request from startTimer
+   * @return the handle
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  FlexLockHandle lock(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds, final boolean shared,
+      final int permits, final long started) throws InterruptedException, FlexLockException {
+    final Object owner = reentrant && !shared && permits == 0 ? reentrancyOwner.get() : null;
+    return lock(mutex, maxTimeInMilliseconds, shared, permits, started, owner);
+  }
+
+  /**
+   * Locks the key of an acquired mutex for an owner, giving the mutex back
+   * when done.
+   * 
+   * @param mutex                 the mutex, from acquireMutex
+   * @param maxTimeInMilliseconds the maximum time to hold the lock
+   * @param shared                true for a shared lock
+   * @param permits               the number of permits of a semaphore, 0 for a
+   *                              lock
+   * @param started               the start of the request from startTimer
+   * @param owner                 the reentrant owner, null if the lock is not
+   *                              reentrant
+   * @return the handle
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  private FlexLockHandle lock(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds, final boolean shared,
+      final int permits, final long started, final Object owner) throws InterruptedException, FlexLockException {
+    try {
+      final Waiter waiter;
+      mutex.lock.lock();
+      try {
+        if (owner != null && reenterWhileLocked(mutex, owner))
+          return mutex.handle;
+        if (!mutex.hasWaiters()) {
+          try {
+            return acquired(ownWhileLocked(mutex,
+                tryAcquireWhileLocked(mutex, maxTimeInMilliseconds, shared, permits), owner), started, 0);
+          } catch (final AlreadyLockedException ignoreThisException) {
+          }
+        }
+        waiter = new Waiter(maxTimeInMilliseconds, shared, permits);
+        waiter.started = started;
+        enqueueWhileLocked(mutex, waiter);
+      } finally {
+        mutex.lock.unlock();
+      }
+      final FlexLockHandle handle = acquired(await(mutex, waiter), started, waiter.polls);
+      if (owner == null)
+        return handle;
+      mutex.lock.lock();
+      try {
+        return ownWhileLocked(mutex, handle, owner);
+      } finally {
+        mutex.lock.unlock();
+      }
+    } finally {
+      releaseMutex(mutex);
+    }
+  }
+
+  /**
+   * Counts another hold if the owner already holds the lock.
+   * 
+   * @param mutex the mutex, locked by the caller
+   * @param owner the current owner
+   * @return true if the owner holds the lock, which is then held once more
+   */
+  private static boolean reenterWhileLocked(final Mutex<?> mutex, final Object owner) {
+    awaitNotBusyWhileLocked(mutex);
+    if (mutex.handle == null || mutex.ownerHandle != mutex.handle || mutex.timeout < System.currentTimeMillis()
+        || !owner.equals(mutex.owner))
+      return false;
+    mutex.holds++;
+    return true;
+  }
+
+  /**
+   * Records the owner of a newly obtained lock in reentrant mode.
+   * 
+   * @param mutex  the mutex, locked by the caller
+   * @param handle the handle of the lock
+   * @param owner  the owner, null if the lock is not reentrant
+   * @return the handle
+   */
+  private static FlexLockHandle ownWhileLocked(final Mutex<?> mutex, final FlexLockHandle handle,
+      final Object owner) {
+    if (owner != null && mutex.handle == handle) {
+      mutex.owner = owner;
+      mutex.ownerHandle = handle;
+      mutex.holds = 1;
+    }
+    return handle;
+  }
+
+  private void enqueueWhileLocked(final Mutex<?> mutex, final Waiter waiter) {
+    if (mutex.waiters == null)
+      mutex.waiters = new ArrayDeque<Waiter>();
+    mutex.waiters.add(waiter);
+    metrics.queued(mutex.waiters.size());
+  }
+
+  /**
+   * Parks a queued thread until the lock is handed to it or it reaches the head
+   * of the queue and obtains the lock itself. The head only wakes on its own for
+   * an expiring local lock or to poll a lock held elsewhere.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the queued waiter
+   * @return the handle
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  private FlexLockHandle await(final Mutex<KeyType> mutex, final Waiter waiter)
+      throws InterruptedException, FlexLockException {
+    boolean acquired = false;
+    try {
+      for (;;) {
+        long parkTime = 0;
+        mutex.lock.lock();
+        try {
+          if (waiter.granted != null) {
+            acquired = true;
+            return waiter.granted;
+          }
+          if (mutex.waiters.peek() == waiter) {
+            waiter.polls++;
+            try {
+              final FlexLockHandle handle = tryAcquireWhileLocked(mutex, waiter.maxTimeInMilliseconds,
+                  waiter.shared, waiter.permits);
+              mutex.waiters.remove(waiter);
+              wakeHeadWhileLocked(mutex);
+              acquired = true;
+              return handle;
+            } catch (final AlreadyLockedException ignoreThisException) {
+            }
+            parkTime = nextAttemptDelayWhileLocked(mutex);
+          }
+        } finally {
+          mutex.lock.unlock();
+        }
+        if (parkTime > 0)
+          LockSupport.parkNanos(mutex, parkTime * 1000000L);
+        else
+          LockSupport.park(mutex);
+        if (Thread.interrupted())
+          throw new InterruptedException();
+      }
+    } finally {
+      if (!acquired) {
+        mutex.lock.lock();
+        try {
+          abandonWhileLocked(mutex, waiter);
+        } finally {
+          mutex.lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * How long the head of the queue should wait before trying again: until the
+   * local lock or the first local shared holder expires, or if it is held
+   * elsewhere until that lock expires when known, otherwise as the retry
+   * policy says. With the expiry wheel on, a local expiry wakes the head, so
+   * it does not have to time its wait.
+   * 
+   * @param mutex the mutex
+   * @return the delay in milliseconds, 0 to wait until woken
+   */
+  private long nextAttemptDelayWhileLocked(final Mutex<KeyType> mutex) {
+    final long now = System.currentTimeMillis();
+    final long until = earliestExpiryWhileLocked(mutex, now);
+    if (until != Long.MAX_VALUE)
+      return expiryWheel != null ? 0 : until - now + 1;
+    if (mutex.holderExpireTime > now)
+      return mutex.holderExpireTime - now;
+    final RetryPolicy policy = retryPolicy;
+    if (policy == null)
+      return Math.max(pollingIntervalInMilliseconds, 1);
+    mutex.retryDelay = Math.max(policy.nextDelay(mutex.retryDelay), 1);
+    return mutex.retryDelay;
+  }
+
+  /**
+   * @param mutex the mutex, locked by the caller
+   * @param now   the current time
+   * @return the earliest time a local lock, shared lock or permit still valid
+   *         must be released by, Long.MAX_VALUE if there is none
+   */
+  private static long earliestExpiryWhileLocked(final Mutex<?> mutex, final long now) {
+    final long until = mutex.handle != null && mutex.timeout >= now ? mutex.timeout : Long.MAX_VALUE;
+    return earliestTimeout(mutex.permitHolders, now, earliestTimeout(mutex.readers, now, until));
+  }
+
+  /**
+   * @param retryDelay the retry delay of a key the adapter just granted
+   * @return the retry delay to keep for the key
+   */
+  private long retryDelayAfterAcquired(final long retryDelay) {
+    final RetryPolicy policy = retryPolicy;
+    return policy == null || retryDelay == 0 ? 0 : Math.max(policy.afterAcquired(retryDelay), 0);
+  }
+
+  /**
+   * Takes a waiter that gave up out of the queue, giving back the lock if it
+   * had already been granted to it.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   */
+  private void abandonWhileLocked(final Mutex<KeyType> mutex, final Waiter waiter) {
+    if (waiter.pending != null) {
+      waiter.pending.cancel(false);
+      waiter.pending = null;
+    }
+    if (waiter.granted != null) {
+      final FlexLockHandle granted = waiter.granted;
+      if (handles.release(granted) != null)
+        unlockWhileLocked(mutex, granted, System.currentTimeMillis());
+    } else if (mutex.waiters != null) {
+      final boolean wasHead = mutex.waiters.peek() == waiter;
+      mutex.waiters.remove(waiter);
+      if (wasHead)
+        wakeHeadWhileLocked(mutex);
+    }
+  }
+
+  /**
+   * Locks a FlexLock without blocking the caller. The future completes with the
+   * handle once the lock is obtained; until then the request waits in the same
+   * queue as blocked threads but without occupying a thread. Cancelling the
+   * future gives up the wait.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the future handle to the FlexLock
+   */
+  public CompletableFuture<FlexLockHandle> lockAsync(final KeyType key, final int maxTimeInMilliseconds) {
+    return lockAsync(key, maxTimeInMilliseconds, -1);
+  }
+
+  /**
+   * Locks a FlexLock without blocking the caller, giving up after a maximum
+   * wait. See {@link #lockAsync(Object, int)}.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @param maxWaitInMilliseconds the maximum time to wait for the lock, after
+   *                              which the future fails with a
+   *                              TimeoutException. Negative waits forever.
+   * @return the future handle to the FlexLock
+   */
+  public CompletableFuture<FlexLockHandle> lockAsync(final KeyType key, final int maxTimeInMilliseconds,
+      final long maxWaitInMilliseconds) {
+    final long deadline = maxWaitInMilliseconds < 0 ? Long.MAX_VALUE
+        : System.currentTimeMillis() + maxWaitInMilliseconds;
+    final Waiter waiter = new Waiter(maxTimeInMilliseconds, deadline, new CompletableFuture<FlexLockHandle>());
+    waiter.started = startTimer();
+    runAsync(() -> enqueueAsync(key, waiter));
+    return waiter.future;
+  }
+
+  /**
+   * Tries to obtain a lock without blocking the caller. The future fails with
+   * AlreadyLockedException if the FlexLock is already locked.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the future handle to the FlexLock
+   */
+  public CompletableFuture<FlexLockHandle> tryLockAsync(final KeyType key, final int maxTimeInMilliseconds) {
+    final CompletableFuture<FlexLockHandle> future = new CompletableFuture<FlexLockHandle>();
+    runAsync(() -> {
+      try {
+        final FlexLockHandle handle = tryLock(key, maxTimeInMilliseconds);
+        if (!future.complete(handle))
+          unlock(handle);
+      } catch (final Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Queues an asynchronous waiter, or completes it right away if the lock is
+   * free.
+   * 
+   * @param key    the key identifying the lock
+   * @param waiter the waiter
+   */
+  private void enqueueAsync(final KeyType key, final Waiter waiter) {
+    if (waiter.future.isDone())
+      return;
+    final Mutex<KeyType> mutex;
+    try {
+      mutex = acquireMutex(key);
+    } catch (final Throwable e) {
+      waiter.future.completeExceptionally(e);
+      return;
+    }
+    waiter.future.whenComplete((handle, error) -> finishAsync(mutex, waiter, error));
+    if (waiter.deadline != Long.MAX_VALUE) {
+      final ScheduledFuture<?> timer = getAsyncExecutor().schedule(() -> timeoutAsync(mutex, waiter),
+          Math.max(waiter.deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+      waiter.future.whenComplete((handle, error) -> timer.cancel(false));
+    }
+    mutex.lock.lock();
+    try {
+      if (waiter.future.isDone())
+        return;
+      if (!mutex.hasWaiters()) {
+        try {
+          grantAsyncWhileLocked(mutex, waiter, tryAcquireWhileLocked(mutex, waiter.maxTimeInMilliseconds));
+          return;
+        } catch (final AlreadyLockedException ignoreThisException) {
+        } catch (final Throwable e) {
+          failAsyncWhileLocked(mutex, waiter, e);
+          return;
+        }
+        if (waiter.future.isDone())
+          return;
+      }
+      enqueueWhileLocked(mutex, waiter);
+      if (mutex.waiters.peek() == waiter)
+        scheduleNextAttemptWhileLocked(mutex, waiter);
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Lets an asynchronous waiter at the head of the queue try for the lock.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   */
+  private void attemptAsync(final Mutex<KeyType> mutex, final Waiter waiter) {
+    mutex.lock.lock();
+    try {
+      waiter.pending = null;
+      if (waiter.future.isDone() || waiter.granted != null || mutex.waiters.peek() != waiter)
+        return;
+      waiter.polls++;
+      try {
+        final FlexLockHandle handle = tryAcquireWhileLocked(mutex, waiter.maxTimeInMilliseconds);
+        mutex.waiters.remove(waiter);
+        wakeHeadWhileLocked(mutex);
+        grantAsyncWhileLocked(mutex, waiter, handle);
+        return;
+      } catch (final AlreadyLockedException ignoreThisException) {
+      } catch (final Throwable e) {
+        failAsyncWhileLocked(mutex, waiter, e);
+        return;
+      }
+      if (waiter.pending == null && !waiter.future.isDone() && mutex.waiters.peek() == waiter)
+        scheduleNextAttemptWhileLocked(mutex, waiter);
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Hands a lock obtained for an asynchronous waiter to its future. If the
+   * future was cancelled or timed out while the adapter was being called, the
+   * lock is given back instead.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   * @param handle the handle of the obtained lock
+   */
+  private void grantAsyncWhileLocked(final Mutex<KeyType> mutex, final Waiter waiter, final FlexLockHandle handle) {
+    if (waiter.future.isDone()) {
+      if (handles.release(handle) != null)
+        unlockWhileLocked(mutex, handle, System.currentTimeMillis());
+      return;
+    }
+    waiter.granted = handle;
+    completeAsync(waiter);
+  }
+
+  /**
+   * Schedules the next attempt of an asynchronous waiter at the head of the
+   * queue, unless it is to wait until woken.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   */
+  private void scheduleNextAttemptWhileLocked(final Mutex<KeyType> mutex, final Waiter waiter) {
+    final long delay = nextAttemptDelayWhileLocked(mutex);
+    if (delay > 0)
+      scheduleAttemptWhileLocked(mutex, waiter, delay);
+  }
+
+  /**
+   * Schedules the next attempt of an asynchronous waiter, replacing any attempt
+   * already scheduled.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   * @param delay  the delay in milliseconds
+   */
+  private void scheduleAttemptWhileLocked(final Mutex<KeyType> mutex, final Waiter waiter, final long delay) {
+    if (waiter.pending != null)
+      waiter.pending.cancel(false);
+    waiter.pending = getAsyncExecutor().schedule(() -> attemptAsync(mutex, waiter), delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Completes the future of a waiter that was granted the lock. This is done on
+   * the async executor so that callbacks never run while holding the mutex.
+   * 
+   * @param waiter the waiter
+   */
+  private void completeAsync(final Waiter waiter) {
+    final FlexLockHandle granted = acquired(waiter.granted, waiter.started, waiter.polls);
+    getAsyncExecutor().execute(() -> waiter.future.complete(granted));
+  }
+
+  /**
+   * Fails the future of a waiter, taking it out of the queue first so that the
+   * queue is consistent by the time anyone sees the failure.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   * @param err    the failure
+   */
+  private void failAsyncWhileLocked(final Mutex<KeyType> mutex, final Waiter waiter, final Throwable err) {
+    abandonWhileLocked(mutex, waiter);
+    getAsyncExecutor().execute(() -> waiter.future.completeExceptionally(err));
+  }
+
+  /**
+   * Fails an asynchronous waiter that reached its deadline, unless it was
+   * granted the lock first.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   */
+  private void timeoutAsync(final Mutex<KeyType> mutex, final Waiter waiter) {
+    mutex.lock.lock();
+    try {
+      if (waiter.granted != null || waiter.future.isDone())
+        return;
+      abandonWhileLocked(mutex, waiter);
+    } finally {
+      mutex.lock.unlock();
+    }
+    waiter.future.completeExceptionally(new TimeoutException());
+  }
+
+  /**
+   * Runs once the future of an asynchronous waiter completes. A failed,
+   * cancelled or timed out waiter leaves the queue and gives back any lock that
+   * was granted to it in the meantime.
+   * 
+   * @param mutex  the mutex
+   * @param waiter the waiter
+   * @param error  the failure, or null on success
+   */
+  private void finishAsync(final Mutex<KeyType> mutex, final Waiter waiter, final Throwable error) {
+    if (error != null) {
+      mutex.lock.lock();
+      try {
+        abandonWhileLocked(mutex, waiter);
+      } finally {
+        mutex.lock.unlock();
+      }
+    }
+    releaseMutex(mutex);
+  }
+
+  /**
+   * Runs a task for the async API. Without an adapter nothing blocks, so the
+   * task runs on the caller's thread.
+   * 
+   * @param task the task
+   */
+  private void runAsync(final Runnable task) {
+    if (adapter == null)
+      task.run();
+    else
+      getAsyncExecutor().execute(task);
+  }
+
+  /**
+   * @return the executor used by the async API, creating a default one with
+   *         DEFAULT_ASYNC_THREADS daemon threads if none was set
+   */
+  public ScheduledExecutorService getAsyncExecutor() {
+    ScheduledExecutorService executor = asyncExecutor;
+    if (executor == null) {
+      asyncExecutorLock.lock();
+      try {
+        executor = asyncExecutor;
+        if (executor == null) {
+          final AtomicInteger count = new AtomicInteger();
+          final ThreadFactory factory = (final Runnable runnable) -> {
+            final Thread thread = new Thread(runnable, "flexlock-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          };
+          final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(DEFAULT_ASYNC_THREADS, factory);
+          pool.setRemoveOnCancelPolicy(true);
+          executor = pool;
+          asyncExecutor = executor;
+        }
+      } finally {
+        asyncExecutorLock.unlock();
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Sets the executor used by the async API to schedule attempts, deadlines and
+   * completions.
+   * 
+   * @param asyncExecutor the executor
+   */
+  public void setAsyncExecutor(final ScheduledExecutorService asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+
+  /**
+   * Passes a released lock on to the next waiter. Without an adapter the lock
+   * is handed over directly so no other thread can barge in, to every shared
+   * waiter at the head of the queue at once, and to as many permit waiters as
+   * there are free permits; otherwise the head is woken to claim it through the
+   * adapter.
+   * 
+   * @param mutex the mutex
+   * @param now   the current time
+   */
+  private void handOffWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (!mutex.hasWaiters())
+      return;
+    if (adapter == null) {
+      if (mutex.waiters.peek().permits > 0) {
+        while (mutex.hasWaiters() && mutex.waiters.peek().permits > 0
+            && livePermitHoldersWhileLocked(mutex, now) < mutex.waiters.peek().permits)
+          grantPermitWhileLocked(mutex, mutex.waiters.poll(), now);
+      } else if (mutex.waiters.peek().shared) {
+        while (mutex.hasWaiters() && mutex.waiters.peek().shared)
+          grantSharedWhileLocked(mutex, mutex.waiters.poll(), now);
+      } else if (!hasLiveReadersWhileLocked(mutex, now)) {
+        grantWhileLocked(mutex, mutex.waiters.poll(), now);
+      }
+    }
+    wakeHeadWhileLocked(mutex);
+  }
+
+  /**
+   * Passes a lock still held in the adapter straight to the next local waiter,
+   * keeping the adapter's claim, while the hand-off limit allows it and the
+   * claim lasts long enough for the waiter.
+   * 
+   * @param mutex the mutex, locked and not busy
+   * @param now   the current time
+   * @return true if the lock was handed on, false if it must be released
+   */
+  private boolean handOffLocallyWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (adapter == null || mutex.rowHandle == null || !mutex.hasWaiters()
+        || mutex.localHandOffs >= localHandOffLimit)
+      return false;
+    final Waiter next = mutex.waiters.peek();
+    if (next.shared || next.permits > 0)
+      return false;
+    final long timeout = now + next.maxTimeInMilliseconds;
+    // a lease only has to last until the watchdog extends it again
+    final long needed = mutex.leased ? Math.min(timeout, now + leaseTimeInMilliseconds / 3 + 1) : timeout;
+    if (mutex.rowExpireTime < needed)
+      return false;
+    mutex.waiters.poll();
+    mutex.localHandOffs++;
+    localHandOffs.increment();
+    grantWhileLocked(mutex, next, now);
+    wakeHeadWhileLocked(mutex);
+    return true;
+  }
+
+  /**
+   * Gives the lock to a waiter taken off the queue and wakes it.
+   * 
+   * @param mutex the mutex, locked and not busy
+   * @param next  the waiter
+   * @param now   the current time
+   */
+  private void grantWhileLocked(final Mutex<KeyType> mutex, final Waiter next, final long now) {
+    expireHolderWhileLocked(mutex, now);
+    next.granted = reserveHandle(mutex);
+    holdWhileLocked(mutex, next.granted, now + next.maxTimeInMilliseconds, now);
+    if (next.thread != null) {
+      LockSupport.unpark(next.thread);
+    } else {
+      if (next.pending != null)
+        next.pending.cancel(false);
+      completeAsync(next);
+    }
+  }
+
+  /**
+   * Adds a waiter taken off the queue to the shared holders and wakes it.
+   * 
+   * @param mutex the mutex, locked and not busy
+   * @param next  the waiter
+   * @param now   the current time
+   */
+  private void grantSharedWhileLocked(final Mutex<KeyType> mutex, final Waiter next, final long now) {
+    next.granted = reserveHandle(mutex);
+    mutex.readers = addHolder(mutex.readers, next.granted, now + next.maxTimeInMilliseconds);
+    scheduleExpiryWhileLocked(mutex, now + next.maxTimeInMilliseconds);
+    LockSupport.unpark(next.thread);
+  }
+
+  /**
+   * Gives a free permit to a waiter taken off the queue and wakes it.
+   * 
+   * @param mutex the mutex, locked and not busy
+   * @param next  the waiter
+   * @param now   the current time
+   */
+  private void grantPermitWhileLocked(final Mutex<KeyType> mutex, final Waiter next, final long now) {
+    next.granted = reserveHandle(mutex);
+    mutex.permitHolders = addHolder(mutex.permitHolders, next.granted, now + next.maxTimeInMilliseconds);
+    scheduleExpiryWhileLocked(mutex, now + next.maxTimeInMilliseconds);
+    LockSupport.unpark(next.thread);
+  }
+
+  /**
+   * @param holders the shared holders or permit holders of a mutex, may be null
+   * @param handle  the handle of the new holder
+   * @param timeout the time the new holder must be released by
+   * @return the holders, created if needed
+   */
+  private static HashMap<FlexLockHandle, Long> addHolder(final HashMap<FlexLockHandle, Long> holders,
+      final FlexLockHandle handle, final long timeout) {
+    final HashMap<FlexLockHandle, Long> result = holders == null ? new HashMap<FlexLockHandle, Long>() : holders;
+    result.put(handle, timeout);
+    return result;
+  }
+
+  /**
+   * Wakes the waiter at the head of the queue so it can re-evaluate the lock.
+   * 
+   * @param mutex the mutex
+   */
+  private void wakeHeadWhileLocked(final Mutex<KeyType> mutex) {
+    final Waiter head = mutex.waiters == null ? null : mutex.waiters.peek();
+    if (head == null)
+      return;
+    if (head.thread != null)
+      LockSupport.unpark(head.thread);
+    else
+      scheduleAttemptWhileLocked(mutex, head, 0);
+  }
+
+  /**
+   * Obtain the lock with the assumption that the mutex is locked by the caller.
+   * The mutex is unlocked while the adapter is called, so callers must not rely
+   * on state read before the call.
+   * 
+   * @param mutex                 the mutex
+   * @param maxTimeInMilliseconds the maximum time to hold the lock
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is already locked.
+   */
+  private FlexLockHandle tryAcquireWhileLocked(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds)
+      throws FlexLockException {
+
+    awaitNotBusyWhileLocked(mutex);
+    final long now = System.currentTimeMillis();
+    if ((mutex.handle != null && mutex.timeout >= now) || hasLiveReadersWhileLocked(mutex, now)) {
+      throw new AlreadyLockedException();
+    }
+
+    final long timeout = now + maxTimeInMilliseconds;
+    expireHolderWhileLocked(mutex, now);
+    final FlexLockHandle handle = reserveHandle(mutex);
+
+    if (adapter == null) {
+      holdWhileLocked(mutex, handle, timeout, now);
+      return handle;
+    }
+
+    final long expireTime = adapterExpireTime(now, timeout);
+
+    FlexLockException err = null;
+    boolean locked = false;
+    long holderExpireTime = 0;
+    final long started = startTimer();
+    beginAdapterCallWhileLocked(mutex);
+    try {
+      if (waitForHolderExpiry && adapter instanceof ExpiryAwareFlexLockAdapter) {
+        final TryLockResult result = ((ExpiryAwareFlexLockAdapter<KeyType>) adapter).tryLockReportingExpiry(
+            mutex.key, handle, now, expireTime);
+        locked = result.isLocked();
+        holderExpireTime = result.getHolderExpireTime();
+      } else {
+        locked = adapter.tryLock(mutex.key, handle, now, expireTime);
+      }
+    } catch (final FlexLockException e) {
+      err = e;
+    } catch (final Exception e) {
+      err = new FlexLockException(e);
+    } finally {
+      endAdapterCall(mutex);
+    }
+    recordAdapterCall(started, err != null);
+    mutex.holderExpireTime = holderExpireTime;
+
+    if (locked) {
+      holdWhileLocked(mutex, handle, timeout, now);
+      mutex.retryDelay = retryDelayAfterAcquired(mutex.retryDelay);
+      mutex.rowHandle = handle;
+      mutex.rowExpireTime = expireTime;
+      mutex.localHandOffs = 0;
+      if (expireTime < timeout) {
+        setLeasedWhileLocked(mutex, true);
+        startLeaseWatchdog();
+      }
+      return handle;
+    }
+
+    handles.release(handle);
+    throw err == null ? new AlreadyLockedException() : err;
+  }
+
+  private FlexLockHandle tryAcquireWhileLocked(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds,
+      final boolean shared, final int permits) throws FlexLockException {
+    if (permits > 0)
+      return tryAcquirePermitWhileLocked(mutex, maxTimeInMilliseconds, permits);
+    return shared ? tryAcquireSharedWhileLocked(mutex, maxTimeInMilliseconds)
+        : tryAcquireWhileLocked(mutex, maxTimeInMilliseconds);
+  }
+
+  /**
+   * Obtain a permit with the assumption that the mutex is locked by the caller.
+   * The adapter is not called while every permit is known to be held here.
+   * 
+   * @param mutex                 the mutex
+   * @param maxTimeInMilliseconds the maximum time to hold the permit
+   * @param permits               the number of permits of the semaphore
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception, or an adapter
+   *                                without semaphores
+   * @throws AlreadyLockedException if every permit is taken.
+   */
+  private FlexLockHandle tryAcquirePermitWhileLocked(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds,
+      final int permits) throws FlexLockException {
+    awaitNotBusyWhileLocked(mutex);
+    final long now = System.currentTimeMillis();
+    if (adapter != null && !(adapter instanceof SemaphoreFlexLockAdapter
+        && ((SemaphoreFlexLockAdapter<KeyType>) adapter).supportsPermits())) {
+      throw new FlexLockException("The adapter does not support semaphores");
+    }
+    if (livePermitHoldersWhileLocked(mutex, now) >= permits) {
+      throw new AlreadyLockedException();
+    }
+
+    final long timeout = now + maxTimeInMilliseconds;
+    final FlexLockHandle handle = reserveHandle(mutex);
+
+    if (adapter == null) {
+      mutex.permitHolders = addHolder(mutex.permitHolders, handle, timeout);
+      scheduleExpiryWhileLocked(mutex, timeout);
+      return handle;
+    }
+
+    FlexLockException err = null;
+    boolean acquired = false;
+    final long started = startTimer();
+    beginAdapterCallWhileLocked(mutex);
+    try {
+      acquired = ((SemaphoreFlexLockAdapter<KeyType>) adapter).tryAcquirePermit(mutex.key, handle, permits, now,
+          timeout);
+    } catch (final FlexLockException e) {
+      err = e;
+    } catch (final Exception e) {
+      err = new FlexLockException(e);
+    } finally {
+      endAdapterCall(mutex);
+    }
+    recordAdapterCall(started, err != null);
+
+    if (acquired) {
+      mutex.permitHolders = addHolder(mutex.permitHolders, handle, timeout);
+      scheduleExpiryWhileLocked(mutex, timeout);
+      mutex.retryDelay = retryDelayAfterAcquired(mutex.retryDelay);
+      return handle;
+    }
+    handles.release(handle);
+    throw err == null ? new AlreadyLockedException() : err;
+  }
+
+  /**
+   * Obtain a shared lock with the assumption that the mutex is locked by the
+   * caller. The adapter is only called when this registry has no shared claim
+   * on the key lasting long enough.
+   * 
+   * @param mutex                 the mutex
+   * @param maxTimeInMilliseconds the maximum time to hold the lock
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception, or an adapter
+   *                                without shared locks
+   * @throws AlreadyLockedException if the FlexLock is locked exclusively.
+   */
+  private FlexLockHandle tryAcquireSharedWhileLocked(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds)
+      throws FlexLockException {
+    awaitNotBusyWhileLocked(mutex);
+    final long now = System.currentTimeMillis();
+    if (mutex.handle != null && mutex.timeout >= now) {
+      throw new AlreadyLockedException();
+    }
+    if (adapter != null && !(adapter instanceof SharedFlexLockAdapter
+        && ((SharedFlexLockAdapter<KeyType>) adapter).supportsSharedLocks())) {
+      throw new FlexLockException("The adapter does not support shared locks");
+    }
+
+    final long timeout = now + maxTimeInMilliseconds;
+    hasLiveReadersWhileLocked(mutex, now);
+    if (adapter == null || (mutex.sharedClaims > 0 && mutex.sharedExpireTime >= timeout)) {
+      final FlexLockHandle handle = reserveHandle(mutex);
+      mutex.readers = addHolder(mutex.readers, handle, timeout);
+      scheduleExpiryWhileLocked(mutex, timeout);
+      return handle;
+    }
+
+    FlexLockException err = null;
+    boolean locked = false;
+    final long started = startTimer();
+    beginAdapterCallWhileLocked(mutex);
+    try {
+      locked = ((SharedFlexLockAdapter<KeyType>) adapter).tryLockShared(mutex.key, now, timeout);
+    } catch (final FlexLockException e) {
+      err = e;
+    } catch (final Exception e) {
+      err = new FlexLockException(e);
+    } finally {
+      endAdapterCall(mutex);
+    }
+    recordAdapterCall(started, err != null);
+
+    if (locked) {
+      // whatever exclusive lock was left has expired
+      expireHolderWhileLocked(mutex, now);
+      releaseHolderWhileLocked(mutex);
+      mutex.sharedClaims++;
+      mutex.sharedExpireTime = Math.max(mutex.sharedExpireTime, timeout);
+      mutex.retryDelay = retryDelayAfterAcquired(mutex.retryDelay);
+      final FlexLockHandle handle = reserveHandle(mutex);
+      mutex.readers = addHolder(mutex.readers, handle, timeout);
+      scheduleExpiryWhileLocked(mutex, timeout);
+      return handle;
+    }
+    throw err == null ? new AlreadyLockedException() : err;
+  }
+
+  /**
+   * The expiration time written to the adapter: a lease when lease renewal is
+   * on, otherwise the maximum time of the lock.
+   * 
+   * @param now     the current time
+   * @param timeout the time the lock must be released by
+   * @return the expiration time
+   */
+  private long adapterExpireTime(final long now, final long timeout) {
+    final long lease = leaseTimeInMilliseconds;
+    return lease > 0 && adapter instanceof RenewableFlexLockAdapter ? Math.min(now + lease, timeout) : timeout;
+  }
+
+  /**
+   * Tracks whether the lock held on a mutex is a lease that needs renewing.
+   * 
+   * @param mutex  the mutex, locked by the caller
+   * @param leased true if the lock needs renewing
+   */
+  private void setLeasedWhileLocked(final Mutex<KeyType> mutex, final boolean leased) {
+    if (mutex.leased == leased)
+      return;
+    mutex.leased = leased;
+    if (leased)
+      leasedMutexes.incrementAndGet();
+    else
+      leasedMutexes.decrementAndGet();
+  }
+
+  private void startLeaseWatchdog() {
+    if (leaseWatchdogRunning.compareAndSet(false, true))
+      scheduleLeaseRenewal();
+  }
+
+  private void scheduleLeaseRenewal() {
+    getAsyncExecutor().schedule(this::renewLeases, Math.max(leaseTimeInMilliseconds / 3, 1), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Watchdog tick. Every lease held by the registry is extended by another
+   * lease, but never past the maximum time of its lock. Leases sharing an
+   * expiration time, normally all of them, are renewed with one adapter call.
+   * A failed call is reported as an adapter error and retried on the next tick.
+   * A lease the adapter did not extend has been lost, to another holder or
+   * with its row; it is reported as an adapter error as well and no longer
+   * renewed. Only a successful renewal moves the expiration time local
+   * hand-offs rely on. The watchdog stops when no leases are left and restarts
+   * with the next one.
+   */
+  private void renewLeases() {
+    final FlexLockAdapter<KeyType> current = adapter;
+    final long lease = leaseTimeInMilliseconds;
+    final long now = System.currentTimeMillis();
+    final Map<Long, Map<KeyType, FlexLockHandle>> renewals = new HashMap<Long, Map<KeyType, FlexLockHandle>>();
+    for (final Mutex<KeyType> mutex : locks.values()) {
+      mutex.lock.lock();
+      try {
+        if (!mutex.leased)
+          continue;
+        if (mutex.rowHandle == null || mutex.timeout < now || lease <= 0) {
+          setLeasedWhileLocked(mutex, false);
+          continue;
+        }
+        final long expireTime = Math.min(now + lease, mutex.timeout);
+        Map<KeyType, FlexLockHandle> leases = renewals.get(expireTime);
+        if (leases == null) {
+          leases = new HashMap<KeyType, FlexLockHandle>();
+          renewals.put(expireTime, leases);
+        }
+        leases.put(mutex.key, mutex.rowHandle);
+      } finally {
+        mutex.lock.unlock();
+      }
+    }
+
+    if (current instanceof RenewableFlexLockAdapter) {
+      for (final Map.Entry<Long, Map<KeyType, FlexLockHandle>> renewal : renewals.entrySet()) {
+        final Map<KeyType, FlexLockHandle> leases = renewal.getValue();
+        final long started = startTimer();
+        Set<KeyType> renewed = null;
+        try {
+          renewed = ((RenewableFlexLockAdapter<KeyType>) current).renew(leases, now, renewal.getKey());
+        } catch (final Exception ignoreThisException) {
+          // retried on the next tick
+        } finally {
+          recordAdapterCall(started, renewed == null || renewed.size() < leases.size());
+        }
+        for (final Map.Entry<KeyType, FlexLockHandle> held : leases.entrySet()) {
+          final boolean extended = renewed != null && renewed.contains(held.getKey());
+          leaseRenewed(held.getKey(), held.getValue(), extended ? renewal.getKey() : 0, renewed != null && !extended);
+        }
+      }
+    }
+
+    if (leasedMutexes.get() > 0) {
+      scheduleLeaseRenewal();
+      return;
+    }
+    leaseWatchdogRunning.set(false);
+    if (leasedMutexes.get() > 0)
+      startLeaseWatchdog();
+  }
+
+  /**
+   * Puts a mutex in the expiry wheel unless it is off or the mutex is already
+   * due no later. An entry superseded by an earlier one is ignored when due.
+   * 
+   * @param mutex    the mutex, locked by the caller
+   * @param deadline the time the next holder of the mutex must be released by
+   */
+  private void scheduleExpiryWhileLocked(final Mutex<KeyType> mutex, final long deadline) {
+    final TimerWheel<Mutex<KeyType>> wheel = expiryWheel;
+    if (wheel == null || deadline == Long.MAX_VALUE || (mutex.wheelDeadline != 0 && mutex.wheelDeadline <= deadline))
+      return;
+    mutex.wheelDeadline = deadline;
+    wheel.schedule(mutex, deadline);
+    if (expiryTickerRunning.compareAndSet(false, true))
+      scheduleExpiryTick(wheel);
+  }
+
+  private void scheduleExpiryTick(final TimerWheel<Mutex<KeyType>> wheel) {
+    getAsyncExecutor().schedule(this::expireDue, wheel.getTickInMilliseconds(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Expiry wheel tick. The ticker stops when the wheel is empty and restarts
+   * with the next entry.
+   */
+  private void expireDue() {
+    final TimerWheel<Mutex<KeyType>> wheel = expiryWheel;
+    if (wheel != null) {
+      wheel.expire(System.currentTimeMillis(), this::expire);
+      if (!wheel.isEmpty()) {
+        scheduleExpiryTick(wheel);
+        return;
+      }
+    }
+    expiryTickerRunning.set(false);
+    if (wheel != null && !wheel.isEmpty() && expiryTickerRunning.compareAndSet(false, true))
+      scheduleExpiryTick(wheel);
+  }
+
+  /**
+   * Releases whatever holds the mutex past its maximum time, giving the
+   * handles back to the pool and passing the lock on, then schedules the next
+   * expiry of the mutex. Only the state in this registry is released here, so
+   * one slow adapter does not hold up the tick; the claims in the adapter are
+   * released by a task of their own, with the mutex busy until it is done. A
+   * mutex busy with an adapter call is not waited for but looked at again on
+   * the next tick.
+   * 
+   * @param mutex    the mutex
+   * @param deadline the deadline of the wheel entry
+   */
+  private void expire(final Mutex<KeyType> mutex, final long deadline) {
+    mutex.lock.lock();
+    try {
+      if (mutex.wheelDeadline != deadline)
+        return;
+      final TimerWheel<Mutex<KeyType>> wheel = expiryWheel;
+      if (mutex.busy) {
+        if (wheel != null)
+          wheel.schedule(mutex, deadline);
+        else
+          mutex.wheelDeadline = 0;
+        return;
+      }
+      mutex.wheelDeadline = 0;
+      final long now = System.currentTimeMillis();
+      boolean released = false;
+      FlexLockHandle rowHandle = null;
+      if (mutex.handle != null && mutex.timeout < now) {
+        expireHandleWhileLocked(mutex, mutex.handle);
+        if (!handOffLocallyWhileLocked(mutex, now)) {
+          rowHandle = mutex.rowHandle;
+          releaseHolderWhileLocked(mutex);
+          released = true;
+        }
+      }
+      int claims = 0;
+      if (mutex.readers != null && !hasLiveReadersWhileLocked(mutex, now)) {
+        claims = mutex.sharedClaims;
+        mutex.sharedClaims = 0;
+        released = true;
+      }
+      if (mutex.permitHolders != null) {
+        final int held = mutex.permitHolders.size();
+        if (livePermitHoldersWhileLocked(mutex, now) < held)
+          released = true;
+      }
+      if (adapter != null && (rowHandle != null || claims > 0)) {
+        mutex.busy = true;
+        final FlexLockHandle expiredRow = rowHandle;
+        final int expiredClaims = claims;
+        getAsyncExecutor().execute(() -> releaseExpired(mutex, expiredRow, expiredClaims, now));
+        return;
+      }
+      if (released)
+        handOffWhileLocked(mutex, now);
+      scheduleExpiryWhileLocked(mutex, earliestExpiryWhileLocked(mutex, System.currentTimeMillis()));
+      markIdleWhileLocked(mutex, now);
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Releases the claims of expired holders in the adapter, then passes the
+   * lock on and schedules the next expiry of the mutex. A failed release in
+   * the adapter is left to expire there.
+   * 
+   * @param mutex     the mutex, marked busy by the expiry tick
+   * @param rowHandle the handle of the expired exclusive claim, may be null
+   * @param claims    the expired shared claims
+   * @param now       the time the holders expired
+   */
+  private void releaseExpired(final Mutex<KeyType> mutex, final FlexLockHandle rowHandle, final int claims,
+      final long now) {
+    final FlexLockAdapter<KeyType> current = adapter;
+    if (rowHandle != null) {
+      final long started = startTimer();
+      boolean failed = false;
+      try {
+        current.unlock(mutex.key, rowHandle);
+      } catch (final Exception e) {
+        failed = true;
+      }
+      recordAdapterCall(started, failed);
+    }
+    if (claims > 0) {
+      final long started = startTimer();
+      boolean failed = false;
+      try {
+        ((SharedFlexLockAdapter<KeyType>) current).unlockShared(mutex.key, claims, now);
+      } catch (final Exception e) {
+        failed = true;
+      }
+      recordAdapterCall(started, failed);
+    }
+    endAdapterCall(mutex);
+    try {
+      handOffWhileLocked(mutex, now);
+      scheduleExpiryWhileLocked(mutex, earliestExpiryWhileLocked(mutex, System.currentTimeMillis()));
+      markIdleWhileLocked(mutex, now);
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Records the outcome of renewing a lease. Until a renewal succeeds the claim
+   * in the adapter is not trusted: the lock is not handed on locally and its
+   * release goes through the adapter. A lease the adapter no longer holds is
+   * not renewed again; the holder keeps its lock in this registry.
+   * 
+   * @param key        the key of the lease
+   * @param rowHandle  the handle the lease was renewed for
+   * @param expireTime the new expiration time of the lease, 0 if not extended
+   * @param lost       true if the adapter no longer holds the lease
+   */
+  private void leaseRenewed(final KeyType key, final FlexLockHandle rowHandle, final long expireTime,
+      final boolean lost) {
+    final Mutex<KeyType> mutex = locks.get(key);
+    if (mutex == null)
+      return;
+    mutex.lock.lock();
+    try {
+      if (mutex.rowHandle != rowHandle)
+        return;
+      mutex.rowExpireTime = expireTime;
+      if (lost)
+        setLeasedWhileLocked(mutex, false);
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Tries to obtain a lock without blocking.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is already locked.
+   */
+  public FlexLockHandle tryLock(final KeyType key, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    return tryLock(key, maxTimeInMilliseconds, false, 0);
+  }
+
+  /**
+   * Tries to obtain an exclusive lock without blocking, the same as tryLock.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is already locked.
+   */
+  public FlexLockHandle tryLockExclusive(final KeyType key, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    return tryLock(key, maxTimeInMilliseconds, false, 0);
+  }
+
+  /**
+   * Tries to obtain a shared lock without blocking. See lockShared.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is locked exclusively or an
+   *                                exclusive lock is waiting.
+   */
+  public FlexLockHandle tryLockShared(final KeyType key, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    return tryLock(key, maxTimeInMilliseconds, true, 0);
+  }
+
+  private FlexLockHandle tryLock(final KeyType key, final int maxTimeInMilliseconds, final boolean shared,
+      final int permits) throws AlreadyLockedException, FlexLockException {
+    final long started = startTimer();
+    return tryLock(acquireMutex(key), maxTimeInMilliseconds, shared, permits, started);
+  }
+
+  /**
+   * Tries to lock the key of an acquired mutex, giving the mutex back when
+   * done.
+   * 
+   * @param mutex                 the mutex, from acquireMutex
+   * @param maxTimeInMilliseconds the maximum time to hold the lock
+   * @param shared                true for a shared lock
+   * @param permits               the number of permits of a semaphore, 0 for a
+   *                              lock
+   * @param started               the start of the request from startTimer
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is already locked.
+   */
+  FlexLockHandle tryLock(final Mutex<KeyType> mutex, final int maxTimeInMilliseconds, final boolean shared,
+      final int permits, final long started) throws AlreadyLockedException, FlexLockException {
+    final Object owner = reentrant && !shared && permits == 0 ? reentrancyOwner.get() : null;
+    try {
+      mutex.lock.lock();
+      try {
+        if (owner != null && reenterWhileLocked(mutex, owner))
+          return mutex.handle;
+        if (mutex.hasWaiters())
+          throw new AlreadyLockedException();
+        return acquired(ownWhileLocked(mutex, tryAcquireWhileLocked(mutex, maxTimeInMilliseconds, shared, permits),
+            owner), started, 0);
+      } finally {
+        mutex.lock.unlock();
+      }
+    } finally {
+      releaseMutex(mutex);
+    }
+  }
+
+  /**
+   * Unlocks a lock. An non-existing lock or already expired lock is ignored.
+   * In reentrant mode a nested hold is given back and the lock kept.
+   * 
+   * @param handle handle to lock.
+   * @throws FlexLockException unexpected adapter exception.
+   */
+  public void unlock(final FlexLockHandle handle) throws FlexLockException {
+    if (handle == null || (reentrant && releaseHold(handle)))
+      return;
+    final Mutex<KeyType> mutex = handles.get(handle);
+    if (mutex == null)
+      return;
+    final long now = System.currentTimeMillis();
+    mutex.lock.lock();
+    try {
+      // released under the mutex lock, which is also held to expire a handle
+      if (releaseHandle(handle) == null)
+        return;
+      final FlexLockException err = unlockWhileLocked(mutex, handle, now);
+      markIdleWhileLocked(mutex, now);
+      if (err != null)
+        throw err;
+    } finally {
+      mutex.lock.unlock();
+    }
+    sweepIdleMutexesIfDue(now);
+  }
+
+  /**
+   * Gives back a nested hold of a reentrant lock, keeping the lock.
+   * 
+   * @param handle handle to lock
+   * @return true if the lock is still held by outer holds
+   */
+  private boolean releaseHold(final FlexLockHandle handle) {
+    final Mutex<KeyType> mutex = handles.get(handle);
+    if (mutex == null)
+      return false;
+    mutex.lock.lock();
+    try {
+      if (mutex.handle != handle || mutex.ownerHandle != handle || mutex.holds <= 1)
+        return false;
+      mutex.holds--;
+      return true;
+    } finally {
+      mutex.lock.unlock();
+    }
+  }
+
+  /**
+   * Releases the lock if the handle still holds it and passes it on, either
+   * straight to a local waiter or by releasing it in the adapter. The mutex is
+   * unlocked while the adapter is called.
+   * 
+   * @param mutex  the mutex, locked by the caller
+   * @param handle the handle of the holder
+   * @param now    the current time
+   * @return the adapter exception, if any
+   */
+  private FlexLockException unlockWhileLocked(final Mutex<KeyType> mutex, final FlexLockHandle handle,
+      final long now) {
+    awaitNotBusyWhileLocked(mutex);
+    if (mutex.permitHolders != null && mutex.permitHolders.remove(handle) != null)
+      return releasePermitWhileLocked(mutex, handle, now);
+    if (mutex.readers != null && mutex.readers.remove(handle) != null)
+      return unlockSharedWhileLocked(mutex, now);
+    if (mutex.handle != handle || handOffLocallyWhileLocked(mutex, now))
+      return null;
+    FlexLockException err = null;
+    if (adapter != null && mutex.rowHandle != null) {
+      final long started = startTimer();
+      beginAdapterCallWhileLocked(mutex);
+      try {
+        adapter.unlock(mutex.key, mutex.rowHandle);
+      } catch (final Exception e) {
+        err = new FlexLockException(e);
+      } finally {
+        endAdapterCall(mutex);
+      }
+      recordAdapterCall(started, err != null);
+    }
+    releaseHolderWhileLocked(mutex);
+    handOffWhileLocked(mutex, now);
+    return err;
+  }
+
+  /**
+   * Makes a handle the exclusive holder of the mutex. In reentrant mode the
+   * new holder has no owner until it records itself with ownWhileLocked, so
+   * the previous owner cannot re-enter a handle given back to it by the pool.
+   * 
+   * @param mutex   the mutex, locked by the caller
+   * @param handle  the handle of the new holder
+   * @param timeout the time the holder must be released by
+   * @param now     the current time
+   */
+  private void holdWhileLocked(final Mutex<KeyType> mutex, final FlexLockHandle handle, final long timeout,
+      final long now) {
+    disownWhileLocked(mutex);
+    mutex.timeout = timeout;
+    mutex.handle = handle;
+    mutex.heldSince = now;
+    scheduleExpiryWhileLocked(mutex, timeout);
+  }
+
+  /**
+   * Clears the exclusive holder of the mutex in this registry.
+   * 
+   * @param mutex the mutex, locked by the caller
+   */
+  private void releaseHolderWhileLocked(final Mutex<KeyType> mutex) {
+    disownWhileLocked(mutex);
+    mutex.timeout = 0;
+    mutex.handle = null;
+    mutex.heldSince = 0;
+    mutex.rowHandle = null;
+    setLeasedWhileLocked(mutex, false);
+  }
+
+  /**
+   * Forgets the reentrant owner of the mutex and its holds.
+   * 
+   * @param mutex the mutex, locked by the caller
+   */
+  private static void disownWhileLocked(final Mutex<?> mutex) {
+    mutex.owner = null;
+    mutex.ownerHandle = null;
+    mutex.holds = 0;
+  }
+
+  /**
+   * Gives back a permit in the adapter and passes it on.
+   * 
+   * @param mutex  the mutex, locked and not busy
+   * @param handle the handle of the holder
+   * @param now    the current time
+   * @return the adapter exception, if any
+   */
+  private FlexLockException releasePermitWhileLocked(final Mutex<KeyType> mutex, final FlexLockHandle handle,
+      final long now) {
+    FlexLockException err = null;
+    if (adapter != null) {
+      final long started = startTimer();
+      beginAdapterCallWhileLocked(mutex);
+      try {
+        ((SemaphoreFlexLockAdapter<KeyType>) adapter).releasePermit(mutex.key, handle);
+      } catch (final Exception e) {
+        err = new FlexLockException(e);
+      } finally {
+        endAdapterCall(mutex);
+      }
+      recordAdapterCall(started, err != null);
+    }
+    handOffWhileLocked(mutex, now);
+    return err;
+  }
+
+  /**
+   * Gives back this registry's shared claims in the adapter once the last
+   * shared holder is gone, and passes the lock on.
+   * 
+   * @param mutex the mutex, locked and not busy
+   * @param now   the current time
+   * @return the adapter exception, if any
+   */
+  private FlexLockException unlockSharedWhileLocked(final Mutex<KeyType> mutex, final long now) {
+    if (hasLiveReadersWhileLocked(mutex, now))
+      return null;
+    FlexLockException err = null;
+    final int claims = mutex.sharedClaims;
+    mutex.sharedClaims = 0;
+    if (adapter != null && claims > 0) {
+      final long started = startTimer();
+      beginAdapterCallWhileLocked(mutex);
+      try {
+        ((SharedFlexLockAdapter<KeyType>) adapter).unlockShared(mutex.key, claims, now);
+      } catch (final Exception e) {
+        err = new FlexLockException(e);
+      } finally {
+        endAdapterCall(mutex);
+      }
+      recordAdapterCall(started, err != null);
+    }
+    handOffWhileLocked(mutex, now);
+    return err;
+  }
+
+  /**
+   * Locks several FlexLock's, blocking until all of them are obtained. All keys
+   * are first claimed at once; if any is locked, the keys are taken one at a
+   * time in canonical order, so callers locking overlapping keys cannot
+   * deadlock. Either every lock is returned or none are held. The locks are
+   * not reentrant, even in reentrant mode: a key the caller already holds is
+   * waited for like any other.
+   * 
+   * @param keys                  the keys identifying the locks
+   * @param maxTimeInMilliseconds the maximum time to hold each lock. This is
+   *                              only applied if it does not get unlocked in
+   *                              time.
+   * @return the handles, by key in canonical order
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public Map<KeyType, FlexLockHandle> lockAll(final Collection<KeyType> keys, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    final List<KeyType> ordered = canonicalOrder(keys);
+    try {
+      return tryLockAllOrdered(ordered, maxTimeInMilliseconds);
+    } catch (final AlreadyLockedException ignoreThisException) {
+    }
+    // the mutexes are kept in use so that their order holds until all are locked
+    final List<Mutex<KeyType>> mutexes = acquireMutexes(ordered);
+    mutexes.sort(MUTEX_ORDER);
+    final Map<KeyType, FlexLockHandle> locked = new LinkedHashMap<KeyType, FlexLockHandle>();
+    boolean acquired = false;
+    try {
+      for (final Mutex<KeyType> mutex : mutexes)
+        locked.put(mutex.key, lock(acquireMutex(mutex.key), maxTimeInMilliseconds, false, 0, startTimer(), null));
+      acquired = true;
+      return locked;
+    } finally {
+      if (!acquired) {
+        try {
+          unlockAll(locked.values());
+        } catch (final FlexLockException ignoreThisException) {
+        }
+      }
+      releaseMutexes(mutexes);
+    }
+  }
+
+  /**
+   * Tries to obtain several locks without blocking. Either every lock is
+   * obtained or none are. With a batch adapter all keys are claimed with one
+   * adapter call.
+   * 
+   * @param keys                  the keys identifying the locks
+   * @param maxTimeInMilliseconds the maximum time to hold each lock. This is
+   *                              only applied if it does not get unlocked in
+   *                              time.
+   * @return the handles, by key in canonical order
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if any of the FlexLock's is already locked.
+   */
+  public Map<KeyType, FlexLockHandle> tryLockAll(final Collection<KeyType> keys, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    return tryLockAllOrdered(canonicalOrder(keys), maxTimeInMilliseconds);
+  }
+
+  /**
+   * Unlocks several locks. Non-existing or already expired locks are ignored.
+   * With a batch adapter all locks are released with one adapter call.
+   * 
+   * @param locked the handles of the locks
+   * @throws FlexLockException unexpected adapter exception.
+   */
+  public void unlockAll(final Collection<FlexLockHandle> locked) throws FlexLockException {
+    if (!(adapter instanceof BatchFlexLockAdapter)) {
+      FlexLockException err = null;
+      for (final FlexLockHandle handle : locked) {
+        try {
+          unlock(handle);
+        } catch (final FlexLockException e) {
+          if (err == null)
+            err = e;
+        }
+      }
+      if (err != null)
+        throw err;
+      return;
+    }
+
+    FlexLockException err = null;
+    final Map<Mutex<KeyType>, FlexLockHandle> released = new HashMap<Mutex<KeyType>, FlexLockHandle>();
+    for (final FlexLockHandle handle : locked) {
+      if (handle == null || (reentrant && releaseHold(handle)))
+        continue;
+      final Mutex<KeyType> mutex = handles.get(handle);
+      if (mutex == null)
+        continue;
+      mutex.lock.lock();
+      try {
+        if (releaseHandle(handle) == null)
+          continue;
+        // shared holders and permits are released one at a time
+        if ((mutex.readers != null && mutex.readers.containsKey(handle))
+            || (mutex.permitHolders != null && mutex.permitHolders.containsKey(handle))) {
+          final long now = System.currentTimeMillis();
+          final FlexLockException e = unlockWhileLocked(mutex, handle, now);
+          markIdleWhileLocked(mutex, now);
+          if (err == null)
+            err = e;
+          continue;
+        }
+      } finally {
+        mutex.lock.unlock();
+      }
+      released.put(mutex, handle);
+    }
+    final List<Mutex<KeyType>> mutexes = new ArrayList<Mutex<KeyType>>(released.keySet());
+    mutexes.sort(MUTEX_ORDER);
+
+    final List<Mutex<KeyType>> owned = new ArrayList<Mutex<KeyType>>(mutexes.size());
+    final List<KeyType> keys = new ArrayList<KeyType>(mutexes.size());
+    final List<FlexLockHandle> ownedHandles = new ArrayList<FlexLockHandle>(mutexes.size());
+    lockMutexes(mutexes);
+    try {
+      final long now = System.currentTimeMillis();
+      for (final Mutex<KeyType> mutex : mutexes) {
+        if (mutex.handle == released.get(mutex) && !handOffLocallyWhileLocked(mutex, now)) {
+          mutex.busy = true;
+          owned.add(mutex);
+          keys.add(mutex.key);
+          ownedHandles.add(mutex.rowHandle);
+        }
+      }
+    } finally {
+      unlockMutexes(mutexes);
+    }
+    if (owned.isEmpty()) {
+      if (err != null)
+        throw err;
+      return;
+    }
+
+    final long started = startTimer();
+    boolean unlocked = false;
+    try {
+      ((BatchFlexLockAdapter<KeyType>) adapter).unlockAll(keys, ownedHandles);
+      unlocked = true;
+    } catch (final Exception e) {
+      err = new FlexLockException(e);
+    } finally {
+      recordAdapterCall(started, !unlocked);
+      final long now = System.currentTimeMillis();
+      for (int i = owned.size() - 1; i >= 0; i--) {
+        final Mutex<KeyType> mutex = owned.get(i);
+        endAdapterCall(mutex);
+        try {
+          releaseHolderWhileLocked(mutex);
+          handOffWhileLocked(mutex, now);
+          markIdleWhileLocked(mutex, now);
+        } finally {
+          mutex.lock.unlock();
+        }
+      }
+      sweepIdleMutexesIfDue(now);
+    }
+    if (err != null)
+      throw err;
+  }
+
+  private Map<KeyType, FlexLockHandle> tryLockAllOrdered(final List<KeyType> keys, final int maxTimeInMilliseconds)
+      throws FlexLockException {
+    final List<Mutex<KeyType>> mutexes = acquireMutexes(keys);
+    mutexes.sort(MUTEX_ORDER);
+    try {
+      return tryAcquireAll(mutexes, maxTimeInMilliseconds);
+    } finally {
+      releaseMutexes(mutexes);
+    }
+  }
+
+  /**
+   * Obtains the locks of several mutexes or none of them. The mutexes are
+   * locked together to check that they are free, then marked busy and unlocked
+   * while the adapter claims them.
+   * 
+   * @param mutexes               the mutexes in canonical order
+   * @param maxTimeInMilliseconds the maximum time to hold the locks
+   * @return the handles, by key in canonical order
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if any of the FlexLock's is already locked.
+   */
+  private Map<KeyType, FlexLockHandle> tryAcquireAll(final List<Mutex<KeyType>> mutexes,
+      final int maxTimeInMilliseconds) throws FlexLockException {
+    final List<FlexLockHandle> reserved = new ArrayList<FlexLockHandle>(mutexes.size());
+    long now;
+    long timeout;
+    lockMutexes(mutexes);
+    try {
+      now = System.currentTimeMillis();
+      for (final Mutex<KeyType> mutex : mutexes) {
+        if (mutex.hasWaiters() || (mutex.handle != null && mutex.timeout >= now)
+            || hasLiveReadersWhileLocked(mutex, now))
+          throw new AlreadyLockedException();
+      }
+      timeout = now + maxTimeInMilliseconds;
+      for (final Mutex<KeyType> mutex : mutexes) {
+        expireHolderWhileLocked(mutex, now);
+        reserved.add(reserveHandle(mutex));
+      }
+      if (adapter == null || mutexes.isEmpty()) {
+        for (int i = 0; i < mutexes.size(); i++)
+          holdWhileLocked(mutexes.get(i), reserved.get(i), timeout, now);
+        return handlesByKey(mutexes, reserved);
+      }
+      for (final Mutex<KeyType> mutex : mutexes)
+        mutex.busy = true;
+    } finally {
+      unlockMutexes(mutexes);
+    }
+
+    final long expireTime = adapterExpireTime(now, timeout);
+    FlexLockException err = null;
+    boolean locked = false;
+    final long started = startTimer();
+    try {
+      locked = claimAll(mutexes, reserved, now, expireTime);
+    } catch (final FlexLockException e) {
+      err = e;
+    } catch (final Exception e) {
+      err = new FlexLockException(e);
+    } finally {
+      recordAdapterCall(started, err != null);
+      for (int i = mutexes.size() - 1; i >= 0; i--) {
+        final Mutex<KeyType> mutex = mutexes.get(i);
+        endAdapterCall(mutex);
+        try {
+          if (locked) {
+            holdWhileLocked(mutex, reserved.get(i), timeout, now);
+            mutex.rowHandle = reserved.get(i);
+            mutex.rowExpireTime = expireTime;
+            mutex.localHandOffs = 0;
+            setLeasedWhileLocked(mutex, expireTime < timeout);
+          }
+        } finally {
+          mutex.lock.unlock();
+        }
+      }
+    }
+
+    if (locked) {
+      if (expireTime < timeout)
+        startLeaseWatchdog();
+      return handlesByKey(mutexes, reserved);
+    }
+    for (final FlexLockHandle handle : reserved)
+      handles.release(handle);
+    throw err == null ? new AlreadyLockedException() : err;
+  }
+
+  /**
+   * Claims the locks through the adapter, with one call for a batch adapter or
+   * one key at a time otherwise, giving back the keys already claimed if any
+   * of them fails.
+   */
+  private boolean claimAll(final List<Mutex<KeyType>> mutexes, final List<FlexLockHandle> reserved, final long now,
+      final long expireTime) throws Exception {
+    if (adapter instanceof BatchFlexLockAdapter) {
+      final List<KeyType> keys = new ArrayList<KeyType>(mutexes.size());
+      for (final Mutex<KeyType> mutex : mutexes)
+        keys.add(mutex.key);
+      return ((BatchFlexLockAdapter<KeyType>) adapter).tryLockAll(keys, reserved, now, expireTime);
+    }
+    int claimed = 0;
+    try {
+      while (claimed < mutexes.size()
+          && adapter.tryLock(mutexes.get(claimed).key, reserved.get(claimed), now, expireTime))
+        claimed++;
+    } finally {
+      if (claimed < mutexes.size()) {
+        for (int i = 0; i < claimed; i++)
+          adapter.unlock(mutexes.get(i).key, reserved.get(i));
+      }
+    }
+    return claimed == mutexes.size();
+  }
+
+  private static <KeyType> Map<KeyType, FlexLockHandle> handlesByKey(final List<Mutex<KeyType>> mutexes,
+      final List<FlexLockHandle> reserved) {
+    final Map<KeyType, FlexLockHandle> result = new LinkedHashMap<KeyType, FlexLockHandle>();
+    for (int i = 0; i < mutexes.size(); i++)
+      result.put(mutexes.get(i).key, reserved.get(i));
+    return result;
+  }
+
+  /**
+   * @param keys the keys
+   * @return the distinct keys in canonical order
+   */
+  private static <KeyType> List<KeyType> canonicalOrder(final Collection<KeyType> keys) {
+    final List<KeyType> ordered = new ArrayList<KeyType>(new LinkedHashSet<KeyType>(keys));
+    ordered.sort(CANONICAL_ORDER);
+    return ordered;
   }
 
 }
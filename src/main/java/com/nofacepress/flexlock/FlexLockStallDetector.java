@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Looks for keys of a registry that have been held exclusively for too long or
+ * have too many requests queued. It works from FlexLockRegistry.snapshot, so it
+ * never takes a mutex lock and can run in production alongside the traffic it
+ * watches.
+ *
+ * <pre>
+ * FlexLockStallDetector&lt;String&gt; detector = new FlexLockStallDetector&lt;String&gt;(registry);
+ * detector.setListener(info -&gt; log.warn("stalled lock {}", info));
+ * detector.start(5000);
+ * </pre>
+ *
+ * @param <KeyType> the key type of the registry.
+ */
+@RequiredArgsConstructor
+public class FlexLockStallDetector<KeyType> {
+
+  public static long DEFAULT_HELD_THRESHOLD_IN_MILLISECONDS = 30000;
+  public static int DEFAULT_WAITER_THRESHOLD = 10;
+
+  @Getter
+  private final FlexLockRegistry<KeyType> registry;
+
+  /**
+   * A key held exclusively for longer than this is reported; 0 or less turns the
+   * check off.
+   */
+  @Getter
+  @Setter
+  private long heldThresholdInMilliseconds = DEFAULT_HELD_THRESHOLD_IN_MILLISECONDS;
+
+  /**
+   * A key with at least this many queued requests is reported; 0 or less turns
+   * the check off.
+   */
+  @Getter
+  @Setter
+  private int waiterThreshold = DEFAULT_WAITER_THRESHOLD;
+
+  /**
+   * Called with each key found by a scan, none by default.
+   */
+  @Getter
+  @Setter
+  private Consumer<FlexLockInfo<KeyType>> listener = null;
+
+  private final AtomicReference<ScheduledFuture<?>> scheduled = new AtomicReference<ScheduledFuture<?>>();
+
+  /**
+   * Scans the registry once, passing every key found to the listener.
+   * 
+   * @return the keys held too long or with too many requests queued
+   */
+  public List<FlexLockInfo<KeyType>> detect() {
+    final long now = System.currentTimeMillis();
+    final List<FlexLockInfo<KeyType>> found = new ArrayList<FlexLockInfo<KeyType>>();
+    for (final FlexLockInfo<KeyType> info : registry.snapshot()) {
+      if ((heldThresholdInMilliseconds > 0 && info.getHeldForInMilliseconds(now) > heldThresholdInMilliseconds)
+          || (waiterThreshold > 0 && info.getWaiters() >= waiterThreshold))
+        found.add(info);
+    }
+    final Consumer<FlexLockInfo<KeyType>> current = listener;
+    if (current != null) {
+      for (final FlexLockInfo<KeyType> info : found)
+        current.accept(info);
+    }
+    return found;
+  }
+
+  /**
+   * Scans the registry periodically on its async executor, replacing any
+   * schedule already running.
+   * 
+   * @param periodInMilliseconds the time between scans
+   */
+  public void start(final long periodInMilliseconds) {
+    final ScheduledFuture<?> previous = scheduled.getAndSet(registry.getAsyncExecutor().scheduleWithFixedDelay(() -> {
+      try {
+        detect();
+      } catch (final RuntimeException ignoreThisException) {
+        // a failing listener must not end the schedule
+      }
+    }, periodInMilliseconds, periodInMilliseconds, TimeUnit.MILLISECONDS));
+    if (previous != null)
+      previous.cancel(false);
+  }
+
+  /**
+   * Stops periodic scans.
+   */
+  public void stop() {
+    final ScheduledFuture<?> previous = scheduled.getAndSet(null);
+    if (previous != null)
+      previous.cancel(false);
+  }
+}
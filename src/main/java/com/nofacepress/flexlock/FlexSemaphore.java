@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import com.nofacepress.flexlock.exception.AlreadyLockedException;
+import com.nofacepress.flexlock.exception.FlexLockException;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * A counting semaphore over a key of a registry. Up to permits holders share
+ * the key at once. Each acquired permit has its own handle that is given back
+ * with release.
+ *
+ * @param <KeyType> the key type of the registry.
+ */
+@RequiredArgsConstructor
+@ToString
+public class FlexSemaphore<KeyType> {
+  @Getter
+  private final KeyType key;
+  @Getter
+  private final FlexLockRegistry<KeyType> registry;
+  @Getter
+  private final int permits;
+
+  public FlexLockHandle acquire(final int maxTimeInMilliseconds) throws InterruptedException, FlexLockException {
+    return registry.acquirePermit(key, permits, maxTimeInMilliseconds);
+  }
+
+  public FlexLockHandle tryAcquire(final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    return registry.tryAcquirePermit(key, permits, maxTimeInMilliseconds);
+  }
+
+  public void release(final FlexLockHandle handle) throws FlexLockException {
+    registry.unlock(handle);
+  }
+
+}
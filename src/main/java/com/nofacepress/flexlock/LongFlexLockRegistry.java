@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import com.nofacepress.flexlock.adapter.FlexLockAdapter;
+import com.nofacepress.flexlock.exception.AlreadyLockedException;
+import com.nofacepress.flexlock.exception.FlexLockException;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+import com.nofacepress.flexlock.handle.OwnerTokenGenerator;
+
+/**
+ * Registry for long keys, such as row ids. The methods taking a primitive key
+ * find the mutex of a key already in memory through an open-addressing table
+ * of longs, so they neither box the key nor hash a Long, and an uncontended
+ * lock and unlock allocates nothing. The key is boxed once, when its mutex is
+ * created, and that instance is what the adapter sees. The methods taking a
+ * Long work as in any registry.
+ */
+public class LongFlexLockRegistry extends FlexLockRegistry<Long> {
+
+  private final LongKeyTable<Mutex<Long>> mutexes = new LongKeyTable<Mutex<Long>>();
+
+  /**
+   * Constructor for a registry that only locks with-in the application.
+   */
+  public LongFlexLockRegistry() {
+    super();
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param adapter the adapter to use for creating new FlexLock's.
+   */
+  public LongFlexLockRegistry(final FlexLockAdapter<Long> adapter) {
+    super(adapter);
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param adapter             the adapter to use for creating new FlexLock's.
+   * @param ownerTokenGenerator the generator for the owner tokens of handles.
+   */
+  public LongFlexLockRegistry(final FlexLockAdapter<Long> adapter, final OwnerTokenGenerator ownerTokenGenerator) {
+    super(adapter, ownerTokenGenerator);
+  }
+
+  /**
+   * Locks a FlexLock, see {@link FlexLockRegistry#lock(Object, int)}.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return A handle to the FlexLock
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public FlexLockHandle lock(final long key, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    final long started = startTimer();
+    return lock(acquireMutex(key), maxTimeInMilliseconds, false, 0, started);
+  }
+
+  /**
+   * Locks a FlexLock shared with other shared holders, see
+   * {@link FlexLockRegistry#lockShared(Object, int)}.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return A handle to the FlexLock, released with unlock
+   * @throws InterruptedException if thread is interrupted
+   * @throws FlexLockException    unexpected adapter exception
+   */
+  public FlexLockHandle lockShared(final long key, final int maxTimeInMilliseconds)
+      throws InterruptedException, FlexLockException {
+    final long started = startTimer();
+    return lock(acquireMutex(key), maxTimeInMilliseconds, true, 0, started);
+  }
+
+  /**
+   * Tries to obtain a lock without blocking.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is already locked.
+   */
+  public FlexLockHandle tryLock(final long key, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    final long started = startTimer();
+    return tryLock(acquireMutex(key), maxTimeInMilliseconds, false, 0, started);
+  }
+
+  /**
+   * Tries to obtain a shared lock without blocking. See lockShared.
+   * 
+   * @param key                   the key identifying the lock
+   * @param maxTimeInMilliseconds the maximum time to hold the lock. This is only
+   *                              applied if it does not get unlocked in time.
+   * @return the handle
+   * @throws FlexLockException      unexpected adapter exception
+   * @throws AlreadyLockedException if the FlexLock is locked exclusively or an
+   *                                exclusive lock is waiting.
+   */
+  public FlexLockHandle tryLockShared(final long key, final int maxTimeInMilliseconds)
+      throws AlreadyLockedException, FlexLockException {
+    final long started = startTimer();
+    return tryLock(acquireMutex(key), maxTimeInMilliseconds, true, 0, started);
+  }
+
+  /**
+   * Returns the mutex of a key marked as in use. A key already in memory is
+   * found in the table of longs; otherwise the key is boxed and looked up in the
+   * registry, and its mutex added to the table.
+   * 
+   * @param key the key identifying the lock
+   * @throws FlexLockException unexpected exception
+   * @return a new or existing mutex
+   */
+  private Mutex<Long> acquireMutex(final long key) throws FlexLockException {
+    final Mutex<Long> known = mutexes.get(key);
+    if (known != null && tryReferenceMutex(known))
+      return acquireMutex(known);
+    final Mutex<Long> mutex = referenceMutex(key);
+    mutexes.put(key, mutex);
+    return acquireMutex(mutex);
+  }
+
+  @Override
+  void retiredWhileLocked(final Mutex<Long> mutex) {
+    mutexes.remove(mutex.key, mutex);
+  }
+
+}
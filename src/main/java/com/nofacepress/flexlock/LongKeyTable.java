@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hash table from primitive long keys to values, with open addressing and
+ * linear probing over parallel arrays. Lookups take no lock and neither box
+ * the key nor allocate; updates take a lock. Removed entries leave a marker
+ * behind until the table is rebuilt, which happens when live and removed
+ * entries fill half of it.
+ *
+ * @param <T> the type of the values
+ */
+class LongKeyTable<T> {
+
+  private static final int MIN_CAPACITY = 16;
+  private static final Object REMOVED = new Object();
+
+  private static class Table {
+    final long[] keys;
+    final AtomicReferenceArray<Object> values;
+    final int mask;
+
+    Table(final int capacity) {
+      keys = new long[capacity];
+      values = new AtomicReferenceArray<Object>(capacity);
+      mask = capacity - 1;
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile Table table = new Table(MIN_CAPACITY);
+  // slots taken by live or removed entries, and live entries, guarded by lock
+  private int used = 0;
+  private int size = 0;
+
+  /**
+   * @param key the key
+   * @return the value of the key, null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  T get(final long key) {
+    final Table current = table;
+    for (int i = indexOf(key, current.mask);; i = (i + 1) & current.mask) {
+      // the key of a slot is written before its value is published
+      final Object value = current.values.get(i);
+      if (value == null)
+        return null;
+      if (current.keys[i] == key)
+        return value == REMOVED ? null : (T) value;
+    }
+  }
+
+  /**
+   * Sets the value of a key, replacing any value it had.
+   * 
+   * @param key   the key
+   * @param value the value
+   */
+  void put(final long key, final T value) {
+    lock.lock();
+    try {
+      if ((used + 1) * 2 > table.keys.length)
+        rebuild();
+      final Table current = table;
+      int i = indexOf(key, current.mask);
+      for (;; i = (i + 1) & current.mask) {
+        final Object old = current.values.get(i);
+        if (old == null) {
+          used++;
+          break;
+        }
+        if (current.keys[i] == key) {
+          if (old != REMOVED)
+            size--;
+          break;
+        }
+      }
+      current.keys[i] = key;
+      current.values.set(i, value);
+      size++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a key if it still has the given value.
+   * 
+   * @param key   the key
+   * @param value the value expected
+   */
+  void remove(final long key, final T value) {
+    lock.lock();
+    try {
+      final Table current = table;
+      for (int i = indexOf(key, current.mask);; i = (i + 1) & current.mask) {
+        final Object old = current.values.get(i);
+        if (old == null)
+          return;
+        if (current.keys[i] == key) {
+          if (old == value) {
+            current.values.set(i, REMOVED);
+            size--;
+          }
+          return;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of keys with a value
+   */
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Copies the live entries to a new table sized for them, dropping removed
+   * ones. Readers keep using the old table until the new one is published.
+   */
+  private void rebuild() {
+    final Table old = table;
+    int capacity = MIN_CAPACITY;
+    while (capacity < (size + 1) * 4)
+      capacity <<= 1;
+    final Table rebuilt = new Table(capacity);
+    for (int j = 0; j < old.keys.length; j++) {
+      final Object value = old.values.get(j);
+      if (value == null || value == REMOVED)
+        continue;
+      int i = indexOf(old.keys[j], rebuilt.mask);
+      while (rebuilt.values.get(i) != null)
+        i = (i + 1) & rebuilt.mask;
+      rebuilt.keys[i] = old.keys[j];
+      rebuilt.values.set(i, value);
+    }
+    used = size;
+    table = rebuilt;
+  }
+
+  private static int indexOf(final long key, final int mask) {
+    final long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash >>> 32) & mask;
+  }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import java.io.File;
+import java.io.IOException;
+import com.nofacepress.flexlock.adapter.MappedFileFlexLockAdapter;
+
+/**
+ * Registry locking across the processes of one host through a shared
+ * memory-mapped file.
+ */
+public class MappedFileFlexLockRegistry<KeyType> extends FlexLockRegistry<KeyType> {
+
+  public MappedFileFlexLockRegistry(final File file) throws IOException {
+    super(new MappedFileFlexLockAdapter<KeyType>(file));
+  }
+
+  public MappedFileFlexLockRegistry(final File file, final int slotCount) throws IOException {
+    super(new MappedFileFlexLockAdapter<KeyType>(file, slotCount));
+  }
+}
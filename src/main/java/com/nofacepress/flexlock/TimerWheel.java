@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel for the expiry of locks held in memory. Time is cut into
+ * ticks and every deadline goes into the slot of its tick, modulo the number
+ * of slots; deadlines more than one turn of the wheel away stay in their slot
+ * for later turns. Scheduling takes constant time and a tick only looks at one
+ * slot. Slots keep their arrays, so the wheel does not allocate once it has
+ * grown to its working size.
+ *
+ * @param <T> the type of the scheduled items
+ */
+class TimerWheel<T> {
+
+  public static int DEFAULT_SLOTS = 512;
+
+  /**
+   * Receives the entries that are due.
+   * 
+   * @param <T> the type of the scheduled items
+   */
+  interface Expiry<T> {
+    void expired(T item, long deadline);
+  }
+
+  private static class Slot {
+    long[] deadlines = new long[4];
+    Object[] items = new Object[4];
+    int size = 0;
+  }
+
+  private final long tickInMilliseconds;
+  private final Slot[] slots;
+  private final ReentrantLock lock = new ReentrantLock();
+  private long nextTick;
+  private int size = 0;
+  // due entries of the current call to expire, handed out after unlocking
+  private long[] dueDeadlines = new long[16];
+  private Object[] dueItems = new Object[16];
+
+  /**
+   * Constructor
+   * 
+   * @param tickInMilliseconds the length of a tick
+   * @param slotCount          the number of slots, one turn of the wheel
+   * @param now                the current time
+   */
+  TimerWheel(final long tickInMilliseconds, final int slotCount, final long now) {
+    this.tickInMilliseconds = tickInMilliseconds;
+    this.slots = new Slot[slotCount];
+    for (int i = 0; i < slotCount; i++)
+      slots[i] = new Slot();
+    this.nextTick = now / tickInMilliseconds;
+  }
+
+  long getTickInMilliseconds() {
+    return tickInMilliseconds;
+  }
+
+  boolean isEmpty() {
+    lock.lock();
+    try {
+      return size == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Schedules an item. A deadline in a tick already passed is due on the next
+   * call to expire.
+   * 
+   * @param item     the item
+   * @param deadline the time the item is due after
+   */
+  void schedule(final T item, final long deadline) {
+    lock.lock();
+    try {
+      final long tick = Math.max(deadline / tickInMilliseconds, nextTick);
+      final Slot slot = slots[(int) (tick % slots.length)];
+      if (slot.size == slot.deadlines.length) {
+        slot.deadlines = Arrays.copyOf(slot.deadlines, slot.size * 2);
+        slot.items = Arrays.copyOf(slot.items, slot.size * 2);
+      }
+      slot.deadlines[slot.size] = deadline;
+      slot.items[slot.size++] = item;
+      size++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hands every entry of the ticks completed since the last call to expiry,
+   * outside of the wheel's lock so that it may schedule again. Calls must not
+   * overlap.
+   * 
+   * @param now    the current time
+   * @param expiry the receiver of the due entries
+   */
+  @SuppressWarnings("unchecked")
+  void expire(final long now, final Expiry<T> expiry) {
+    int due = 0;
+    lock.lock();
+    try {
+      final long currentTick = now / tickInMilliseconds;
+      // after more than a turn without a call every slot is looked at once
+      for (long tick = Math.max(nextTick, currentTick - slots.length); tick < currentTick; tick++)
+        due = collect(slots[(int) (tick % slots.length)], (tick + 1) * tickInMilliseconds, due);
+      nextTick = Math.max(nextTick, currentTick);
+      size -= due;
+    } finally {
+      lock.unlock();
+    }
+    for (int i = 0; i < due; i++) {
+      final T item = (T) dueItems[i];
+      dueItems[i] = null;
+      expiry.expired(item, dueDeadlines[i]);
+    }
+  }
+
+  /**
+   * Moves the entries of a slot due before the end of its tick to the due
+   * entries, keeping those of later turns.
+   */
+  private int collect(final Slot slot, final long end, final int due) {
+    int count = due;
+    int kept = 0;
+    for (int i = 0; i < slot.size; i++) {
+      final long deadline = slot.deadlines[i];
+      if (deadline < end) {
+        if (count == dueDeadlines.length) {
+          dueDeadlines = Arrays.copyOf(dueDeadlines, count * 2);
+          dueItems = Arrays.copyOf(dueItems, count * 2);
+        }
+        dueDeadlines[count] = deadline;
+        dueItems[count++] = slot.items[i];
+      } else {
+        slot.deadlines[kept] = deadline;
+        slot.items[kept++] = slot.items[i];
+      }
+    }
+    for (int i = kept; i < slot.size; i++)
+      slot.items[i] = null;
+    slot.size = kept;
+    return count;
+  }
+
+}
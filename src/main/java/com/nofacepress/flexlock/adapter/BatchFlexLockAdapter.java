@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import java.util.List;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Adapter that can work on several locks in one round trip. Keys are always
+ * passed in the registry's canonical order so that concurrent batches claim
+ * them in the same order.
+ */
+public interface BatchFlexLockAdapter<KeyType> extends FlexLockAdapter<KeyType> {
+
+  /**
+   * Ensure that the keys exist, creating new ones if necessary.
+   * 
+   * @param keys the keys identifying the locks
+   * @throws Exception an unexpected error
+   */
+  void ensureKeysExistCreatingIfNessessary(List<KeyType> keys) throws Exception;
+
+  /**
+   * Tries to obtain all of the locks without blocking. Either every lock is
+   * obtained or none of them are.
+   * 
+   * @param keys       the keys identifying the locks
+   * @param handles    the associated handles, one for each key
+   * @param now        the current time
+   * @param expireTime the expiration time for the locks
+   * @return true if successful
+   * @throws Exception an unexpected error
+   */
+  boolean tryLockAll(List<KeyType> keys, List<FlexLockHandle> handles, long now, long expireTime) throws Exception;
+
+  /**
+   * Unlocks several locks. Non-existing or already expired locks are ignored.
+   * 
+   * @param keys    the keys identifying the locks
+   * @param handles the associated handles, one for each key
+   * @throws Exception an unexpected error
+   */
+  void unlockAll(List<KeyType> keys, List<FlexLockHandle> handles) throws Exception;
+
+}
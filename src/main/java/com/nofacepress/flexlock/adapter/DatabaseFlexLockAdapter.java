@@ -18,26 +18,83 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.DataSource;
 import org.apache.commons.dbcp2.BasicDataSource;
+import com.nofacepress.flexlock.adapter.dialect.MutexTable;
+import com.nofacepress.flexlock.adapter.dialect.SqlDialect;
+import com.nofacepress.flexlock.adapter.dialect.SqlDialects;
+import com.nofacepress.flexlock.adapter.dialect.SqlStatement;
 import com.nofacepress.flexlock.handle.FlexLockHandle;
+import com.nofacepress.flexlock.handle.OwnerToken;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 
 /**
- * Internal class for handling lock activity from a database.
+ * Internal class for handling lock activity from a database. Shared locks need
+ * a readers column, see Builder.readersColumnName, and semaphores a permit
+ * table, see Builder.permitTableName.
  */
 @ToString
-public class DatabaseFlexLockAdapter<KeyType> implements FlexLockAdapter<KeyType> {
+public class DatabaseFlexLockAdapter<KeyType> implements RenewableFlexLockAdapter<KeyType>,
+    BatchFlexLockAdapter<KeyType>, SharedFlexLockAdapter<KeyType>, SemaphoreFlexLockAdapter<KeyType>,
+    ExpiryAwareFlexLockAdapter<KeyType> {
 
-  private static class SQL {
-    static final String TABLE_KEY = "[MUTEX_TABLE]";
-    static final String PRIMARY_KEY = "[PRIMARY_KEY]";
-    static final String EXPIRE_TIME = "[EXPIRE_TIME]";
-    static final String OWNER = "[OWNER]";
-    static final String TRY_LOCK_UPDATE = "update [MUTEX_TABLE] set [OWNER]=?, [EXPIRE_TIME]=? where [PRIMARY_KEY]=? and [EXPIRE_TIME]<=?";
-    static final String MUTEX_EXISTS = "select 1 from [MUTEX_TABLE] where [PRIMARY_KEY]=?";
-    static final String INSERT_MUTEX = "insert into [MUTEX_TABLE] ([PRIMARY_KEY], [EXPIRE_TIME]) values (?, 0)";
-    static final String TRY_UNLOCK_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=0 where [PRIMARY_KEY]=? and [OWNER]=?";
-    static final String FORCE_UNLOCK_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=0 where [PRIMARY_KEY]=?";
+  /**
+   * The statements of the dialect, with the table and column names filled in.
+   */
+  private static class Statements {
+    final SqlDialect dialect;
+    final SqlStatement tryLock;
+    final SqlStatement upsertLock;
+    final SqlStatement ownedBy;
+    final SqlStatement selectExpireTime;
+    final SqlStatement keyExists;
+    final SqlStatement insertKey;
+    final SqlStatement selectKeys;
+    final SqlStatement selectKeysAfter;
+    final SqlStatement unlock;
+    final SqlStatement forceUnlock;
+    final SqlStatement renew;
+    final SqlStatement tryLockShared;
+    final SqlStatement unlockShared;
+    final SqlStatement acquirePermit;
+    final SqlStatement releasePermit;
+    final SqlStatement selectPermitSlots;
+    final SqlStatement insertPermitSlot;
+
+    Statements(final SqlDialect dialect, final MutexTable table, final MutexTable permitTable) {
+      this.dialect = dialect;
+      tryLock = dialect.tryLock(table);
+      upsertLock = dialect.upsertLock(table);
+      ownedBy = dialect.ownedBy(table);
+      selectExpireTime = dialect.selectExpireTime(table);
+      keyExists = dialect.keyExists(table);
+      insertKey = dialect.insertKey(table);
+      selectKeys = dialect.selectKeys(table);
+      selectKeysAfter = dialect.selectKeysAfter(table);
+      unlock = dialect.unlock(table);
+      forceUnlock = dialect.forceUnlock(table);
+      renew = dialect.renew(table, MAX_RENEWALS_PER_STATEMENT);
+      tryLockShared = table.hasReaders() ? dialect.tryLockShared(table) : null;
+      unlockShared = table.hasReaders() ? dialect.unlockShared(table) : null;
+      acquirePermit = permitTable != null ? dialect.acquirePermit(permitTable) : null;
+      releasePermit = permitTable != null ? dialect.unlock(permitTable) : null;
+      selectPermitSlots = permitTable != null ? dialect.selectPermitSlots(permitTable) : null;
+      insertPermitSlot = permitTable != null ? dialect.insertPermitSlot(permitTable) : null;
+    }
   }
 
   static interface PrimaryKeyStatementSetter<KeyType> {
@@ -48,17 +105,58 @@ public class DatabaseFlexLockAdapter<KeyType> implements FlexLockAdapter<KeyType
   public static final String DEFAULT_PRIMARY_KEY = "mutex_id";
   public static final String DEFAULT_EXPIRE_TIME_COL = "expire_time";
   public static final String DEFAULT_OWNER_COL = "owner";
+  public static final String DEFAULT_SLOT_COL = "slot";
   private static final int MAX_PREPARED_STATEMENTS = 20;
+  private static final int MAX_RENEWALS_PER_STATEMENT = 100;
+  public static final int DEFAULT_KNOWN_KEY_CACHE_SIZE = 10000;
 
+  /**
+   * The owner stored in the rows of shared locks, which have no single owner.
+   */
+  private static final OwnerToken SHARED_OWNER = new OwnerToken(0, 0);
+
+  private final DataSource dataSource;
   private final BasicDataSource connectionPool;
-  private final String tryLockStatementSql;
-  private final String mutexExistsStatementSql;
-  private final String insertMutexStatementSql;
-  private final String tryUnlockStatementSql;
-  private final String forceUnlockStatementSql;
+  private final ThreadLocal<Connection> pinnedConnection = new ThreadLocal<Connection>();
+  private final Map<Thread, Connection> pinnedConnections = new ConcurrentHashMap<Thread, Connection>();
+  private final MutexTable table;
+  private final MutexTable permitTable;
+  private volatile Statements statements = null;
+  private volatile KnownKeyCache<KeyType> knownKeys = new KnownKeyCache<KeyType>(DEFAULT_KNOWN_KEY_CACHE_SIZE);
+  private volatile KnownKeyCache<Map.Entry<KeyType, Integer>> knownPermitSlots;
 
   private PrimaryKeyStatementSetter<KeyType> primaryKeyStatementSetter = null;
 
+  /**
+   * How the owner token is stored in the owner column.
+   */
+  @Getter
+  @Setter
+  private OwnerColumnType ownerColumnType = OwnerColumnType.STRING;
+
+  /**
+   * Whether tryLock creates missing rows itself, using the upsert statement of
+   * the dialect (MERGE on H2, INSERT ... ON CONFLICT on PostgreSQL, INSERT ...
+   * ON DUPLICATE KEY on MySQL and MariaDB). A first lock then costs one
+   * statement and ensureKeyExistsCreatingIfNessessary does nothing. Dialects
+   * without an upsert statement always check for and insert rows separately.
+   */
+  @Getter
+  @Setter
+  private boolean upsertOnLock = true;
+
+  /**
+   * Whether each thread keeps the connection it first borrows instead of
+   * returning it after every statement. This saves the borrow and return on
+   * every poll, but holds one connection per calling thread until close, so
+   * the pool must allow at least as many connections as there are threads
+   * locking. Not meant for virtual threads. A connection that fails is
+   * returned and replaced. Connections of threads that have ended are
+   * returned the next time a thread pins one.
+   */
+  @Getter
+  private final boolean pinConnectionPerThread;
+
   public DatabaseFlexLockAdapter(final String dbDriver, final String dbUrl, final String dbUser,
       final String dbPassword) throws SQLException, ClassNotFoundException {
     this(dbDriver, dbUrl, dbUser, dbPassword, DEFAULT_TABLE_NAME, DEFAULT_PRIMARY_KEY, DEFAULT_EXPIRE_TIME_COL,
@@ -74,64 +172,450 @@ public class DatabaseFlexLockAdapter<KeyType> implements FlexLockAdapter<KeyType
   public DatabaseFlexLockAdapter(final String dbDriver, final String dbUrl, final String dbUser,
       final String dbPassword, final String tableName, final String primaryKeyName, final String expiresColumnName,
       final String ownerColumnName) throws SQLException, ClassNotFoundException {
+    this(new Builder<KeyType>().driver(dbDriver).url(dbUrl).user(dbUser).password(dbPassword).tableName(tableName)
+        .primaryKeyName(primaryKeyName).expiresColumnName(expiresColumnName).ownerColumnName(ownerColumnName));
+  }
+
+  /**
+   * Constructor using an existing data source, for instance the application's
+   * own connection pool.
+   * 
+   * @param dataSource the data source
+   * @param tableName  the lock table
+   */
+  public DatabaseFlexLockAdapter(final DataSource dataSource, final String tableName) {
+    this(dataSource, tableName, DEFAULT_PRIMARY_KEY, DEFAULT_EXPIRE_TIME_COL, DEFAULT_OWNER_COL);
+  }
 
-    tryLockStatementSql = SQL.TRY_LOCK_UPDATE.replace(SQL.TABLE_KEY, tableName).replace(SQL.PRIMARY_KEY, primaryKeyName)
-        .replace(SQL.EXPIRE_TIME, expiresColumnName).replace(SQL.OWNER, ownerColumnName);
-    mutexExistsStatementSql = SQL.MUTEX_EXISTS.replace(SQL.TABLE_KEY, tableName)
-        .replace(SQL.PRIMARY_KEY, primaryKeyName).replace(SQL.EXPIRE_TIME, expiresColumnName)
-        .replace(SQL.OWNER, ownerColumnName);
-    insertMutexStatementSql = SQL.INSERT_MUTEX.replace(SQL.TABLE_KEY, tableName)
-        .replace(SQL.PRIMARY_KEY, primaryKeyName).replace(SQL.EXPIRE_TIME, expiresColumnName)
-        .replace(SQL.OWNER, ownerColumnName);
-    tryUnlockStatementSql = SQL.TRY_UNLOCK_UPDATE.replace(SQL.TABLE_KEY, tableName)
-        .replace(SQL.PRIMARY_KEY, primaryKeyName).replace(SQL.EXPIRE_TIME, expiresColumnName)
-        .replace(SQL.OWNER, ownerColumnName);
-    forceUnlockStatementSql = SQL.FORCE_UNLOCK_UPDATE.replace(SQL.TABLE_KEY, tableName)
-        .replace(SQL.PRIMARY_KEY, primaryKeyName).replace(SQL.EXPIRE_TIME, expiresColumnName)
-        .replace(SQL.OWNER, ownerColumnName);
+  /**
+   * Constructor using an existing data source, for instance the application's
+   * own connection pool.
+   * 
+   * @param dataSource        the data source
+   * @param tableName         the lock table
+   * @param primaryKeyName    the primary key column
+   * @param expiresColumnName the expiration time column
+   * @param ownerColumnName   the owner column
+   */
+  public DatabaseFlexLockAdapter(final DataSource dataSource, final String tableName, final String primaryKeyName,
+      final String expiresColumnName, final String ownerColumnName) {
+    this(new Builder<KeyType>().dataSource(dataSource).tableName(tableName).primaryKeyName(primaryKeyName)
+        .expiresColumnName(expiresColumnName).ownerColumnName(ownerColumnName));
+  }
 
+  private DatabaseFlexLockAdapter(final Builder<KeyType> builder) {
+    table = new MutexTable(builder.tableName, builder.primaryKeyName, builder.expiresColumnName,
+        builder.ownerColumnName, builder.readersColumnName);
+    permitTable = builder.permitTableName == null ? null
+        : new MutexTable(builder.permitTableName, builder.primaryKeyName, builder.expiresColumnName,
+            builder.ownerColumnName, null, builder.slotColumnName);
+    knownPermitSlots = new KnownKeyCache<Map.Entry<KeyType, Integer>>(DEFAULT_KNOWN_KEY_CACHE_SIZE);
+    pinConnectionPerThread = builder.pinConnectionPerThread;
+
+    if (builder.dataSource != null) {
+      connectionPool = null;
+      dataSource = builder.dataSource;
+      return;
+    }
     connectionPool = new BasicDataSource();
-    connectionPool.setDriverClassName(dbDriver);
-    connectionPool.setUrl(dbUrl);
-    connectionPool.setInitialSize(1);
-    connectionPool.setPoolPreparedStatements(true);
-    connectionPool.setMaxOpenPreparedStatements(MAX_PREPARED_STATEMENTS);
-    if (dbUser != null && !dbUser.isEmpty()) {
-      connectionPool.setUsername(dbUser);
-      connectionPool.setPassword(dbPassword);
+    connectionPool.setDriverClassName(builder.driver);
+    connectionPool.setUrl(builder.url);
+    connectionPool.setInitialSize(builder.initialPoolSize);
+    if (builder.maxPoolSize != 0)
+      connectionPool.setMaxTotal(builder.maxPoolSize);
+    if (builder.maxIdle != 0)
+      connectionPool.setMaxIdle(builder.maxIdle);
+    connectionPool.setMinIdle(builder.minIdle);
+    connectionPool.setPoolPreparedStatements(builder.maxOpenPreparedStatements != 0);
+    connectionPool.setMaxOpenPreparedStatements(builder.maxOpenPreparedStatements);
+    if (builder.user != null && !builder.user.isEmpty()) {
+      connectionPool.setUsername(builder.user);
+      connectionPool.setPassword(builder.password);
     }
+    dataSource = connectionPool;
   }
 
-  /*
-   * (non-Javadoc)
+  /**
+   * @param <KeyType> the key class
+   * @return a builder for an adapter
+   */
+  public static <KeyType> Builder<KeyType> builder() {
+    return new Builder<KeyType>();
+  }
+
+  /**
+   * Builds an adapter either on an existing data source or on its own
+   * connection pool configured here.
    * 
-   * @see
-   * com.dtis.common.mutex.MutexAdapter#ensureKeyExistsCreatingIfNessessary(java.
-   * lang.String)
+   * @param <KeyType> the key class
    */
-  public void ensureKeyExistsCreatingIfNessessary(final KeyType key) throws Exception {
+  @ToString(exclude = { "password", "dataSource" })
+  public static class Builder<KeyType> {
+    private DataSource dataSource = null;
+    private String driver = null;
+    private String url = null;
+    private String user = null;
+    private String password = null;
+    private String tableName = DEFAULT_TABLE_NAME;
+    private String primaryKeyName = DEFAULT_PRIMARY_KEY;
+    private String expiresColumnName = DEFAULT_EXPIRE_TIME_COL;
+    private String ownerColumnName = DEFAULT_OWNER_COL;
+    private String readersColumnName = null;
+    private String permitTableName = null;
+    private String slotColumnName = DEFAULT_SLOT_COL;
+    private int initialPoolSize = 1;
+    private int maxPoolSize = 0;
+    private int maxIdle = 0;
+    private int minIdle = 0;
+    private int maxOpenPreparedStatements = MAX_PREPARED_STATEMENTS;
+    private boolean pinConnectionPerThread = false;
+
+    /**
+     * @param dataSource an existing data source to use instead of a pool of
+     *                   its own; the driver, url, credentials and pool settings
+     *                   are then ignored
+     * @return this builder
+     */
+    public Builder<KeyType> dataSource(final DataSource dataSource) {
+      this.dataSource = dataSource;
+      return this;
+    }
+
+    /**
+     * @param driver the JDBC driver class name
+     * @return this builder
+     */
+    public Builder<KeyType> driver(final String driver) {
+      this.driver = driver;
+      return this;
+    }
+
+    /**
+     * @param url the JDBC url
+     * @return this builder
+     */
+    public Builder<KeyType> url(final String url) {
+      this.url = url;
+      return this;
+    }
+
+    /**
+     * @param user the database user, none if null or empty
+     * @return this builder
+     */
+    public Builder<KeyType> user(final String user) {
+      this.user = user;
+      return this;
+    }
+
+    /**
+     * @param password the database password
+     * @return this builder
+     */
+    public Builder<KeyType> password(final String password) {
+      this.password = password;
+      return this;
+    }
+
+    /**
+     * @param tableName the lock table
+     * @return this builder
+     */
+    public Builder<KeyType> tableName(final String tableName) {
+      this.tableName = tableName;
+      return this;
+    }
+
+    /**
+     * @param primaryKeyName the primary key column
+     * @return this builder
+     */
+    public Builder<KeyType> primaryKeyName(final String primaryKeyName) {
+      this.primaryKeyName = primaryKeyName;
+      return this;
+    }
+
+    /**
+     * @param expiresColumnName the expiration time column
+     * @return this builder
+     */
+    public Builder<KeyType> expiresColumnName(final String expiresColumnName) {
+      this.expiresColumnName = expiresColumnName;
+      return this;
+    }
+
+    /**
+     * @param ownerColumnName the owner column
+     * @return this builder
+     */
+    public Builder<KeyType> ownerColumnName(final String ownerColumnName) {
+      this.ownerColumnName = ownerColumnName;
+      return this;
+    }
+
+    /**
+     * @param readersColumnName the integer column counting the holders of a
+     *                          shared lock, null by default for a table without
+     *                          shared locks
+     * @return this builder
+     */
+    public Builder<KeyType> readersColumnName(final String readersColumnName) {
+      this.readersColumnName = readersColumnName;
+      return this;
+    }
+
+    /**
+     * @param permitTableName the table holding the permits of semaphores, with
+     *                        the same key, expiration time and owner columns as
+     *                        the lock table plus a slot column, the slot being
+     *                        part of the primary key; null by default for no
+     *                        semaphores
+     * @return this builder
+     */
+    public Builder<KeyType> permitTableName(final String permitTableName) {
+      this.permitTableName = permitTableName;
+      return this;
+    }
+
+    /**
+     * @param slotColumnName the integer column numbering the permits of a
+     *                       semaphore in the permit table, "slot" by default
+     * @return this builder
+     */
+    public Builder<KeyType> slotColumnName(final String slotColumnName) {
+      this.slotColumnName = slotColumnName;
+      return this;
+    }
+
+    /**
+     * @param initialPoolSize the connections opened up front, 1 by default
+     * @return this builder
+     */
+    public Builder<KeyType> initialPoolSize(final int initialPoolSize) {
+      this.initialPoolSize = initialPoolSize;
+      return this;
+    }
+
+    /**
+     * @param maxPoolSize the most connections open at once, negative for no
+     *                    limit, 0 for the pool default
+     * @return this builder
+     */
+    public Builder<KeyType> maxPoolSize(final int maxPoolSize) {
+      this.maxPoolSize = maxPoolSize;
+      return this;
+    }
+
+    /**
+     * @param maxIdle the most idle connections kept open, negative for no limit,
+     *                0 for the pool default
+     * @return this builder
+     */
+    public Builder<KeyType> maxIdle(final int maxIdle) {
+      this.maxIdle = maxIdle;
+      return this;
+    }
+
+    /**
+     * @param minIdle the fewest idle connections kept open
+     * @return this builder
+     */
+    public Builder<KeyType> minIdle(final int minIdle) {
+      this.minIdle = minIdle;
+      return this;
+    }
+
+    /**
+     * @param maxOpenPreparedStatements the prepared statements cached per
+     *                                  connection, 0 to not cache them
+     * @return this builder
+     */
+    public Builder<KeyType> maxOpenPreparedStatements(final int maxOpenPreparedStatements) {
+      this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+      return this;
+    }
+
+    /**
+     * @param pinConnectionPerThread whether each thread keeps the connection it
+     *                               first borrows, see
+     *                               DatabaseFlexLockAdapter.isPinConnectionPerThread
+     * @return this builder
+     */
+    public Builder<KeyType> pinConnectionPerThread(final boolean pinConnectionPerThread) {
+      this.pinConnectionPerThread = pinConnectionPerThread;
+      return this;
+    }
+
+    /**
+     * @return the adapter
+     */
+    public DatabaseFlexLockAdapter<KeyType> build() {
+      if (dataSource == null && url == null)
+        throw new IllegalStateException("Either a data source or a url is needed");
+      return new DatabaseFlexLockAdapter<KeyType>(this);
+    }
+  }
+
+  /**
+   * Closes the pinned connections and, if the adapter made its own, the
+   * connection pool. A data source passed in is left open.
+   * 
+   * @throws SQLException an unexpected error
+   */
+  public void close() throws SQLException {
+    final Iterator<Connection> pinned = pinnedConnections.values().iterator();
+    while (pinned.hasNext()) {
+      final Connection connection = pinned.next();
+      pinned.remove();
+      connection.close();
+    }
+    if (connectionPool != null)
+      connectionPool.close();
+  }
+
+  /**
+   * @return the SQL dialect, null until it has been set or detected from the
+   *         first connection
+   */
+  public SqlDialect getSqlDialect() {
+    final Statements current = statements;
+    return current == null ? null : current.dialect;
+  }
+
+  /**
+   * Sets the SQL dialect instead of detecting it from the database.
+   * 
+   * @param sqlDialect the dialect
+   */
+  public void setSqlDialect(final SqlDialect sqlDialect) {
+    statements = new Statements(sqlDialect, table, permitTable);
+  }
+
+  /**
+   * @return the maximum number of keys remembered as having a row, 0 if they
+   *         are always looked up
+   */
+  public int getKnownKeyCacheSize() {
+    final KnownKeyCache<KeyType> cache = knownKeys;
+    return cache == null ? 0 : cache.capacity();
+  }
+
+  /**
+   * Sets how many keys are remembered as having a row, so that
+   * ensureKeyExistsCreatingIfNessessary does not look them up again. The least
+   * recently used keys are forgotten first. Rows must not be deleted while they
+   * are remembered, see clearKnownKeys. Changing the size forgets every key.
+   * The same number of semaphores is remembered as having their permit rows.
+   * 
+   * @param knownKeyCacheSize the maximum number of keys, 0 to always look them
+   *                          up
+   */
+  public void setKnownKeyCacheSize(final int knownKeyCacheSize) {
+    knownKeys = knownKeyCacheSize > 0 ? new KnownKeyCache<KeyType>(knownKeyCacheSize) : null;
+    knownPermitSlots = knownKeyCacheSize > 0 ? new KnownKeyCache<Map.Entry<KeyType, Integer>>(knownKeyCacheSize)
+        : null;
+  }
+
+  /**
+   * @return the number of keys currently remembered as having a row
+   */
+  public int getKnownKeyCount() {
+    final KnownKeyCache<KeyType> cache = knownKeys;
+    return cache == null ? 0 : cache.size();
+  }
+
+  /**
+   * Forgets every key remembered as having a row, for instance after rows have
+   * been deleted.
+   */
+  public void clearKnownKeys() {
+    final KnownKeyCache<KeyType> cache = knownKeys;
+    if (cache != null)
+      cache.clear();
+    final KnownKeyCache<Map.Entry<KeyType, Integer>> permitCache = knownPermitSlots;
+    if (permitCache != null)
+      permitCache.clear();
+  }
+
+  /**
+   * Remembers the keys already in the table, reading them in pages of key order,
+   * so that the first lock of each after a restart does not have to look it up.
+   * Stops once the known key cache is full.
+   * 
+   * @param keyType  the class of the keys, as read with ResultSet.getObject
+   * @param pageSize the number of keys read per query
+   * @return the number of keys read
+   * @throws SQLException an unexpected error
+   */
+  public int warmUpKnownKeys(final Class<KeyType> keyType, final int pageSize) throws SQLException {
+    final KnownKeyCache<KeyType> cache = knownKeys;
+    if (cache == null)
+      return 0;
+    int loaded = 0;
     PreparedStatement stmt = null;
     Connection connection = null;
     try {
-      connection = connectionPool.getConnection();
-      stmt = connection.prepareStatement(mutexExistsStatementSql);
-      setPrimaryKeyInStatement(stmt, 1, key);
-      final ResultSet results = stmt.executeQuery();
-      if (!results.next()) {
-        // need to insert it
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      KeyType last = null;
+      while (loaded < cache.capacity()) {
+        final SqlStatement select = last == null ? sql.selectKeys : sql.selectKeysAfter;
+        stmt = connection.prepareStatement(select.getSql());
+        stmt.setMaxRows(Math.min(pageSize, cache.capacity() - loaded));
+        if (last != null)
+          setInStatement(stmt, select, last, null, 0, 0);
+        int read = 0;
+        final ResultSet results = stmt.executeQuery();
+        while (results.next()) {
+          last = results.getObject(1, keyType);
+          cache.add(last);
+          read++;
+        }
+        results.close();
         stmt.close();
         stmt = null;
-        stmt = connection.prepareStatement(insertMutexStatementSql);
-        setPrimaryKeyInStatement(stmt, 1, key);
-        stmt.executeUpdate();
+        loaded += read;
+        if (read < pageSize)
+          break;
       }
     } catch (final SQLException e) {
+      unpinConnection(connection);
       throw e;
     } finally {
       if (stmt != null)
         stmt.close();
       if (connection != null)
-        connection.close();
+        releaseConnection(connection);
+    }
+    return loaded;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * com.dtis.common.mutex.MutexAdapter#ensureKeyExistsCreatingIfNessessary(java.
+   * lang.String)
+   */
+  public void ensureKeyExistsCreatingIfNessessary(final KeyType key) throws Exception {
+    final KnownKeyCache<KeyType> cache = knownKeys;
+    if (isUpsertActive(statements) || (cache != null && cache.contains(key)))
+      return;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      if (isUpsertActive(sql))
+        return;
+      insertKeyIfMissing(connection, sql, key);
+      if (cache != null)
+        cache.add(key);
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (connection != null)
+        releaseConnection(connection);
     }
   }
 
@@ -144,17 +628,19 @@ public class DatabaseFlexLockAdapter<KeyType> implements FlexLockAdapter<KeyType
     PreparedStatement stmt = null;
     Connection connection = null;
     try {
-      connection = connectionPool.getConnection();
-      stmt = connection.prepareStatement(forceUnlockStatementSql);
-      setPrimaryKeyInStatement(stmt, 1, key);
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      stmt = connection.prepareStatement(sql.forceUnlock.getSql());
+      setInStatement(stmt, sql.forceUnlock, key, null, 0, 0);
       stmt.executeUpdate();
     } catch (final SQLException e) {
+      unpinConnection(connection);
       throw e;
     } finally {
       if (stmt != null)
         stmt.close();
       if (connection != null)
-        connection.close();
+        releaseConnection(connection);
     }
   }
 
@@ -166,24 +652,49 @@ public class DatabaseFlexLockAdapter<KeyType> implements FlexLockAdapter<KeyType
    */
   public boolean tryLock(final KeyType key, final FlexLockHandle handle, final long now, final long expireTime)
       throws Exception {
+    return tryLock(key, handle, now, expireTime, false).isLocked();
+  }
+
+  /**
+   * Reads the expiration time of the row on the same connection when the claim
+   * fails, so only a refusal costs a second statement.
+   * 
+   * @see com.nofacepress.flexlock.adapter.ExpiryAwareFlexLockAdapter#tryLockReportingExpiry(java.lang.Object,
+   *      com.nofacepress.flexlock.handle.FlexLockHandle, long, long)
+   */
+  public TryLockResult tryLockReportingExpiry(final KeyType key, final FlexLockHandle handle, final long now,
+      final long expireTime) throws Exception {
+    return tryLock(key, handle, now, expireTime, true);
+  }
+
+  private TryLockResult tryLock(final KeyType key, final FlexLockHandle handle, final long now,
+      final long expireTime, final boolean reportExpiry) throws Exception {
     PreparedStatement stmt = null;
     Connection connection = null;
     try {
-      connection = connectionPool.getConnection();
-      stmt = connection.prepareStatement(tryLockStatementSql);
-      stmt.setString(1, handle.getUuid());
-      stmt.setLong(2, expireTime);
-      setPrimaryKeyInStatement(stmt, 3, key);
-      stmt.setLong(4, now);
-      final int updates = stmt.executeUpdate();
-      return updates > 0;
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      final boolean locked;
+      if (isUpsertActive(sql)) {
+        stmt = connection.prepareStatement(sql.upsertLock.getSql());
+        setInStatement(stmt, sql.upsertLock, key, handle, now, expireTime);
+        locked = isClaimedByUpsert(connection, sql, stmt.executeUpdate(), key, handle, expireTime);
+      } else {
+        stmt = connection.prepareStatement(sql.tryLock.getSql());
+        setInStatement(stmt, sql.tryLock, key, handle, now, expireTime);
+        locked = stmt.executeUpdate() > 0;
+      }
+      if (locked)
+        return TryLockResult.LOCKED;
+      return reportExpiry ? TryLockResult.refused(selectExpireTime(connection, sql, key)) : TryLockResult.REFUSED;
     } catch (final SQLException e) {
+      unpinConnection(connection);
       throw e;
     } finally {
       if (stmt != null)
         stmt.close();
       if (connection != null)
-        connection.close();
+        releaseConnection(connection);
     }
   }
 
@@ -197,18 +708,648 @@ public class DatabaseFlexLockAdapter<KeyType> implements FlexLockAdapter<KeyType
     PreparedStatement stmt = null;
     Connection connection = null;
     try {
-      connection = connectionPool.getConnection();
-      stmt = connection.prepareStatement(tryUnlockStatementSql);
-      setPrimaryKeyInStatement(stmt, 1, key);
-      stmt.setString(2, handle.getUuid());
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      stmt = connection.prepareStatement(sql.unlock.getSql());
+      setInStatement(stmt, sql.unlock, key, handle, 0, 0);
+      stmt.executeUpdate();
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null)
+        releaseConnection(connection);
+    }
+  }
+
+  public boolean supportsSharedLocks() {
+    return table.hasReaders();
+  }
+
+  /**
+   * Adds a holder with the shared lock statement of the dialect. When rows are
+   * created by upserts, a row that does not exist yet is inserted first.
+   * 
+   * @see com.nofacepress.flexlock.adapter.SharedFlexLockAdapter#tryLockShared(java.lang.Object,
+   *      long, long)
+   */
+  public boolean tryLockShared(final KeyType key, final long now, final long expireTime) throws Exception {
+    if (!table.hasReaders())
+      throw new UnsupportedOperationException("Shared locks need a readers column");
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      stmt = connection.prepareStatement(sql.tryLockShared.getSql());
+      setSharedInStatement(stmt, sql.tryLockShared, key, now, expireTime, 1);
+      if (stmt.executeUpdate() > 0)
+        return true;
+      if (!isUpsertActive(sql) || !insertKeyIfMissing(connection, sql, key))
+        return false;
+      return stmt.executeUpdate() > 0;
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null)
+        releaseConnection(connection);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * com.nofacepress.flexlock.adapter.SharedFlexLockAdapter#unlockShared(java.lang.
+   * Object, int, long)
+   */
+  public void unlockShared(final KeyType key, final int holders, final long now) throws Exception {
+    if (!table.hasReaders())
+      throw new UnsupportedOperationException("Shared locks need a readers column");
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      stmt = connection.prepareStatement(sql.unlockShared.getSql());
+      setSharedInStatement(stmt, sql.unlockShared, key, now, 0, holders);
       stmt.executeUpdate();
     } catch (final SQLException e) {
+      unpinConnection(connection);
       throw e;
     } finally {
       if (stmt != null)
         stmt.close();
       if (connection != null)
-        connection.close();
+        releaseConnection(connection);
+    }
+  }
+
+  public boolean supportsPermits() {
+    return permitTable != null;
+  }
+
+  /**
+   * Claims the first free permit with one conditional update. The permit rows
+   * of a semaphore are created the first time it is used with a number of
+   * permits. Two callers racing for the same free row may both fail even if
+   * another permit is free; the registry tries again like for a held lock.
+   * 
+   * @see com.nofacepress.flexlock.adapter.SemaphoreFlexLockAdapter#tryAcquirePermit(java.lang.Object,
+   *      com.nofacepress.flexlock.handle.FlexLockHandle, int, long, long)
+   */
+  public boolean tryAcquirePermit(final KeyType key, final FlexLockHandle handle, final int permits, final long now,
+      final long expireTime) throws Exception {
+    if (permitTable == null)
+      throw new UnsupportedOperationException("Semaphores need a permit table");
+    final KnownKeyCache<Map.Entry<KeyType, Integer>> cache = knownPermitSlots;
+    final Map.Entry<KeyType, Integer> semaphore = new SimpleImmutableEntry<KeyType, Integer>(key, permits);
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      if (cache == null || !cache.contains(semaphore)) {
+        insertPermitSlotsIfMissing(connection, sql, key, permits);
+        if (cache != null)
+          cache.add(semaphore);
+      }
+      stmt = connection.prepareStatement(sql.acquirePermit.getSql());
+      setInStatement(stmt, sql.acquirePermit, key, handle, now, expireTime, permits);
+      return stmt.executeUpdate() > 0;
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null)
+        releaseConnection(connection);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * com.nofacepress.flexlock.adapter.SemaphoreFlexLockAdapter#releasePermit(java.
+   * lang.Object, com.nofacepress.flexlock.handle.FlexLockHandle)
+   */
+  public void releasePermit(final KeyType key, final FlexLockHandle handle) throws Exception {
+    if (permitTable == null)
+      throw new UnsupportedOperationException("Semaphores need a permit table");
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      stmt = connection.prepareStatement(sql.releasePermit.getSql());
+      setInStatement(stmt, sql.releasePermit, key, handle, 0, 0);
+      stmt.executeUpdate();
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null)
+        releaseConnection(connection);
+    }
+  }
+
+  /**
+   * Looks the keys not already known up on one connection and inserts the
+   * missing ones in a single batch.
+   * 
+   * @see com.nofacepress.flexlock.adapter.BatchFlexLockAdapter#ensureKeysExistCreatingIfNessessary(java.util.List)
+   */
+  public void ensureKeysExistCreatingIfNessessary(final List<KeyType> allKeys) throws Exception {
+    if (isUpsertActive(statements))
+      return;
+    final KnownKeyCache<KeyType> cache = knownKeys;
+    final List<KeyType> keys;
+    if (cache == null) {
+      keys = allKeys;
+    } else {
+      keys = new ArrayList<KeyType>(allKeys.size());
+      for (final KeyType key : allKeys) {
+        if (!cache.contains(key))
+          keys.add(key);
+      }
+      if (keys.isEmpty())
+        return;
+    }
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      if (isUpsertActive(sql))
+        return;
+      stmt = connection.prepareStatement(sql.keyExists.getSql());
+      int missing = 0;
+      final boolean[] exists = new boolean[keys.size()];
+      for (int i = 0; i < exists.length; i++) {
+        setInStatement(stmt, sql.keyExists, keys.get(i), null, 0, 0);
+        final ResultSet results = stmt.executeQuery();
+        exists[i] = results.next();
+        results.close();
+        if (!exists[i])
+          missing++;
+      }
+      if (missing > 0) {
+        stmt.close();
+        stmt = null;
+        stmt = connection.prepareStatement(sql.insertKey.getSql());
+        for (int i = 0; i < exists.length; i++) {
+          if (!exists[i]) {
+            setInStatement(stmt, sql.insertKey, keys.get(i), null, 0, 0);
+            stmt.addBatch();
+          }
+        }
+        stmt.executeBatch();
+      }
+      if (cache != null) {
+        for (final KeyType key : keys)
+          cache.add(key);
+      }
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null)
+        releaseConnection(connection);
+    }
+  }
+
+  /**
+   * Claims every row with one batch of updates in a single transaction, rolling
+   * back if any of them is already locked.
+   * 
+   * @see com.nofacepress.flexlock.adapter.BatchFlexLockAdapter#tryLockAll(java.util.List,
+   *      java.util.List, long, long)
+   */
+  public boolean tryLockAll(final List<KeyType> keys, final List<FlexLockHandle> handles, final long now,
+      final long expireTime) throws Exception {
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    boolean committed = false;
+    try {
+      connection = getConnection();
+      connection.setAutoCommit(false);
+      final Statements sql = statements(connection);
+      if (isUpsertActive(sql)) {
+        stmt = connection.prepareStatement(sql.upsertLock.getSql());
+        for (int i = 0; i < keys.size(); i++) {
+          setInStatement(stmt, sql.upsertLock, keys.get(i), handles.get(i), now, expireTime);
+          stmt.addBatch();
+        }
+        final int[] counts = stmt.executeBatch();
+        for (int i = 0; i < counts.length; i++) {
+          if (!isClaimedByUpsert(connection, sql, counts[i], keys.get(i), handles.get(i), expireTime))
+            return false;
+        }
+      } else {
+        stmt = connection.prepareStatement(sql.tryLock.getSql());
+        for (int i = 0; i < keys.size(); i++) {
+          setInStatement(stmt, sql.tryLock, keys.get(i), handles.get(i), now, expireTime);
+          stmt.addBatch();
+        }
+        for (final int updates : stmt.executeBatch()) {
+          if (updates == 0 || updates == Statement.EXECUTE_FAILED)
+            return false;
+        }
+      }
+      connection.commit();
+      committed = true;
+      return true;
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null) {
+        try {
+          if (!committed)
+            connection.rollback();
+          connection.setAutoCommit(true);
+        } finally {
+          releaseConnection(connection);
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases every row with one batch of updates.
+   * 
+   * @see com.nofacepress.flexlock.adapter.BatchFlexLockAdapter#unlockAll(java.util.List,
+   *      java.util.List)
+   */
+  public void unlockAll(final List<KeyType> keys, final List<FlexLockHandle> handles) throws Exception {
+    PreparedStatement stmt = null;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      final Statements sql = statements(connection);
+      stmt = connection.prepareStatement(sql.unlock.getSql());
+      for (int i = 0; i < keys.size(); i++) {
+        setInStatement(stmt, sql.unlock, keys.get(i), handles.get(i), 0, 0);
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+    } catch (final SQLException e) {
+      unpinConnection(connection);
+      throw e;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+      if (connection != null)
+        releaseConnection(connection);
+    }
+  }
+
+  /**
+   * Extends the leases with the renewal statement of the dialect, split only
+   * when there are more than MAX_RENEWALS_PER_STATEMENT leases. When a
+   * statement extends only some of its leases, each of them is renewed again
+   * on its own to find out which; extending a lease twice to the same time
+   * changes nothing.
+   * 
+   * @see com.nofacepress.flexlock.adapter.RenewableFlexLockAdapter#renew(java.util.Map,
+   *      long, long)
+   */
+  public Set<KeyType> renew(final Map<KeyType, FlexLockHandle> leases, final long now, final long expireTime)
+      throws Exception {
+    final Set<KeyType> renewed = new HashSet<KeyType>();
+    int done = 0;
+    final Iterator<Map.Entry<KeyType, FlexLockHandle>> remaining = leases.entrySet().iterator();
+    while (remaining.hasNext()) {
+      final int count = Math.min(leases.size() - done, MAX_RENEWALS_PER_STATEMENT);
+      done += count;
+      final List<KeyType> keys = new ArrayList<KeyType>(count);
+      final List<OwnerToken> owners = new ArrayList<OwnerToken>(count);
+      for (int i = 0; i < count; i++) {
+        final Map.Entry<KeyType, FlexLockHandle> lease = remaining.next();
+        keys.add(lease.getKey());
+        owners.add(lease.getValue().getOwner());
+      }
+      PreparedStatement stmt = null;
+      Connection connection = null;
+      try {
+        connection = getConnection();
+        final Statements sql = statements(connection);
+        final SqlStatement renew = count == MAX_RENEWALS_PER_STATEMENT ? sql.renew
+            : sql.dialect.renew(table, count);
+        stmt = connection.prepareStatement(renew.getSql());
+        setInStatement(stmt, renew, keys, owners, now, expireTime, 0);
+        final int updated = stmt.executeUpdate();
+        if (updated == count) {
+          renewed.addAll(keys);
+        } else if (updated > 0) {
+          stmt.close();
+          final SqlStatement single = sql.dialect.renew(table, 1);
+          stmt = connection.prepareStatement(single.getSql());
+          for (int i = 0; i < count; i++) {
+            setInStatement(stmt, single, keys.subList(i, i + 1), owners.subList(i, i + 1), now, expireTime, 0);
+            if (stmt.executeUpdate() > 0)
+              renewed.add(keys.get(i));
+          }
+        }
+      } catch (final SQLException e) {
+        unpinConnection(connection);
+        throw e;
+      } finally {
+        if (stmt != null)
+          stmt.close();
+        if (connection != null)
+          releaseConnection(connection);
+      }
+    }
+    return renewed;
+  }
+
+  private Connection getConnection() throws SQLException {
+    if (!pinConnectionPerThread)
+      return dataSource.getConnection();
+    Connection connection = pinnedConnection.get();
+    if (connection == null || connection.isClosed()) {
+      releaseConnectionsOfEndedThreads();
+      connection = dataSource.getConnection();
+      pinnedConnection.set(connection);
+      pinnedConnections.put(Thread.currentThread(), connection);
+    }
+    return connection;
+  }
+
+  /**
+   * Returns the pinned connections of threads that have ended, which nothing
+   * can use anymore.
+   */
+  private void releaseConnectionsOfEndedThreads() {
+    final Iterator<Map.Entry<Thread, Connection>> pinned = pinnedConnections.entrySet().iterator();
+    while (pinned.hasNext()) {
+      final Map.Entry<Thread, Connection> entry = pinned.next();
+      if (entry.getKey().isAlive())
+        continue;
+      pinned.remove();
+      try {
+        entry.getValue().close();
+      } catch (final SQLException ignoreThisException) {
+        // the pool discards it
+      }
+    }
+  }
+
+  private void releaseConnection(final Connection connection) throws SQLException {
+    if (!pinConnectionPerThread || pinnedConnection.get() != connection)
+      connection.close();
+  }
+
+  /**
+   * Stops reusing the pinned connection of the thread after it failed, so it is
+   * closed instead of released.
+   * 
+   * @param connection the connection that failed
+   */
+  private void unpinConnection(final Connection connection) {
+    if (pinConnectionPerThread && connection != null && pinnedConnection.get() == connection) {
+      pinnedConnection.remove();
+      pinnedConnections.remove(Thread.currentThread(), connection);
+    }
+  }
+
+  /**
+   * The statements to use, for the dialect detected from the database the first
+   * time a connection is available unless one has been set.
+   * 
+   * @param connection an open connection
+   * @return the statements
+   * @throws SQLException if the database cannot be identified
+   */
+  private Statements statements(final Connection connection) throws SQLException {
+    Statements current = statements;
+    if (current == null) {
+      current = new Statements(SqlDialects.forDatabase(connection.getMetaData().getDatabaseProductName()), table,
+          permitTable);
+      statements = current;
+    }
+    return current;
+  }
+
+  private boolean isUpsertActive(final Statements sql) {
+    return upsertOnLock && sql != null && sql.upsertLock != null;
+  }
+
+  /**
+   * Inserts the row of a key unless it already exists. Another caller may
+   * insert the row between the check and the insert; the duplicate key error
+   * that follows means the row exists now, just as if this call inserted it.
+   * 
+   * @param connection an open connection
+   * @param sql        the statements
+   * @param key        the key identifying the lock
+   * @return true if the row was missing and exists now
+   * @throws SQLException an unexpected error
+   */
+  private boolean insertKeyIfMissing(final Connection connection, final Statements sql, final KeyType key)
+      throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(sql.keyExists.getSql());
+    try {
+      setInStatement(stmt, sql.keyExists, key, null, 0, 0);
+      final ResultSet results = stmt.executeQuery();
+      if (results.next())
+        return false;
+      // need to insert it
+      stmt.close();
+      stmt = null;
+      stmt = connection.prepareStatement(sql.insertKey.getSql());
+      setInStatement(stmt, sql.insertKey, key, null, 0, 0);
+      try {
+        stmt.executeUpdate();
+      } catch (final SQLException e) {
+        if (!isDuplicateKey(e))
+          throw e;
+      }
+      return true;
+    } finally {
+      if (stmt != null)
+        stmt.close();
+    }
+  }
+
+  /**
+   * @param e an exception from an insert
+   * @return true if the insert failed because the row already exists
+   */
+  private static boolean isDuplicateKey(final SQLException e) {
+    // SQL state class 23 is an integrity constraint violation
+    return e instanceof SQLIntegrityConstraintViolationException
+        || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+  }
+
+  /**
+   * Works out from the update count of an upsert whether the lock was claimed.
+   * When the dialect says a count of 1 is ambiguous, as on MySQL, that count is
+   * checked against the row.
+   * 
+   * @param connection the connection the upsert ran on
+   * @param sql        the statements
+   * @param updates    the update count
+   * @param key        the key identifying the lock
+   * @param handle     the associated handle
+   * @param expireTime the expiration time for the lock
+   * @return true if the lock was claimed
+   * @throws SQLException an unexpected error
+   */
+  private boolean isClaimedByUpsert(final Connection connection, final Statements sql, final int updates,
+      final KeyType key, final FlexLockHandle handle, final long expireTime) throws SQLException {
+    if (updates == 0 || updates == Statement.EXECUTE_FAILED)
+      return false;
+    if (updates != Statement.SUCCESS_NO_INFO && (updates > 1 || !sql.dialect.isUpsertCountAmbiguous()))
+      return true;
+    final PreparedStatement stmt = connection.prepareStatement(sql.ownedBy.getSql());
+    try {
+      setInStatement(stmt, sql.ownedBy, key, handle, 0, expireTime);
+      final ResultSet results = stmt.executeQuery();
+      return results.next();
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * @param connection an open connection
+   * @param sql        the statements
+   * @param key        the key identifying the lock
+   * @return the expiration time of the lock, 0 if there is no row
+   * @throws SQLException an unexpected error
+   */
+  private long selectExpireTime(final Connection connection, final Statements sql, final KeyType key)
+      throws SQLException {
+    final PreparedStatement stmt = connection.prepareStatement(sql.selectExpireTime.getSql());
+    try {
+      setInStatement(stmt, sql.selectExpireTime, key, null, 0, 0);
+      final ResultSet results = stmt.executeQuery();
+      return results.next() ? results.getLong(1) : 0;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Inserts the permit rows of a semaphore that do not exist yet.
+   * 
+   * @param connection an open connection
+   * @param sql        the statements
+   * @param key        the key identifying the semaphore
+   * @param permits    the number of permits
+   * @throws SQLException an unexpected error
+   */
+  private void insertPermitSlotsIfMissing(final Connection connection, final Statements sql, final KeyType key,
+      final int permits) throws SQLException {
+    final Set<Integer> existing = new TreeSet<Integer>();
+    PreparedStatement stmt = connection.prepareStatement(sql.selectPermitSlots.getSql());
+    try {
+      setInStatement(stmt, sql.selectPermitSlots, key, null, 0, 0, permits);
+      final ResultSet results = stmt.executeQuery();
+      while (results.next())
+        existing.add(results.getInt(1));
+      results.close();
+      if (existing.size() >= permits)
+        return;
+      stmt.close();
+      stmt = null;
+      stmt = connection.prepareStatement(sql.insertPermitSlot.getSql());
+      for (int slot = 0; slot < permits; slot++) {
+        if (!existing.contains(slot)) {
+          setInStatement(stmt, sql.insertPermitSlot, key, null, 0, 0, slot);
+          stmt.addBatch();
+        }
+      }
+      stmt.executeBatch();
+    } finally {
+      if (stmt != null)
+        stmt.close();
+    }
+  }
+
+  private void setInStatement(final PreparedStatement stmt, final SqlStatement statement, final KeyType key,
+      final FlexLockHandle handle, final long now, final long expireTime) throws SQLException {
+    setInStatement(stmt, statement, key, handle, now, expireTime, 0);
+  }
+
+  private void setInStatement(final PreparedStatement stmt, final SqlStatement statement, final KeyType key,
+      final FlexLockHandle handle, final long now, final long expireTime, final int count) throws SQLException {
+    setInStatement(stmt, statement, Collections.singletonList(key),
+        Collections.singletonList(handle == null ? null : handle.getOwner()), now, expireTime, count);
+  }
+
+  private void setSharedInStatement(final PreparedStatement stmt, final SqlStatement statement, final KeyType key,
+      final long now, final long expireTime, final int count) throws SQLException {
+    setInStatement(stmt, statement, Collections.singletonList(key), Collections.singletonList(SHARED_OWNER), now,
+        expireTime, count);
+  }
+
+  /**
+   * Binds the parameters of a statement. The n-th KEY and OWNER parameters take
+   * the n-th key and owner, wrapping around so a statement for one lock can use
+   * them more than once.
+   * 
+   * @param stmt       the prepared statement
+   * @param statement  the statement it was prepared from
+   * @param keys       the keys identifying the locks
+   * @param owners     the owner tokens of the associated handles
+   * @param now        the current time
+   * @param expireTime the expiration time for the locks
+   * @param count      the number of shared holders released
+   * @throws SQLException an unexpected error
+   */
+  private void setInStatement(final PreparedStatement stmt, final SqlStatement statement, final List<KeyType> keys,
+      final List<OwnerToken> owners, final long now, final long expireTime, final int count) throws SQLException {
+    int parameterIndex = 1;
+    int keyIndex = 0;
+    int ownerIndex = 0;
+    for (final SqlStatement.Value value : statement.getParameters()) {
+      switch (value) {
+      case KEY:
+        setPrimaryKeyInStatement(stmt, parameterIndex, keys.get(keyIndex++ % keys.size()));
+        break;
+      case OWNER:
+        setOwnerInStatement(stmt, parameterIndex, owners.get(ownerIndex++ % owners.size()));
+        break;
+      case NOW:
+        stmt.setLong(parameterIndex, now);
+        break;
+      case COUNT:
+        stmt.setInt(parameterIndex, count);
+        break;
+      default:
+        stmt.setLong(parameterIndex, expireTime);
+      }
+      parameterIndex++;
+    }
+  }
+
+  private void setOwnerInStatement(final PreparedStatement stmt, final int parameterIndex, final OwnerToken owner)
+      throws SQLException {
+    switch (ownerColumnType) {
+    case LONG:
+      stmt.setLong(parameterIndex, owner.asLong());
+      break;
+    case BINARY:
+      stmt.setBytes(parameterIndex, owner.toBytes());
+      break;
+    default:
+      stmt.setString(parameterIndex, owner.toString());
     }
   }
 
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Adapter that can tell, when a lock is refused, until when the current holder
+ * has it. A registry can then wait for that time instead of polling.
+ */
+public interface ExpiryAwareFlexLockAdapter<KeyType> extends FlexLockAdapter<KeyType> {
+
+  /**
+   * Tries to obtain a lock without blocking, like tryLock, reporting the
+   * expiration time of the current holder if the lock is held.
+   * 
+   * @param key        the key identifying the lock
+   * @param handle     handle to the lock
+   * @param now        the current time
+   * @param expireTime the time to automatically unlock
+   * @return the result, never null
+   * @throws Exception an unexpected error
+   */
+  TryLockResult tryLockReportingExpiry(KeyType key, FlexLockHandle handle, long now, long expireTime)
+      throws Exception;
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded set of keys known to have a row, so they are not looked up again.
+ * Keys are spread over segments, each a small LRU list behind its own lock, so
+ * lookups for different keys rarely contend. When a segment is full its least
+ * recently used key is dropped; a dropped key is simply looked up again.
+ *
+ * @param <KeyType> the key class
+ */
+class KnownKeyCache<KeyType> {
+
+  private static final int SEGMENTS = 16;
+  private static final int MIN_SEGMENT_CAPACITY = 64;
+
+  private static class Segment<KeyType> extends LinkedHashMap<KeyType, Boolean> {
+    private static final long serialVersionUID = 1L;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final int capacity;
+
+    Segment(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<KeyType, Boolean> eldest) {
+      return size() > capacity;
+    }
+  }
+
+  private final Segment<KeyType>[] segments;
+  private final int capacity;
+
+  /**
+   * Constructor
+   * 
+   * @param capacity the maximum number of keys kept
+   */
+  KnownKeyCache(final int capacity) {
+    final int segmentCount = Math.max(1, Math.min(SEGMENTS, capacity / MIN_SEGMENT_CAPACITY));
+    this.capacity = capacity;
+    @SuppressWarnings("unchecked")
+    final Segment<KeyType>[] created = (Segment<KeyType>[]) new Segment<?>[segmentCount];
+    segments = created;
+    for (int i = 0; i < segmentCount; i++)
+      segments[i] = new Segment<KeyType>((capacity + segmentCount - 1) / segmentCount);
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  boolean contains(final KeyType key) {
+    final Segment<KeyType> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return segment.get(key) != null;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  void add(final KeyType key) {
+    final Segment<KeyType> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      segment.put(key, Boolean.TRUE);
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  int size() {
+    int size = 0;
+    for (final Segment<KeyType> segment : segments) {
+      segment.lock.lock();
+      try {
+        size += segment.size();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return size;
+  }
+
+  void clear() {
+    for (final Segment<KeyType> segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.clear();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  private Segment<KeyType> segmentFor(final KeyType key) {
+    final int h = key.hashCode();
+    return segments[((h ^ (h >>> 16)) & 0x7fffffff) % segments.length];
+  }
+}
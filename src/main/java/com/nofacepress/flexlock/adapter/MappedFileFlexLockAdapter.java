@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+import com.nofacepress.flexlock.handle.OwnerToken;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Lock table in a memory-mapped file, for processes on the same host that
+ * share the file. The file holds a fixed number of slots and each key is
+ * hashed to one of them; a slot records the key hash, the owner token and the
+ * expiration time of its lock. Keys sharing a slot also share its lock, which
+ * is safe but makes them wait for each other, so the table should have well
+ * over as many slots as keys locked at the same time.
+ *
+ * A slot is read and written under a lock on its region of the file, so other
+ * processes see each change whole, and under a lock shared by every adapter in
+ * this JVM on the same file, since file locks are held per process.
+ */
+@ToString(of = { "file", "slotCount" })
+public class MappedFileFlexLockAdapter<KeyType> implements RenewableFlexLockAdapter<KeyType> {
+
+  public static final int DEFAULT_SLOT_COUNT = 4096;
+
+  private static final int MAGIC = 0x464c584c; // FLXL
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int SLOT_SIZE = 32;
+  private static final int KEY_HASH = 0;
+  private static final int OWNER_HIGH = 8;
+  private static final int OWNER_LOW = 16;
+  private static final int EXPIRE_TIME = 24;
+  private static final int STRIPES = 256;
+
+  /**
+   * In-process locks per file, so that adapters on the same file never try to
+   * lock overlapping regions from this JVM at once. An entry is dropped when
+   * the last adapter open on its file is closed.
+   */
+  private static final ConcurrentHashMap<String, Stripes> stripesByFile = new ConcurrentHashMap<String, Stripes>();
+
+  /**
+   * The in-process locks of a file and the number of adapters open on it, only
+   * changed inside the atomic compute methods of stripesByFile.
+   */
+  private static final class Stripes {
+    final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    int adapters = 0;
+
+    Stripes() {
+      for (int i = 0; i < locks.length; i++)
+        locks[i] = new ReentrantLock();
+    }
+  }
+
+  @Getter
+  private final File file;
+  @Getter
+  private final int slotCount;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final MappedByteBuffer slots;
+  private final ReentrantLock[] stripes;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Constructor using the slot count of an existing file, or
+   * DEFAULT_SLOT_COUNT for a new one.
+   * 
+   * @param file the lock file, created if missing
+   * @throws IOException if the file cannot be opened
+   */
+  public MappedFileFlexLockAdapter(final File file) throws IOException {
+    this(file, DEFAULT_SLOT_COUNT);
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param file      the lock file, created if missing
+   * @param slotCount the number of slots of a new file. An existing file keeps
+   *                  the count it was created with.
+   * @throws IOException if the file cannot be opened or is not a lock file
+   */
+  public MappedFileFlexLockAdapter(final File file, final int slotCount) throws IOException {
+    this.file = file.getCanonicalFile();
+    stripes = acquireStripes(this.file.getPath());
+    try {
+      raf = new RandomAccessFile(this.file, "rw");
+    } catch (final IOException | RuntimeException e) {
+      releaseStripes(this.file.getPath());
+      throw e;
+    }
+    channel = raf.getChannel();
+    try {
+      this.slotCount = initialize(slotCount);
+      slots = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) this.slotCount * SLOT_SIZE);
+    } catch (final IOException | RuntimeException e) {
+      try {
+        raf.close();
+      } finally {
+        releaseStripes(this.file.getPath());
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Counts another adapter open on a file.
+   * 
+   * @param path the canonical path of the file
+   * @return the in-process locks of the file
+   */
+  private static ReentrantLock[] acquireStripes(final String path) {
+    return stripesByFile.compute(path, (ignored, current) -> {
+      final Stripes stripes = current != null ? current : new Stripes();
+      stripes.adapters++;
+      return stripes;
+    }).locks;
+  }
+
+  /**
+   * Counts an adapter on a file as closed, dropping the locks of the file with
+   * the last one.
+   * 
+   * @param path the canonical path of the file
+   */
+  private static void releaseStripes(final String path) {
+    stripesByFile.computeIfPresent(path, (ignored, current) -> --current.adapters == 0 ? null : current);
+  }
+
+  /**
+   * Writes the header of a new file, or reads the slot count of an existing
+   * one, while holding the header region so processes starting together agree.
+   * 
+   * @param slotCount the number of slots of a new file
+   * @return the number of slots
+   * @throws IOException if the file cannot be read or is not a lock file
+   */
+  private int initialize(final int slotCount) throws IOException {
+    stripes[0].lock();
+    final FileLock header;
+    try {
+      header = channel.lock(0, HEADER_SIZE, false);
+    } catch (final IOException | RuntimeException e) {
+      stripes[0].unlock();
+      throw e;
+    }
+    try {
+      if (channel.size() < HEADER_SIZE) {
+        if (slotCount <= 0)
+          throw new IllegalArgumentException("slotCount must be positive");
+        raf.setLength(HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(slotCount);
+        raf.writeInt(SLOT_SIZE);
+        return slotCount;
+      }
+      raf.seek(0);
+      if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+        throw new IOException(file + " is not a lock file");
+      final int existing = raf.readInt();
+      if (raf.readInt() != SLOT_SIZE || channel.size() < HEADER_SIZE + (long) existing * SLOT_SIZE)
+        throw new IOException(file + " is not a lock file");
+      return existing;
+    } finally {
+      try {
+        header.release();
+      } finally {
+        stripes[0].unlock();
+      }
+    }
+  }
+
+  /**
+   * Slots need no creating, so this does nothing.
+   */
+  public void ensureKeyExistsCreatingIfNessessary(final KeyType key) {
+  }
+
+  public void forceUnlock(final KeyType key) throws Exception {
+    final long hash = hash(key);
+    final int slot = slotOf(hash);
+    final FileLock region = lockSlot(slot);
+    try {
+      if (slots.getLong(slot * SLOT_SIZE + KEY_HASH) == hash)
+        slots.putLong(slot * SLOT_SIZE + EXPIRE_TIME, 0);
+    } finally {
+      unlockSlot(slot, region);
+    }
+  }
+
+  public boolean tryLock(final KeyType key, final FlexLockHandle handle, final long now, final long expireTime)
+      throws Exception {
+    final long hash = hash(key);
+    final int slot = slotOf(hash);
+    final int offset = slot * SLOT_SIZE;
+    final OwnerToken owner = handle.getOwner();
+    final FileLock region = lockSlot(slot);
+    try {
+      if (slots.getLong(offset + EXPIRE_TIME) > now)
+        return false;
+      slots.putLong(offset + KEY_HASH, hash);
+      slots.putLong(offset + OWNER_HIGH, owner.getMostSignificantBits());
+      slots.putLong(offset + OWNER_LOW, owner.getLeastSignificantBits());
+      slots.putLong(offset + EXPIRE_TIME, expireTime);
+      return true;
+    } finally {
+      unlockSlot(slot, region);
+    }
+  }
+
+  public void unlock(final KeyType key, final FlexLockHandle handle) throws Exception {
+    final long hash = hash(key);
+    final int slot = slotOf(hash);
+    final FileLock region = lockSlot(slot);
+    try {
+      if (isOwnedBy(slot * SLOT_SIZE, hash, handle.getOwner()))
+        slots.putLong(slot * SLOT_SIZE + EXPIRE_TIME, 0);
+    } finally {
+      unlockSlot(slot, region);
+    }
+  }
+
+  /**
+   * Extends each lease whose slot is still held by its owner.
+   * 
+   * @see com.nofacepress.flexlock.adapter.RenewableFlexLockAdapter#renew(java.util.Map,
+   *      long, long)
+   */
+  public Set<KeyType> renew(final Map<KeyType, FlexLockHandle> leases, final long now, final long expireTime)
+      throws Exception {
+    final Set<KeyType> renewed = new HashSet<KeyType>();
+    for (final Map.Entry<KeyType, FlexLockHandle> lease : leases.entrySet()) {
+      final long hash = hash(lease.getKey());
+      final int slot = slotOf(hash);
+      final int offset = slot * SLOT_SIZE;
+      final FileLock region = lockSlot(slot);
+      try {
+        if (slots.getLong(offset + EXPIRE_TIME) > now && isOwnedBy(offset, hash, lease.getValue().getOwner())) {
+          slots.putLong(offset + EXPIRE_TIME, expireTime);
+          renewed.add(lease.getKey());
+        }
+      } finally {
+        unlockSlot(slot, region);
+      }
+    }
+    return renewed;
+  }
+
+  /**
+   * Closes the file. The mapping itself is released once it is garbage
+   * collected. Closing again does nothing.
+   * 
+   * @throws IOException an unexpected error
+   */
+  public void close() throws IOException {
+    if (!closed.compareAndSet(false, true))
+      return;
+    try {
+      raf.close();
+    } finally {
+      releaseStripes(file.getPath());
+    }
+  }
+
+  private boolean isOwnedBy(final int offset, final long hash, final OwnerToken owner) {
+    return slots.getLong(offset + KEY_HASH) == hash
+        && slots.getLong(offset + OWNER_HIGH) == owner.getMostSignificantBits()
+        && slots.getLong(offset + OWNER_LOW) == owner.getLeastSignificantBits();
+  }
+
+  private FileLock lockSlot(final int slot) throws IOException {
+    final ReentrantLock stripe = stripes[slot % STRIPES];
+    stripe.lock();
+    try {
+      return channel.lock(HEADER_SIZE + (long) slot * SLOT_SIZE, SLOT_SIZE, false);
+    } catch (final IOException | RuntimeException e) {
+      stripe.unlock();
+      throw e;
+    }
+  }
+
+  private void unlockSlot(final int slot, final FileLock region) throws IOException {
+    try {
+      region.release();
+    } finally {
+      stripes[slot % STRIPES].unlock();
+    }
+  }
+
+  private int slotOf(final long hash) {
+    return (int) ((hash >>> 1) % slotCount);
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the string form of the key, which is the same in
+   * every process.
+   * 
+   * @param key the key
+   * @return the hash
+   */
+  private static long hash(final Object key) {
+    long hash = 0xcbf29ce484222325L;
+    for (final byte b : key.toString().getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+/**
+ * Column types supported for storing the owner of a lock.
+ */
+public enum OwnerColumnType {
+  /**
+   * Character column holding the token in UUID form, for example VARCHAR(36).
+   */
+  STRING,
+  /**
+   * Numeric column holding the low 64 bits of the token, for example BIGINT.
+   */
+  LONG,
+  /**
+   * Binary column holding all 16 bytes of the token, for example BINARY(16).
+   */
+  BINARY
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import java.util.Map;
+import java.util.Set;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Adapter whose locks can be extended while they are held, so that locks can
+ * be taken with a short lease that the registry keeps renewing.
+ */
+public interface RenewableFlexLockAdapter<KeyType> extends FlexLockAdapter<KeyType> {
+
+  /**
+   * Extends a set of locks that are still held by their handles. Locks that
+   * have expired or changed owner are left alone; their leases are lost.
+   * 
+   * @param leases     the keys of the locks and the handles holding them
+   * @param now        the current time
+   * @param expireTime the new expiration time for the locks
+   * @return the keys of the locks extended
+   * @throws Exception an unexpected error
+   */
+  Set<KeyType> renew(Map<KeyType, FlexLockHandle> leases, long now, long expireTime) throws Exception;
+
+}
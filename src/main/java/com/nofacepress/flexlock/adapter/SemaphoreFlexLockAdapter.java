@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Adapter that can also hold the permits of counting semaphores. Each permit
+ * is held and expires on its own, like a lock.
+ */
+public interface SemaphoreFlexLockAdapter<KeyType> extends FlexLockAdapter<KeyType> {
+
+  /**
+   * @return true if permits can be acquired, which may depend on how the
+   *         adapter is configured
+   */
+  boolean supportsPermits();
+
+  /**
+   * Tries to acquire one of the permits of a semaphore without blocking,
+   * creating what the semaphore needs on first use.
+   * 
+   * @param key        the key identifying the semaphore
+   * @param handle     the handle of the new holder
+   * @param permits    the number of permits of the semaphore
+   * @param now        the current time
+   * @param expireTime the expiration time for the permit
+   * @return true if successful
+   * @throws Exception an unexpected error
+   */
+  boolean tryAcquirePermit(KeyType key, FlexLockHandle handle, int permits, long now, long expireTime)
+      throws Exception;
+
+  /**
+   * Releases a permit. An already expired permit is ignored.
+   * 
+   * @param key    the key identifying the semaphore
+   * @param handle the handle of the holder
+   * @throws Exception an unexpected error
+   */
+  void releasePermit(KeyType key, FlexLockHandle handle) throws Exception;
+
+}
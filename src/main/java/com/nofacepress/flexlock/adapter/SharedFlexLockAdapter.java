@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+/**
+ * Adapter that can also hold locks shared by several holders, which exclude
+ * exclusive locks but not each other. A registry holds one shared claim per
+ * key and process at a time and lets its own shared holders in without
+ * consulting the adapter while that claim lasts.
+ */
+public interface SharedFlexLockAdapter<KeyType> extends FlexLockAdapter<KeyType> {
+
+  /**
+   * @return true if shared locks can be taken, which may depend on how the
+   *         adapter is configured
+   */
+  boolean supportsSharedLocks();
+
+  /**
+   * Tries to add a holder to a shared lock without blocking. This fails if the
+   * lock is held exclusively.
+   * 
+   * @param key        the key identifying the lock
+   * @param now        the current time
+   * @param expireTime the time the new holder must be released by; the lock is
+   *                   held at least until then
+   * @return true if successful
+   * @throws Exception an unexpected error
+   */
+  boolean tryLockShared(KeyType key, long now, long expireTime) throws Exception;
+
+  /**
+   * Removes holders added with tryLockShared. An already expired lock is
+   * ignored.
+   * 
+   * @param key     the key identifying the lock
+   * @param holders the number of holders removed
+   * @param now     the current time
+   * @throws Exception an unexpected error
+   */
+  void unlockShared(KeyType key, int holders, long now) throws Exception;
+
+}
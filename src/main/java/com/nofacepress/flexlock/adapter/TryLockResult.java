@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * The outcome of ExpiryAwareFlexLockAdapter.tryLockReportingExpiry.
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+@ToString
+public class TryLockResult {
+
+  public static final TryLockResult LOCKED = new TryLockResult(true, 0);
+  public static final TryLockResult REFUSED = new TryLockResult(false, 0);
+
+  private final boolean locked;
+  /** when the lock of the current holder expires, 0 if locked or unknown */
+  private final long holderExpireTime;
+
+  /**
+   * @param holderExpireTime when the lock of the current holder expires, 0 if
+   *                         unknown
+   * @return a refusal
+   */
+  public static TryLockResult refused(final long holderExpireTime) {
+    return holderExpireTime == 0 ? REFUSED : new TryLockResult(false, holderExpireTime);
+  }
+}
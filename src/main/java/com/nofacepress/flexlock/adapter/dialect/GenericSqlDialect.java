@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.COUNT;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.EXPIRE_TIME;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.KEY;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.NOW;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.OWNER;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.ToString;
+
+/**
+ * Plain SQL that works on any database. Missing rows are checked for and
+ * inserted separately, and renewals match each key together with its owner,
+ * one OR term per lock.
+ */
+@ToString
+public class GenericSqlDialect implements SqlDialect {
+
+  private static final String TRY_LOCK_UPDATE = "update [MUTEX_TABLE] set [OWNER]=?, [EXPIRE_TIME]=? where [PRIMARY_KEY]=? and [EXPIRE_TIME]<=?";
+  private static final String OWNED_BY = "select 1 from [MUTEX_TABLE] where [PRIMARY_KEY]=? and [OWNER]=? and [EXPIRE_TIME]=?";
+  private static final String SELECT_EXPIRE_TIME = "select [EXPIRE_TIME] from [MUTEX_TABLE] where [PRIMARY_KEY]=?";
+  private static final String MUTEX_EXISTS = "select 1 from [MUTEX_TABLE] where [PRIMARY_KEY]=?";
+  private static final String INSERT_MUTEX = "insert into [MUTEX_TABLE] ([PRIMARY_KEY], [EXPIRE_TIME]) values (?, 0)";
+  private static final String SELECT_KEYS = "select [PRIMARY_KEY] from [MUTEX_TABLE] order by [PRIMARY_KEY]";
+  private static final String SELECT_KEYS_AFTER = "select [PRIMARY_KEY] from [MUTEX_TABLE] where [PRIMARY_KEY]>? order by [PRIMARY_KEY]";
+  private static final String TRY_UNLOCK_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=0 where [PRIMARY_KEY]=? and [OWNER]=?";
+  // each assignment only reads columns assigned after it, so MySQL, which
+  // assigns left to right, reads the old values like other databases
+  private static final String TRY_LOCK_SHARED_UPDATE = "update [MUTEX_TABLE] set [READERS]=case when [EXPIRE_TIME]<=? then 1 else [READERS]+1 end, [OWNER]=?, [EXPIRE_TIME]=case when [EXPIRE_TIME]<? then ? else [EXPIRE_TIME] end where [PRIMARY_KEY]=? and ([EXPIRE_TIME]<=? or [OWNER]=?)";
+  private static final String UNLOCK_SHARED_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=case when [READERS]<=? then 0 else [EXPIRE_TIME] end, [READERS]=[READERS]-? where [PRIMARY_KEY]=? and [OWNER]=? and [EXPIRE_TIME]>?";
+  // the free slot is read through a derived table, which MySQL needs to read the
+  // table being updated
+  private static final String ACQUIRE_PERMIT_UPDATE = "update [MUTEX_TABLE] set [OWNER]=?, [EXPIRE_TIME]=? where [PRIMARY_KEY]=? and [EXPIRE_TIME]<=? and [SLOT]=(select min(free_slots.[SLOT]) from (select [SLOT] from [MUTEX_TABLE] where [PRIMARY_KEY]=? and [SLOT]<? and [EXPIRE_TIME]<=?) free_slots)";
+  private static final String SELECT_PERMIT_SLOTS = "select [SLOT] from [MUTEX_TABLE] where [PRIMARY_KEY]=? and [SLOT]<?";
+  private static final String INSERT_PERMIT_SLOT = "insert into [MUTEX_TABLE] ([PRIMARY_KEY], [SLOT], [EXPIRE_TIME]) values (?, ?, 0)";
+  private static final String FORCE_UNLOCK_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=0 where [PRIMARY_KEY]=?";
+  private static final String RENEW_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=? where [EXPIRE_TIME]>? and ([LEASES])";
+  private static final String RENEW_LEASE = "([PRIMARY_KEY]=? and [OWNER]=?)";
+  private static final String ROW_VALUE_RENEW_UPDATE = "update [MUTEX_TABLE] set [EXPIRE_TIME]=? where [EXPIRE_TIME]>? and ([PRIMARY_KEY], [OWNER]) in ([LEASES])";
+
+  public boolean supports(final String databaseProductName) {
+    return true;
+  }
+
+  public SqlStatement tryLock(final MutexTable table) {
+    return new SqlStatement(table.sql(TRY_LOCK_UPDATE), OWNER, EXPIRE_TIME, KEY, NOW);
+  }
+
+  public SqlStatement upsertLock(final MutexTable table) {
+    return null;
+  }
+
+  public boolean isUpsertCountAmbiguous() {
+    return false;
+  }
+
+  public SqlStatement ownedBy(final MutexTable table) {
+    return new SqlStatement(table.sql(OWNED_BY), KEY, OWNER, EXPIRE_TIME);
+  }
+
+  public SqlStatement selectExpireTime(final MutexTable table) {
+    return new SqlStatement(table.sql(SELECT_EXPIRE_TIME), KEY);
+  }
+
+  public SqlStatement keyExists(final MutexTable table) {
+    return new SqlStatement(table.sql(MUTEX_EXISTS), KEY);
+  }
+
+  public SqlStatement insertKey(final MutexTable table) {
+    return new SqlStatement(table.sql(INSERT_MUTEX), KEY);
+  }
+
+  public SqlStatement selectKeys(final MutexTable table) {
+    return new SqlStatement(table.sql(SELECT_KEYS));
+  }
+
+  public SqlStatement selectKeysAfter(final MutexTable table) {
+    return new SqlStatement(table.sql(SELECT_KEYS_AFTER), KEY);
+  }
+
+  public SqlStatement unlock(final MutexTable table) {
+    return new SqlStatement(table.sql(TRY_UNLOCK_UPDATE), KEY, OWNER);
+  }
+
+  public SqlStatement tryLockShared(final MutexTable table) {
+    return new SqlStatement(table.sql(TRY_LOCK_SHARED_UPDATE), NOW, OWNER, EXPIRE_TIME, EXPIRE_TIME, KEY, NOW, OWNER);
+  }
+
+  public SqlStatement unlockShared(final MutexTable table) {
+    return new SqlStatement(table.sql(UNLOCK_SHARED_UPDATE), COUNT, COUNT, KEY, OWNER, NOW);
+  }
+
+  public SqlStatement acquirePermit(final MutexTable table) {
+    return new SqlStatement(table.sql(ACQUIRE_PERMIT_UPDATE), OWNER, EXPIRE_TIME, KEY, NOW, KEY, COUNT, NOW);
+  }
+
+  public SqlStatement selectPermitSlots(final MutexTable table) {
+    return new SqlStatement(table.sql(SELECT_PERMIT_SLOTS), KEY, COUNT);
+  }
+
+  public SqlStatement insertPermitSlot(final MutexTable table) {
+    return new SqlStatement(table.sql(INSERT_PERMIT_SLOT), KEY, COUNT);
+  }
+
+  public SqlStatement forceUnlock(final MutexTable table) {
+    return new SqlStatement(table.sql(FORCE_UNLOCK_UPDATE), KEY);
+  }
+
+  public SqlStatement renew(final MutexTable table, final int count) {
+    final List<SqlStatement.Value> parameters = new ArrayList<SqlStatement.Value>(2 + 2 * count);
+    parameters.add(EXPIRE_TIME);
+    parameters.add(NOW);
+    for (int i = 0; i < count; i++) {
+      parameters.add(KEY);
+      parameters.add(OWNER);
+    }
+    return new SqlStatement(table.sql(RENEW_UPDATE.replace("[LEASES]", join(RENEW_LEASE, " or ", count))),
+        parameters);
+  }
+
+  /**
+   * Renewal matching each lock by its key and owner together, for databases
+   * with row value IN lists.
+   * 
+   * @param table the lock table
+   * @param count the number of locks
+   * @return the statement
+   */
+  protected SqlStatement rowValueRenew(final MutexTable table, final int count) {
+    final List<SqlStatement.Value> parameters = new ArrayList<SqlStatement.Value>(2 + 2 * count);
+    parameters.add(EXPIRE_TIME);
+    parameters.add(NOW);
+    for (int i = 0; i < count; i++) {
+      parameters.add(KEY);
+      parameters.add(OWNER);
+    }
+    return new SqlStatement(table.sql(ROW_VALUE_RENEW_UPDATE).replace("[LEASES]", placeholders("(?, ?)", count)),
+        parameters);
+  }
+
+  /**
+   * @param placeholder the placeholder for one value
+   * @param count       the number of values
+   * @return the placeholders separated by commas
+   */
+  protected static String placeholders(final String placeholder, final int count) {
+    return join(placeholder, ", ", count);
+  }
+
+  /**
+   * @param term      the term to repeat
+   * @param separator the separator between terms
+   * @param count     the number of terms
+   * @return the terms separated by the separator
+   */
+  protected static String join(final String term, final String separator, final int count) {
+    final StringBuilder sb = new StringBuilder(count * (term.length() + separator.length()));
+    for (int i = 0; i < count; i++) {
+      if (i > 0)
+        sb.append(separator);
+      sb.append(term);
+    }
+    return sb.toString();
+  }
+}
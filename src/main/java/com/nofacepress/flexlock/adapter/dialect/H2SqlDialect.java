@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.EXPIRE_TIME;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.KEY;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.NOW;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.OWNER;
+
+/**
+ * H2, in any compatibility mode. Locks are created and claimed with MERGE ...
+ * USING and renewed with a row value IN list.
+ */
+public class H2SqlDialect extends GenericSqlDialect {
+
+  private static final String MERGE_LOCK = "merge into [MUTEX_TABLE] using dual on [PRIMARY_KEY]=? when matched and [EXPIRE_TIME]<=? then update set [OWNER]=?, [EXPIRE_TIME]=? when not matched then insert ([PRIMARY_KEY], [EXPIRE_TIME], [OWNER]) values (?, ?, ?)";
+
+  @Override
+  public boolean supports(final String databaseProductName) {
+    return "H2".equalsIgnoreCase(databaseProductName);
+  }
+
+  @Override
+  public SqlStatement upsertLock(final MutexTable table) {
+    return new SqlStatement(table.sql(MERGE_LOCK), KEY, NOW, OWNER, EXPIRE_TIME, KEY, EXPIRE_TIME, OWNER);
+  }
+
+  @Override
+  public SqlStatement renew(final MutexTable table, final int count) {
+    return rowValueRenew(table, count);
+  }
+}
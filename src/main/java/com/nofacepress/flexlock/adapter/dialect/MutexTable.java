@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Names of the table and columns holding the locks. The readers column, which
+ * counts the holders of a shared lock, is only needed for shared locks. The
+ * slot column only exists in permit tables, which hold one row per permit of a
+ * semaphore.
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public class MutexTable {
+
+  public static final String TABLE_KEY = "[MUTEX_TABLE]";
+  public static final String PRIMARY_KEY = "[PRIMARY_KEY]";
+  public static final String EXPIRE_TIME = "[EXPIRE_TIME]";
+  public static final String OWNER = "[OWNER]";
+  public static final String READERS = "[READERS]";
+  public static final String SLOT = "[SLOT]";
+
+  private final String tableName;
+  private final String primaryKeyName;
+  private final String expiresColumnName;
+  private final String ownerColumnName;
+  private final String readersColumnName;
+  private final String slotColumnName;
+
+  public MutexTable(final String tableName, final String primaryKeyName, final String expiresColumnName,
+      final String ownerColumnName) {
+    this(tableName, primaryKeyName, expiresColumnName, ownerColumnName, null, null);
+  }
+
+  public MutexTable(final String tableName, final String primaryKeyName, final String expiresColumnName,
+      final String ownerColumnName, final String readersColumnName) {
+    this(tableName, primaryKeyName, expiresColumnName, ownerColumnName, readersColumnName, null);
+  }
+
+  /**
+   * @return true if the table has a readers column for shared locks
+   */
+  public boolean hasReaders() {
+    return readersColumnName != null;
+  }
+
+  /**
+   * Fills the table and column names into a statement template.
+   * 
+   * @param template SQL using [MUTEX_TABLE], [PRIMARY_KEY], [EXPIRE_TIME],
+   *                 [OWNER], [READERS] and [SLOT] in place of the names
+   * @return the SQL
+   */
+  public String sql(final String template) {
+    String sql = template.replace(TABLE_KEY, tableName).replace(PRIMARY_KEY, primaryKeyName)
+        .replace(EXPIRE_TIME, expiresColumnName).replace(OWNER, ownerColumnName);
+    if (readersColumnName != null)
+      sql = sql.replace(READERS, readersColumnName);
+    if (slotColumnName != null)
+      sql = sql.replace(SLOT, slotColumnName);
+    return sql;
+  }
+}
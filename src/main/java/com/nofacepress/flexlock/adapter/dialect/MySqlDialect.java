@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.EXPIRE_TIME;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.KEY;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.NOW;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.OWNER;
+
+/**
+ * MySQL and MariaDB. Locks are created and claimed with INSERT ... ON
+ * DUPLICATE KEY UPDATE and renewed with a row value IN list. Unless the
+ * connection sets useAffectedRows, an unchanged row is reported like an
+ * insert, so an update count of 1 is ambiguous.
+ */
+public class MySqlDialect extends GenericSqlDialect {
+
+  private static final String ON_DUPLICATE_KEY_LOCK = "insert into [MUTEX_TABLE] ([PRIMARY_KEY], [EXPIRE_TIME], [OWNER]) values (?, ?, ?) on duplicate key update [OWNER]=case when [EXPIRE_TIME]<=? then values([OWNER]) else [OWNER] end, [EXPIRE_TIME]=case when [EXPIRE_TIME]<=? then values([EXPIRE_TIME]) else [EXPIRE_TIME] end";
+
+  @Override
+  public boolean supports(final String databaseProductName) {
+    return "MySQL".equalsIgnoreCase(databaseProductName) || "MariaDB".equalsIgnoreCase(databaseProductName);
+  }
+
+  @Override
+  public SqlStatement upsertLock(final MutexTable table) {
+    return new SqlStatement(table.sql(ON_DUPLICATE_KEY_LOCK), KEY, EXPIRE_TIME, OWNER, NOW, NOW);
+  }
+
+  @Override
+  public boolean isUpsertCountAmbiguous() {
+    return true;
+  }
+
+  @Override
+  public SqlStatement renew(final MutexTable table, final int count) {
+    return rowValueRenew(table, count);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.EXPIRE_TIME;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.KEY;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.NOW;
+import static com.nofacepress.flexlock.adapter.dialect.SqlStatement.Value.OWNER;
+
+/**
+ * PostgreSQL. Locks are created and claimed with INSERT ... ON CONFLICT DO
+ * UPDATE and renewed with a row value IN list.
+ */
+public class PostgreSqlDialect extends GenericSqlDialect {
+
+  private static final String ON_CONFLICT_LOCK = "insert into [MUTEX_TABLE] ([PRIMARY_KEY], [EXPIRE_TIME], [OWNER]) values (?, ?, ?) on conflict ([PRIMARY_KEY]) do update set [OWNER]=excluded.[OWNER], [EXPIRE_TIME]=excluded.[EXPIRE_TIME] where [MUTEX_TABLE].[EXPIRE_TIME]<=?";
+
+  @Override
+  public boolean supports(final String databaseProductName) {
+    return "PostgreSQL".equalsIgnoreCase(databaseProductName);
+  }
+
+  @Override
+  public SqlStatement upsertLock(final MutexTable table) {
+    return new SqlStatement(table.sql(ON_CONFLICT_LOCK), KEY, EXPIRE_TIME, OWNER, NOW);
+  }
+
+  @Override
+  public SqlStatement renew(final MutexTable table, final int count) {
+    return rowValueRenew(table, count);
+  }
+}
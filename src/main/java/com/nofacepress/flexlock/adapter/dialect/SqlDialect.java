@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+/**
+ * The statements DatabaseFlexLockAdapter runs against a particular database.
+ * Implementations can use the cheapest statement shape the database offers;
+ * GenericSqlDialect is the portable baseline to extend. A dialect is picked
+ * automatically from the database product name (see SqlDialects) or can be set
+ * on the adapter.
+ */
+public interface SqlDialect {
+
+  /**
+   * @param databaseProductName the name reported by the JDBC driver metadata
+   * @return true if this dialect is meant for the database
+   */
+  boolean supports(String databaseProductName);
+
+  /**
+   * Claims an existing lock if it has expired. The update count is 1 if the
+   * lock was claimed.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement tryLock(MutexTable table);
+
+  /**
+   * Creates the row of a missing lock already claimed, or claims an existing
+   * lock if it has expired, in one statement. The update count is 0 if the lock
+   * was not claimed.
+   * 
+   * @param table the lock table
+   * @return the statement, or null if the database has no such statement
+   */
+  SqlStatement upsertLock(MutexTable table);
+
+  /**
+   * @return true if an update count of 1 from upsertLock can also mean the lock
+   *         was not claimed, in which case ownedBy is checked
+   */
+  boolean isUpsertCountAmbiguous();
+
+  /**
+   * Selects a row if the lock is held by the owner until the expiration time.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement ownedBy(MutexTable table);
+
+  /**
+   * Selects the expiration time of a lock.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement selectExpireTime(MutexTable table);
+
+  /**
+   * Selects a row if the lock exists.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement keyExists(MutexTable table);
+
+  /**
+   * Inserts the row of an unlocked lock.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement insertKey(MutexTable table);
+
+  /**
+   * Selects the keys of the first page of locks, in key order. The page size is
+   * set as the maximum row count of the statement.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement selectKeys(MutexTable table);
+
+  /**
+   * Selects the keys of the next page of locks, those after the last key of the
+   * previous page, in key order.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement selectKeysAfter(MutexTable table);
+
+  /**
+   * Releases a lock if it is held by the owner.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement unlock(MutexTable table);
+
+  /**
+   * Adds a holder to a shared lock that is free or already shared, counting it
+   * in the readers column and extending the expiration time to cover it. A
+   * shared lock is marked by an OWNER bound to the shared owner token. The
+   * update count is 1 if the holder was added.
+   * 
+   * @param table the lock table, with a readers column
+   * @return the statement
+   */
+  SqlStatement tryLockShared(MutexTable table);
+
+  /**
+   * Removes COUNT holders from a shared lock, releasing it when none are left.
+   * 
+   * @param table the lock table, with a readers column
+   * @return the statement
+   */
+  SqlStatement unlockShared(MutexTable table);
+
+  /**
+   * Claims the first free permit of a semaphore in a permit table, among the
+   * slots below COUNT. The update count is 1 if a permit was claimed. Permits
+   * are released with unlock on the permit table.
+   * 
+   * @param table the permit table
+   * @return the statement
+   */
+  SqlStatement acquirePermit(MutexTable table);
+
+  /**
+   * Selects the slots below COUNT that exist for a semaphore.
+   * 
+   * @param table the permit table
+   * @return the statement
+   */
+  SqlStatement selectPermitSlots(MutexTable table);
+
+  /**
+   * Inserts the free permit in slot COUNT of a semaphore.
+   * 
+   * @param table the permit table
+   * @return the statement
+   */
+  SqlStatement insertPermitSlot(MutexTable table);
+
+  /**
+   * Releases a lock whoever holds it.
+   * 
+   * @param table the lock table
+   * @return the statement
+   */
+  SqlStatement forceUnlock(MutexTable table);
+
+  /**
+   * Extends several locks that are still held by their owners.
+   * 
+   * @param table the lock table
+   * @param count the number of locks
+   * @return the statement
+   */
+  SqlStatement renew(MutexTable table, int count);
+
+}
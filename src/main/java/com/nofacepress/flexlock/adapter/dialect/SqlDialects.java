@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Picks the dialect for a database. Registered dialects are tried first, most
+ * recent first, then the built in ones for H2, PostgreSQL and MySQL/MariaDB,
+ * falling back to GenericSqlDialect.
+ */
+public final class SqlDialects {
+
+  public static final SqlDialect GENERIC = new GenericSqlDialect();
+
+  private static final List<SqlDialect> dialects = new CopyOnWriteArrayList<SqlDialect>(
+      new SqlDialect[] { new H2SqlDialect(), new PostgreSqlDialect(), new MySqlDialect() });
+
+  private SqlDialects() {
+  }
+
+  /**
+   * Adds a dialect to be detected ahead of those already known.
+   * 
+   * @param dialect the dialect
+   */
+  public static void register(final SqlDialect dialect) {
+    dialects.add(0, dialect);
+  }
+
+  /**
+   * @param databaseProductName the name reported by the JDBC driver metadata
+   * @return the dialect for the database
+   */
+  public static SqlDialect forDatabase(final String databaseProductName) {
+    for (final SqlDialect dialect : dialects) {
+      if (dialect.supports(databaseProductName))
+        return dialect;
+    }
+    return GENERIC;
+  }
+}
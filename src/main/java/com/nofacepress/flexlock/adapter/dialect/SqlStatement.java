@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.adapter.dialect;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A SQL statement and the values bound to its parameters, in order. A
+ * statement for several locks lists the values of each lock in turn: the n-th
+ * KEY and the n-th OWNER belong to the n-th lock. A statement for one lock may
+ * use its KEY and OWNER more than once.
+ */
+@Getter
+@ToString
+public class SqlStatement {
+
+  /**
+   * Values that can be bound to a parameter.
+   */
+  public static enum Value {
+    /**
+     * The primary key of the lock.
+     */
+    KEY,
+    /**
+     * The owner token of the handle, stored as the adapter's owner column type.
+     */
+    OWNER,
+    /**
+     * The current time.
+     */
+    NOW,
+    /**
+     * The new expiration time of the lock.
+     */
+    EXPIRE_TIME,
+    /**
+     * A count: the shared holders released, the permits of a semaphore or the
+     * slot of a permit.
+     */
+    COUNT
+  }
+
+  private final String sql;
+  private final List<Value> parameters;
+
+  /**
+   * Constructor
+   * 
+   * @param sql        the SQL with a ? for each parameter
+   * @param parameters the value bound to each ?
+   */
+  public SqlStatement(final String sql, final Value... parameters) {
+    this(sql, Arrays.asList(parameters));
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param sql        the SQL with a ? for each parameter
+   * @param parameters the value bound to each ?
+   */
+  public SqlStatement(final String sql, final List<Value> parameters) {
+    this.sql = sql;
+    this.parameters = Collections.unmodifiableList(parameters);
+  }
+}
@@ -13,7 +13,6 @@
  */
 package com.nofacepress.flexlock.handle;
 
-import java.util.UUID;
 import lombok.Data;
 
 /**
@@ -23,19 +22,46 @@ import lombok.Data;
 @Data
 public class FlexLockHandle {
 
+  private static volatile OwnerTokenGenerator defaultOwnerTokenGenerator = new SequentialOwnerTokenGenerator();
+
   private final Integer index;
-  private final String uuid = UUID.randomUUID().toString();
+  private final OwnerToken owner;
 
   public FlexLockHandle() {
-    this.index = 0;
+    this(0, defaultOwnerTokenGenerator);
   }
 
   /**
    * Constructor
    * 
-   * @param index the index in the FlexLockHandlePool.
+   * @param index     the index in the FlexLockHandlePool.
+   * @param generator the generator for the owner token.
    */
-  FlexLockHandle(final Integer index) {
+  FlexLockHandle(final Integer index, final OwnerTokenGenerator generator) {
     this.index = index;
+    this.owner = generator.next();
+  }
+
+  /**
+   * @return the owner token in its character form.
+   */
+  public String getUuid() {
+    return owner.toString();
+  }
+
+  /**
+   * @return the generator used for handles created without an explicit one.
+   */
+  public static OwnerTokenGenerator getDefaultOwnerTokenGenerator() {
+    return defaultOwnerTokenGenerator;
+  }
+
+  /**
+   * Replaces the generator used for handles created without an explicit one.
+   * 
+   * @param generator the generator
+   */
+  public static void setDefaultOwnerTokenGenerator(final OwnerTokenGenerator generator) {
+    defaultOwnerTokenGenerator = generator;
   }
 }
@@ -13,10 +13,11 @@
  */
 package com.nofacepress.flexlock.handle;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 import lombok.ToString;
 
 /**
@@ -24,14 +25,52 @@ import lombok.ToString;
  * in the list. This is needed over native locking because the access required
  * is beyond call scope.
  *
+ * Free handles are kept on a lock-free stack of slot indexes. Slots are
+ * allocated in chunks, with their handles created up front, so reserving and
+ * releasing a handle does not allocate once the pool has grown to its working
+ * size. Only growing the pool takes a lock.
+ *
  * @param <T> the lock implementation class.
  */
 @ToString
 public class FlexLockHandlePool<T> {
 
+  private static final int CHUNK_SHIFT = 6;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int NO_SLOT = -1;
+
+  private static class Chunk {
+    final AtomicReferenceArray<FlexLockHandle> handles = new AtomicReferenceArray<FlexLockHandle>(CHUNK_SIZE);
+    final AtomicReferenceArray<Object> data = new AtomicReferenceArray<Object>(CHUNK_SIZE);
+    final AtomicIntegerArray next = new AtomicIntegerArray(CHUNK_SIZE);
+    final AtomicLongArray stamps = new AtomicLongArray(CHUNK_SIZE);
+  }
+
   private final Object UNUSED = new Object();
-  private final Queue<FlexLockHandle> availableHandles = new ArrayDeque<FlexLockHandle>();
-  private final List<Object> dataStorage = new ArrayList<Object>();
+  private final ReentrantLock growLock = new ReentrantLock();
+
+  /**
+   * Top of the free stack. The low 32 bits hold the slot index, the high 32 bits
+   * a version that changes on every push and pop to rule out ABA problems.
+   */
+  private final AtomicLong freeTop = new AtomicLong(pack(0, NO_SLOT));
+  private volatile Chunk[] chunks = new Chunk[0];
+  private final OwnerTokenGenerator ownerTokenGenerator;
+
+  public FlexLockHandlePool() {
+    this(FlexLockHandle.getDefaultOwnerTokenGenerator());
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param ownerTokenGenerator the generator for the owner tokens of new
+   *                            handles.
+   */
+  public FlexLockHandlePool(final OwnerTokenGenerator ownerTokenGenerator) {
+    this.ownerTokenGenerator = ownerTokenGenerator;
+  }
 
   /**
    * Releases the handle from exclusive access.
@@ -40,31 +79,178 @@ public class FlexLockHandlePool<T> {
    * @return the data held by the handle
    */
   @SuppressWarnings("unchecked")
-  public synchronized T release(final FlexLockHandle handle) {
-    final Object data = dataStorage.get(handle.getIndex());
+  public T release(final FlexLockHandle handle) {
+    final int slot = handle.getIndex();
+    final Chunk[] current = chunks;
+    final int chunkIndex = slot >>> CHUNK_SHIFT;
+    if (slot < 0 || chunkIndex >= current.length)
+      return null;
+    final Chunk chunk = current[chunkIndex];
+    final int offset = slot & CHUNK_MASK;
+    if (chunk.handles.get(offset) != handle)
+      return null;
+    final Object data = chunk.data.getAndSet(offset, UNUSED);
+    if (data == UNUSED) {
+      return null;
+    }
+    push(chunk, slot);
+    return (T) data;
+  }
+
+  /**
+   * Releases a handle whose holder is gone, such as the holder of an expired
+   * lock. The slot gets a new handle before it is reused, so a late release of
+   * the old handle no longer matches the slot and is ignored.
+   * 
+   * @param handle the handle
+   * @return the data held by the handle
+   */
+  @SuppressWarnings("unchecked")
+  public T expire(final FlexLockHandle handle) {
+    final int slot = handle.getIndex();
+    final Chunk[] current = chunks;
+    final int chunkIndex = slot >>> CHUNK_SHIFT;
+    if (slot < 0 || chunkIndex >= current.length)
+      return null;
+    final Chunk chunk = current[chunkIndex];
+    final int offset = slot & CHUNK_MASK;
+    if (chunk.data.get(offset) == UNUSED
+        || !chunk.handles.compareAndSet(offset, handle, new FlexLockHandle(slot, ownerTokenGenerator)))
+      return null;
+    final Object data = chunk.data.getAndSet(offset, UNUSED);
     if (data == UNUSED) {
       return null;
     }
-    dataStorage.set(handle.getIndex(), UNUSED);
-    availableHandles.add(handle);
+    push(chunk, slot);
     return (T) data;
   }
 
+  /**
+   * Looks up the data of a reserved handle without releasing it.
+   * 
+   * @param handle the handle
+   * @return the data held by the handle, null if it is not reserved
+   */
+  @SuppressWarnings("unchecked")
+  public T get(final FlexLockHandle handle) {
+    final int slot = handle.getIndex();
+    final Chunk[] current = chunks;
+    final int chunkIndex = slot >>> CHUNK_SHIFT;
+    if (slot < 0 || chunkIndex >= current.length)
+      return null;
+    final Chunk chunk = current[chunkIndex];
+    final int offset = slot & CHUNK_MASK;
+    if (chunk.handles.get(offset) != handle)
+      return null;
+    final Object data = chunk.data.get(offset);
+    return data == UNUSED ? null : (T) data;
+  }
+
+  /**
+   * Records a time stamp with a reserved handle, such as when it was granted.
+   * The stamp is cleared when the handle is reserved again.
+   * 
+   * @param handle the handle
+   * @param stamp  the time stamp
+   */
+  public void stamp(final FlexLockHandle handle, final long stamp) {
+    final int slot = handle.getIndex();
+    final Chunk[] current = chunks;
+    final int chunkIndex = slot >>> CHUNK_SHIFT;
+    if (slot < 0 || chunkIndex >= current.length || current[chunkIndex].handles.get(slot & CHUNK_MASK) != handle)
+      return;
+    current[chunkIndex].stamps.set(slot & CHUNK_MASK, stamp);
+  }
+
+  /**
+   * @param handle the handle
+   * @return the time stamp recorded with the handle, 0 if there is none
+   */
+  public long getStamp(final FlexLockHandle handle) {
+    final int slot = handle.getIndex();
+    final Chunk[] current = chunks;
+    final int chunkIndex = slot >>> CHUNK_SHIFT;
+    if (slot < 0 || chunkIndex >= current.length || current[chunkIndex].handles.get(slot & CHUNK_MASK) != handle)
+      return 0;
+    return current[chunkIndex].stamps.get(slot & CHUNK_MASK);
+  }
+
   /**
    * Reserves access to the data.
    * 
    * @param data the data be reserved.
    * @return handle to the data, needed to release the reservation.
    */
-  public synchronized FlexLockHandle reserve(final T data) {
-    final FlexLockHandle next = availableHandles.poll();
-    if (next == null) {
-      dataStorage.add(data);
-      return new FlexLockHandle(dataStorage.size() - 1);
+  public FlexLockHandle reserve(final T data) {
+    for (;;) {
+      final long top = freeTop.get();
+      final int slot = slotOf(top);
+      if (slot == NO_SLOT) {
+        grow();
+        continue;
+      }
+      final Chunk chunk = chunks[slot >>> CHUNK_SHIFT];
+      final int offset = slot & CHUNK_MASK;
+      if (freeTop.compareAndSet(top, pack(versionOf(top) + 1, chunk.next.get(offset)))) {
+        chunk.stamps.lazySet(offset, 0);
+        chunk.data.set(offset, data);
+        return chunk.handles.get(offset);
+      }
+    }
+  }
+
+  private void push(final Chunk chunk, final int slot) {
+    final int offset = slot & CHUNK_MASK;
+    for (;;) {
+      final long top = freeTop.get();
+      chunk.next.set(offset, slotOf(top));
+      if (freeTop.compareAndSet(top, pack(versionOf(top) + 1, slot)))
+        return;
+    }
+  }
+
+  /**
+   * Adds a chunk of free slots when the free stack is empty.
+   */
+  private void grow() {
+    growLock.lock();
+    try {
+      if (slotOf(freeTop.get()) != NO_SLOT)
+        return;
+      final Chunk[] current = chunks;
+      final int base = current.length << CHUNK_SHIFT;
+      final Chunk chunk = new Chunk();
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        chunk.handles.set(i, new FlexLockHandle(base + i, ownerTokenGenerator));
+        chunk.data.set(i, UNUSED);
+        chunk.next.set(i, i + 1 < CHUNK_SIZE ? base + i + 1 : NO_SLOT);
+      }
+      final Chunk[] grown = new Chunk[current.length + 1];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      grown[current.length] = chunk;
+      chunks = grown;
+
+      for (;;) {
+        final long top = freeTop.get();
+        chunk.next.set(CHUNK_MASK, slotOf(top));
+        if (freeTop.compareAndSet(top, pack(versionOf(top) + 1, base)))
+          return;
+      }
+    } finally {
+      growLock.unlock();
     }
+  }
+
+  private static long pack(final int version, final int slot) {
+    return ((long) version << 32) | (slot & 0xffffffffL);
+  }
+
+  private static int slotOf(final long top) {
+    return (int) top;
+  }
 
-    dataStorage.set(next.getIndex(), data);
-    return next;
+  private static int versionOf(final long top) {
+    return (int) (top >>> 32);
   }
 
 }
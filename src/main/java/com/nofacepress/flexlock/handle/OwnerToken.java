@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.handle;
+
+import java.util.UUID;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Compact 128 bit value identifying the owner of a lock. The low 64 bits are
+ * unique on their own for tokens created by the SequentialOwnerTokenGenerator
+ * and are what gets stored in numeric owner columns.
+ */
+@EqualsAndHashCode(of = { "mostSignificantBits", "leastSignificantBits" })
+public final class OwnerToken {
+
+  @Getter
+  private final long mostSignificantBits;
+  @Getter
+  private final long leastSignificantBits;
+
+  private volatile String text = null;
+  private volatile byte[] bytes = null;
+
+  public OwnerToken(final long mostSignificantBits, final long leastSignificantBits) {
+    this.mostSignificantBits = mostSignificantBits;
+    this.leastSignificantBits = leastSignificantBits;
+  }
+
+  /**
+   * @return the token as a single long, used for numeric owner columns
+   */
+  public long asLong() {
+    return leastSignificantBits;
+  }
+
+  /**
+   * @return the token as 16 big-endian bytes, used for binary owner columns.
+   *         The array is cached and must not be modified.
+   */
+  public byte[] toBytes() {
+    byte[] result = bytes;
+    if (result == null) {
+      result = new byte[16];
+      for (int i = 0; i < 8; i++) {
+        result[i] = (byte) (mostSignificantBits >>> (56 - 8 * i));
+        result[i + 8] = (byte) (leastSignificantBits >>> (56 - 8 * i));
+      }
+      bytes = result;
+    }
+    return result;
+  }
+
+  /**
+   * @return the token formatted like a UUID, used for character owner columns
+   */
+  @Override
+  public String toString() {
+    String result = text;
+    if (result == null) {
+      result = new UUID(mostSignificantBits, leastSignificantBits).toString();
+      text = result;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.handle;
+
+/**
+ * Creates the owner tokens given to new handles. Handles are pooled, so a
+ * token is only created when the pool grows, but every node sharing a lock
+ * table must produce distinct tokens.
+ */
+public interface OwnerTokenGenerator {
+
+  /**
+   * @return a new, unique owner token
+   */
+  OwnerToken next();
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.handle;
+
+import java.util.UUID;
+import lombok.ToString;
+
+/**
+ * Owner token generator using random UUIDs, as handles did originally. Only
+ * useful where owners must not be guessable; it is much slower than the
+ * SequentialOwnerTokenGenerator.
+ */
+@ToString
+public class RandomOwnerTokenGenerator implements OwnerTokenGenerator {
+
+  @Override
+  public OwnerToken next() {
+    final UUID uuid = UUID.randomUUID();
+    return new OwnerToken(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+  }
+
+}
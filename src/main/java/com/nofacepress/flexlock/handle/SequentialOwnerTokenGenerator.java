@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.handle;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Default owner token generator. Tokens are built from a node id, the time the
+ * generator was created and a counter, so creating one is a single atomic
+ * increment.
+ *
+ * The high 64 bits hold the creation time. With an explicit node id the low
+ * 64 bits hold the node id in the top 24 bits and the counter in the remaining
+ * 40. Without one the low 64 bits count up from a random 64 bit start picked
+ * once per generator, so generators on different nodes are unlikely to
+ * collide even when the low 64 bits alone are used as owner, for example with
+ * numeric owner columns.
+ */
+@ToString
+public class SequentialOwnerTokenGenerator implements OwnerTokenGenerator {
+
+  private static final int NODE_BITS = 24;
+  private static final int COUNTER_BITS = 64 - NODE_BITS;
+  private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+  /**
+   * The node id, or the top 24 bits of the random start without one.
+   */
+  @Getter
+  private final int nodeId;
+  @Getter
+  private final long epoch = System.currentTimeMillis();
+  private final long start;
+  private final long counterMask;
+  private final AtomicLong counter = new AtomicLong();
+
+  public SequentialOwnerTokenGenerator() {
+    start = new SecureRandom().nextLong();
+    counterMask = -1L;
+    nodeId = (int) (start >>> COUNTER_BITS);
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param nodeId id of this node, only the low 24 bits are used.
+   */
+  public SequentialOwnerTokenGenerator(final int nodeId) {
+    this.nodeId = nodeId & ((1 << NODE_BITS) - 1);
+    start = (long) this.nodeId << COUNTER_BITS;
+    counterMask = COUNTER_MASK;
+  }
+
+  @Override
+  public OwnerToken next() {
+    return new OwnerToken(epoch, start + (counter.incrementAndGet() & counterMask));
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.metrics;
+
+/**
+ * Receives measurements from a FlexLockRegistry. Every method is called on the
+ * locking path, so implementations must be cheap and must not block. The
+ * registry does not take any time readings while NONE is set.
+ */
+public interface FlexLockMetrics {
+
+  /**
+   * Records nothing. The default of a registry.
+   */
+  FlexLockMetrics NONE = new FlexLockMetrics() {
+  };
+
+  /**
+   * A lock, shared lock or permit was obtained.
+   * 
+   * @param waitNanos the time from the request to obtaining it
+   * @param polls     the number of attempts made after first being refused
+   */
+  default void acquired(final long waitNanos, final int polls) {
+  }
+
+  /**
+   * A lock, shared lock or permit was released.
+   * 
+   * @param heldNanos the time it was held
+   */
+  default void released(final long heldNanos) {
+  }
+
+  /**
+   * A request was queued behind the holder of a key.
+   * 
+   * @param waiters the number of requests queued for the key, this one included
+   */
+  default void queued(final int waiters) {
+  }
+
+  /**
+   * The adapter was called.
+   * 
+   * @param nanos  the duration of the call
+   * @param failed true if the call failed with an exception or a renewal lost
+   *               leases; being refused a lock is not a failure
+   */
+  default void adapterCalled(final long nanos, final boolean failed) {
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Metrics kept in memory in histograms and counters, for export through
+ * snapshot. Times are in nanoseconds.
+ * 
+ * <pre>
+ * FlexLockStatistics statistics = new FlexLockStatistics();
+ * registry.setMetrics(statistics);
+ * ...
+ * FlexLockStatistics.Snapshot snapshot = statistics.snapshot();
+ * </pre>
+ */
+public class FlexLockStatistics implements FlexLockMetrics {
+
+  private final Histogram acquireTime = new Histogram();
+  private final Histogram holdTime = new Histogram();
+  private final Histogram polls = new Histogram();
+  private final Histogram queueDepth = new Histogram();
+  private final Histogram adapterTime = new Histogram();
+  private final LongAdder adapterErrors = new LongAdder();
+
+  @Override
+  public void acquired(final long waitNanos, final int polls) {
+    acquireTime.record(waitNanos);
+    this.polls.record(polls);
+  }
+
+  @Override
+  public void released(final long heldNanos) {
+    holdTime.record(heldNanos);
+  }
+
+  @Override
+  public void queued(final int waiters) {
+    queueDepth.record(waiters);
+  }
+
+  @Override
+  public void adapterCalled(final long nanos, final boolean failed) {
+    adapterTime.record(nanos);
+    if (failed)
+      adapterErrors.increment();
+  }
+
+  /**
+   * @return the current values
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(acquireTime.snapshot(), holdTime.snapshot(), polls.snapshot(), queueDepth.snapshot(),
+        adapterTime.snapshot(), adapterErrors.sum());
+  }
+
+  /**
+   * Values of the statistics at one point in time.
+   */
+  @Getter
+  @RequiredArgsConstructor
+  @ToString
+  public static class Snapshot {
+    /** time from each request to obtaining it */
+    private final Histogram.Snapshot acquireTime;
+    /** time each lock was held */
+    private final Histogram.Snapshot holdTime;
+    /** attempts per acquisition after first being refused */
+    private final Histogram.Snapshot polls;
+    /** queue length of a key each time a request was queued */
+    private final Histogram.Snapshot queueDepth;
+    /** duration of each adapter call */
+    private final Histogram.Snapshot adapterTime;
+    /** adapter calls that failed with an exception */
+    private final long adapterErrors;
+
+    /**
+     * @return the fraction of adapter calls that failed, 0 if there were none
+     */
+    public double getAdapterErrorRate() {
+      return adapterTime.getCount() == 0 ? 0 : (double) adapterErrors / adapterTime.getCount();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Lock-free histogram with one bucket per power of two. Recording a value does
+ * not allocate; a value lands in the bucket of its highest set bit, so
+ * percentiles are accurate to within a factor of two.
+ */
+public class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a value, negative values counting as zero.
+   * 
+   * @param value the value
+   */
+  public void record(final long value) {
+    final long v = Math.max(value, 0);
+    counts.incrementAndGet(bucketOf(v));
+    sum.addAndGet(v);
+    long current = max.get();
+    while (v > current && !max.compareAndSet(current, v))
+      current = max.get();
+  }
+
+  /**
+   * Copies the current state. Values recorded while copying may or may not be
+   * included.
+   * 
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    final long[] copy = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(copy, count, sum.get(), max.get());
+  }
+
+  private static int bucketOf(final long value) {
+    return Math.min(BUCKETS - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+  }
+
+  /**
+   * Values of a histogram at one point in time.
+   */
+  @RequiredArgsConstructor
+  @ToString(exclude = "counts")
+  public static class Snapshot {
+    private final long[] counts;
+    @Getter
+    private final long count;
+    @Getter
+    private final long sum;
+    @Getter
+    private final long max;
+
+    /**
+     * @return the mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given percentile.
+     * 
+     * @param percentile the percentile, from 0 to 100
+     * @return the value, never more than the largest recorded value
+     */
+    public long getPercentile(final double percentile) {
+      if (count == 0)
+        return 0;
+      final long rank = Math.max((long) Math.ceil(count * percentile / 100), 1);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank)
+          return i == 0 ? 0 : Math.min((1L << i) - 1, max);
+      }
+      return max;
+    }
+  }
+}
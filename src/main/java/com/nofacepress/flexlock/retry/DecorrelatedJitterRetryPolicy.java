@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Exponential backoff with decorrelated jitter: each delay is drawn at random
+ * between the minimum and three times the previous delay, capped at the
+ * maximum. Waiters on different nodes spread out instead of polling in step,
+ * and a key that stays held is polled less and less often.
+ */
+@Getter
+@ToString
+public class DecorrelatedJitterRetryPolicy implements RetryPolicy {
+
+  private final long minDelayInMilliseconds;
+  private final long maxDelayInMilliseconds;
+
+  /**
+   * Constructor
+   * 
+   * @param minDelayInMilliseconds the shortest delay, at least 1
+   * @param maxDelayInMilliseconds the longest delay, at least the minimum
+   */
+  public DecorrelatedJitterRetryPolicy(final long minDelayInMilliseconds, final long maxDelayInMilliseconds) {
+    if (minDelayInMilliseconds < 1 || maxDelayInMilliseconds < minDelayInMilliseconds)
+      throw new IllegalArgumentException("Expected 1 <= min <= max");
+    this.minDelayInMilliseconds = minDelayInMilliseconds;
+    this.maxDelayInMilliseconds = maxDelayInMilliseconds;
+  }
+
+  @Override
+  public long nextDelay(final long previousDelay) {
+    final long upper = Math.min(Math.max(previousDelay, minDelayInMilliseconds) * 3, maxDelayInMilliseconds);
+    if (upper <= minDelayInMilliseconds)
+      return minDelayInMilliseconds;
+    return ThreadLocalRandom.current().nextLong(minDelayInMilliseconds, upper + 1);
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.retry;
+
+/**
+ * Decides how long the first request queued for a key waits before asking the
+ * adapter again while the key is held elsewhere. The registry keeps the last
+ * delay of each key, so a policy can adapt to how contended the key is.
+ */
+public interface RetryPolicy {
+
+  /**
+   * @param previousDelay the delay last used for the key, 0 if there is none
+   * @return the delay before the next attempt in milliseconds
+   */
+  long nextDelay(long previousDelay);
+
+  /**
+   * Adjusts the delay kept for a key once the adapter granted it. By default the
+   * delay is halved, so a hot key starts backed off and a cold one settles back
+   * to the minimum.
+   * 
+   * @param previousDelay the delay last used for the key
+   * @return the delay to keep for the key
+   */
+  default long afterAcquired(final long previousDelay) {
+    return previousDelay / 2;
+  }
+}
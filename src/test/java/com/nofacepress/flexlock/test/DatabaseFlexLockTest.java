@@ -13,19 +13,51 @@
  */
 package com.nofacepress.flexlock.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import com.nofacepress.flexlock.DatabaseFlexLockRegistry;
 import com.nofacepress.flexlock.FlexLockRegistry;
+import com.nofacepress.flexlock.FlexSemaphore;
+import com.nofacepress.flexlock.LongFlexLockRegistry;
 import com.nofacepress.flexlock.adapter.DatabaseFlexLockAdapter;
 import com.nofacepress.flexlock.adapter.FlexLockAdapter;
+import com.nofacepress.flexlock.adapter.OwnerColumnType;
+import com.nofacepress.flexlock.adapter.TryLockResult;
+import com.nofacepress.flexlock.exception.AlreadyLockedException;
 import com.nofacepress.flexlock.exception.FlexLockException;
 import com.nofacepress.flexlock.handle.FlexLockHandle;
+import com.nofacepress.flexlock.metrics.FlexLockStatistics;
+import com.nofacepress.flexlock.retry.DecorrelatedJitterRetryPolicy;
 
 @RunWith(Run100.class)
 public class DatabaseFlexLockTest {
@@ -41,6 +73,12 @@ public class DatabaseFlexLockTest {
   public static final String DB_ALT_EXPIRES_COL = "alt_expires";
   public static final String DB_ALT_OWNER_COL = "alt_owner";
 
+  public static final String DB_NUMERIC_OWNER_TABLE_NAME = "TESTNUMERICOWNERMUTEX";
+  public static final String DB_BINARY_OWNER_TABLE_NAME = "TESTBINARYOWNERMUTEX";
+  public static final String DB_SHARED_TABLE_NAME = "TESTSHAREDMUTEX";
+  public static final String DB_READERS_COL = "readers";
+  public static final String DB_PERMIT_TABLE_NAME = "TESTPERMIT";
+
   @Test
   public void testLockAndUnlock() throws InterruptedException, FlexLockException, ClassNotFoundException, SQLException {
     final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
@@ -67,6 +105,18 @@ public class DatabaseFlexLockTest {
     assertTrue(diff < 600);
   }
 
+  @Test
+  public void testLockAsync() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle handle = registry.lock("key", 5000);
+    final CompletableFuture<FlexLockHandle> future = registry.lockAsync("key", 1000);
+    Thread.sleep(10);
+    assertFalse(future.isDone());
+    registry.unlock(handle);
+    registry.unlock(future.get(100, TimeUnit.MILLISECONDS));
+  }
+
   @Test
   public void testUnlockTwice() throws InterruptedException, FlexLockException, ClassNotFoundException, SQLException {
     final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
@@ -105,6 +155,16 @@ public class DatabaseFlexLockTest {
     registry.unlock(handle);
   }
 
+  @Test
+  public void testAltLongKeys() throws Exception {
+    final LongFlexLockRegistry registry = new LongFlexLockRegistry(new DatabaseFlexLockAdapter<Long>(DB_DRIVER,
+        DB_URL, DB_USER, DB_PASSWORD, DB_ALT_TABLE_NAME, DB_ALT_PRIMARY_KEY, DB_ALT_EXPIRES_COL, DB_ALT_OWNER_COL));
+    FlexLockHandle handle = registry.lock(101L, 1000);
+    registry.unlock(handle);
+    handle = registry.tryLock(101L, 1000);
+    registry.unlock(handle);
+  }
+
   @Test
   public void testAltLockExpires()
       throws InterruptedException, FlexLockException, ClassNotFoundException, SQLException {
@@ -138,4 +198,754 @@ public class DatabaseFlexLockTest {
         DB_ALT_TABLE_NAME, DB_ALT_PRIMARY_KEY, DB_ALT_EXPIRES_COL, DB_ALT_OWNER_COL);
     registry.unlock(null);
   }
+
+  @Test
+  public void testNumericOwnerColumn() throws Exception {
+    assertOwnerColumnWorks(DB_NUMERIC_OWNER_TABLE_NAME, OwnerColumnType.LONG);
+  }
+
+  @Test
+  public void testBinaryOwnerColumn() throws Exception {
+    assertOwnerColumnWorks(DB_BINARY_OWNER_TABLE_NAME, OwnerColumnType.BINARY);
+  }
+
+  @Test
+  public void testFirstLockCreatesRow() throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final String key = "upsert-" + System.nanoTime();
+    final FlexLockHandle owner = new FlexLockHandle();
+    final FlexLockHandle other = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue("Missing row was not created and claimed", adapter.tryLock(key, owner, now, now + 10000));
+    assertFalse("Row was claimed twice", adapter.tryLock(key, other, now, now + 10000));
+    adapter.unlock(key, owner);
+    assertTrue("Released row was not claimed", adapter.tryLock(key, other, now, now + 10000));
+    adapter.unlock(key, other);
+  }
+
+  @Test
+  public void testLockWithoutUpsert() throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    adapter.setUpsertOnLock(false);
+    final String key = "no-upsert-" + System.nanoTime();
+    final FlexLockHandle owner = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertFalse("Missing row was claimed", adapter.tryLock(key, owner, now, now + 10000));
+    adapter.ensureKeyExistsCreatingIfNessessary(key);
+    assertTrue("Could not get lock", adapter.tryLock(key, owner, now, now + 10000));
+    adapter.unlock(key, owner);
+  }
+
+  @Test
+  public void testKnownKeyIsNotLookedUpAgain() throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    adapter.setUpsertOnLock(false);
+    final String key = "known-" + System.nanoTime();
+    final FlexLockHandle owner = new FlexLockHandle();
+    adapter.ensureKeyExistsCreatingIfNessessary(key);
+    final Connection connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+    try {
+      final PreparedStatement stmt = connection.prepareStatement("delete from " + DB_TABLE_NAME + " where mutex_id=?");
+      stmt.setString(1, key);
+      assertEquals(1, stmt.executeUpdate());
+      stmt.close();
+    } finally {
+      connection.close();
+    }
+    adapter.ensureKeyExistsCreatingIfNessessary(key);
+    long now = System.currentTimeMillis();
+    assertFalse("Known key was looked up again", adapter.tryLock(key, owner, now, now + 10000));
+    adapter.clearKnownKeys();
+    adapter.ensureKeyExistsCreatingIfNessessary(key);
+    now = System.currentTimeMillis();
+    assertTrue("Forgotten key was not created", adapter.tryLock(key, owner, now, now + 10000));
+    adapter.unlock(key, owner);
+  }
+
+  @Test
+  public void testWarmUpKnownKeys() throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    adapter.setUpsertOnLock(false);
+    final String prefix = "warm-" + System.nanoTime() + "-";
+    adapter.ensureKeysExistCreatingIfNessessary(
+        Arrays.asList(prefix + "1", prefix + "2", prefix + "3", prefix + "4", prefix + "5"));
+
+    final DatabaseFlexLockAdapter<String> restarted = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    restarted.setUpsertOnLock(false);
+    restarted.setKnownKeyCacheSize(5);
+    assertEquals(0, restarted.getKnownKeyCount());
+    assertEquals("Warm up did not stop at the cache size", 5, restarted.warmUpKnownKeys(String.class, 2));
+    assertEquals(5, restarted.getKnownKeyCount());
+
+    final DatabaseFlexLockAdapter<Long> longs = new DatabaseFlexLockAdapter<Long>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_ALT_TABLE_NAME, DB_ALT_PRIMARY_KEY, DB_ALT_EXPIRES_COL, DB_ALT_OWNER_COL);
+    longs.setUpsertOnLock(false);
+    longs.ensureKeyExistsCreatingIfNessessary(42L);
+    longs.clearKnownKeys();
+    assertTrue(longs.warmUpKnownKeys(Long.class, 100) >= 1);
+  }
+
+  @Test
+  public void testExistingDataSource() throws Exception {
+    final AtomicInteger borrowed = new AtomicInteger();
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(countingDataSource(borrowed),
+        DB_TABLE_NAME);
+    final FlexLockHandle handle = registry.lock("data-source", 1000);
+    registry.unlock(handle);
+    assertTrue("Data source was not used", borrowed.get() > 0);
+  }
+
+  @Test
+  public void testReentrantLockSkipsAdapter() throws Exception {
+    final AtomicInteger borrowed = new AtomicInteger();
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(countingDataSource(borrowed),
+        DB_TABLE_NAME);
+    registry.setReentrant(true);
+    final String key = "reentrant-" + System.nanoTime();
+    final FlexLockHandle outer = registry.lock(key, 5000);
+    final int afterOuter = borrowed.get();
+    for (int i = 0; i < 5; i++)
+      registry.unlock(registry.lock(key, 1000));
+    assertEquals("Nested locks went to the database", afterOuter, borrowed.get());
+    registry.unlock(outer);
+    assertEquals("Outer unlock did not release the row", afterOuter + 1, borrowed.get());
+  }
+
+  @Test
+  public void testPinnedConnectionIsReused() throws Exception {
+    final AtomicInteger borrowed = new AtomicInteger();
+    final AtomicInteger returned = new AtomicInteger();
+    final DatabaseFlexLockAdapter<String> adapter = DatabaseFlexLockAdapter.<String>builder()
+        .dataSource(countingDataSource(borrowed, returned)).tableName(DB_TABLE_NAME).pinConnectionPerThread(true)
+        .build();
+    final FlexLockHandle owner = new FlexLockHandle();
+    for (int i = 0; i < 5; i++) {
+      final long now = System.currentTimeMillis();
+      assertTrue(adapter.tryLock("pinned", owner, now, now + 10000));
+      adapter.unlock("pinned", owner);
+    }
+    assertEquals("Connection was not kept by the thread", 1, borrowed.get());
+    final Thread other = new Thread(() -> {
+      try {
+        adapter.forceUnlock("pinned");
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    other.start();
+    other.join();
+    assertEquals("Threads shared a pinned connection", 2, borrowed.get());
+    assertEquals("Connection was returned while pinned", 0, returned.get());
+    final Thread next = new Thread(() -> {
+      try {
+        adapter.forceUnlock("pinned");
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    next.start();
+    next.join();
+    assertEquals("Connection of an ended thread was not returned", 1, returned.get());
+    adapter.close();
+    assertEquals("Pinned connections were not returned on close", 3, returned.get());
+  }
+
+  @Test
+  public void testBuilderPoolSettings() throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = DatabaseFlexLockAdapter.<String>builder().driver(DB_DRIVER)
+        .url(DB_URL).tableName(DB_TABLE_NAME).initialPoolSize(2).maxPoolSize(4).maxIdle(4).minIdle(1)
+        .maxOpenPreparedStatements(0).build();
+    final FlexLockHandle owner = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue(adapter.tryLock("built", owner, now, now + 10000));
+    adapter.unlock("built", owner);
+    adapter.close();
+  }
+
+  private static DataSource countingDataSource(final AtomicInteger borrowed) {
+    return countingDataSource(borrowed, new AtomicInteger());
+  }
+
+  private static DataSource countingDataSource(final AtomicInteger borrowed, final AtomicInteger returned) {
+    final JdbcDataSource h2 = new JdbcDataSource();
+    h2.setURL(DB_URL);
+    return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+        (proxy, method, args) -> {
+          if (!method.getName().equals("getConnection"))
+            return invoke(h2, method, args);
+          borrowed.incrementAndGet();
+          final Connection connection = (Connection) invoke(h2, method, args);
+          return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+              (connectionProxy, connectionMethod, connectionArgs) -> {
+                if (connectionMethod.getName().equals("close"))
+                  returned.incrementAndGet();
+                return invoke(connection, connectionMethod, connectionArgs);
+              });
+        });
+  }
+
+  private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (final InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Test
+  public void testLocalHandOffKeepsRow() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setLocalHandOffLimit(10);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final String key = "hand-off-" + System.nanoTime();
+    final FlexLockHandle first = registry.lock(key, 5000);
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Thread next = new Thread(() -> {
+      try {
+        final FlexLockHandle handle = registry.lock(key, 1000);
+        acquired.countDown();
+        release.await();
+        registry.unlock(handle);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    next.start();
+    Thread.sleep(150);
+    registry.unlock(first);
+    assertTrue("Lock was not handed on", acquired.await(1, TimeUnit.SECONDS));
+    assertEquals(1, registry.getLocalHandOffCount());
+    long now = System.currentTimeMillis();
+    assertFalse("Row was released between local holders", other.tryLock(key, otherHandle, now, now + 1000));
+    release.countDown();
+    next.join();
+    now = System.currentTimeMillis();
+    assertTrue("Row was not released by the last holder", other.tryLock(key, otherHandle, now, now + 1000));
+    other.unlock(key, otherHandle);
+  }
+
+  @Test
+  public void testLocalHandOffLimit() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setLocalHandOffLimit(1);
+    final String key = "hand-off-limit-" + System.nanoTime();
+    final FlexLockHandle first = registry.lock(key, 5000);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 2; i++) {
+      final Thread thread = new Thread(() -> {
+        try {
+          registry.unlock(registry.lock(key, 1000));
+        } catch (final Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+      Thread.sleep(100);
+    }
+    registry.unlock(first);
+    for (final Thread thread : threads)
+      thread.join();
+    assertEquals("Lock was handed on past the limit", 1, registry.getLocalHandOffCount());
+  }
+
+  @Test
+  public void testSharedLocksAcrossRegistries() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(sharedAdapter());
+    final FlexLockRegistry<String> registry2 = new FlexLockRegistry<String>(sharedAdapter());
+    final DatabaseFlexLockAdapter<String> other = sharedAdapter();
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final String key = "shared-" + System.nanoTime();
+    final FlexLockHandle first = registry.lockShared(key, 5000);
+    final FlexLockHandle second = registry2.lockShared(key, 5000);
+    final FlexLockHandle third = registry2.tryLockShared(key, 1000);
+    long now = System.currentTimeMillis();
+    assertFalse("Row was locked exclusively while shared", other.tryLock(key, otherHandle, now, now + 1000));
+    registry.unlock(first);
+    registry2.unlock(third);
+    now = System.currentTimeMillis();
+    assertFalse("Row was released before the last holder", other.tryLock(key, otherHandle, now, now + 1000));
+    registry2.unlock(second);
+    now = System.currentTimeMillis();
+    assertTrue("Row was not released by the last holder", other.tryLock(key, otherHandle, now, now + 1000));
+    try {
+      registry.tryLockShared(key, 1000);
+      assertTrue("Shared lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    other.unlock(key, otherHandle);
+    registry.unlock(registry.tryLockShared(key, 1000));
+  }
+
+  @Test
+  public void testFirstSharedLockersDoNotCollide() throws Exception {
+    final List<DatabaseFlexLockAdapter<String>> adapters = new ArrayList<DatabaseFlexLockAdapter<String>>();
+    for (int i = 0; i < 4; i++)
+      adapters.add(sharedAdapter());
+    final AtomicInteger failures = new AtomicInteger();
+    for (int round = 0; round < 50; round++) {
+      final String key = "shared-first-" + System.nanoTime();
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Thread> threads = new ArrayList<Thread>();
+      for (final DatabaseFlexLockAdapter<String> adapter : adapters) {
+        final Thread thread = new Thread(() -> {
+          try {
+            start.await();
+            final long now = System.currentTimeMillis();
+            adapter.tryLockShared(key, now, now + 10000);
+          } catch (final Exception e) {
+            failures.incrementAndGet();
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      start.countDown();
+      for (final Thread thread : threads)
+        thread.join();
+    }
+    assertEquals("Creating the row failed", 0, failures.get());
+  }
+
+  @Test
+  public void testSharedLockNeedsReadersColumn() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    try {
+      registry.lockShared("key", 1000);
+      assertTrue("Shared lock should not have been obtained", false);
+    } catch (final FlexLockException e) {
+      assertFalse(e instanceof AlreadyLockedException);
+    }
+  }
+
+  @Test
+  public void testSemaphoreAcrossRegistries() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(permitAdapter());
+    final FlexLockRegistry<String> registry2 = new FlexLockRegistry<String>(permitAdapter());
+    final String key = "permits-" + System.nanoTime();
+    final FlexSemaphore<String> semaphore = new FlexSemaphore<String>(key, registry, 2);
+    final FlexSemaphore<String> semaphore2 = new FlexSemaphore<String>(key, registry2, 2);
+    final FlexLockHandle first = semaphore.tryAcquire(5000);
+    final FlexLockHandle second = semaphore2.tryAcquire(5000);
+    try {
+      semaphore.tryAcquire(1000);
+      assertTrue("Permit should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    semaphore2.release(second);
+    final FlexLockHandle third = semaphore.tryAcquire(1000);
+    semaphore.release(first);
+    semaphore.release(third);
+  }
+
+  @Test
+  public void testSemaphorePermitExpiresAcrossRegistries() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(permitAdapter());
+    final FlexLockRegistry<String> registry2 = new FlexLockRegistry<String>(permitAdapter());
+    final String key = "permits-" + System.nanoTime();
+    final long start = System.currentTimeMillis();
+    final FlexLockHandle expired = registry.acquirePermit(key, 1, 200);
+    final FlexLockHandle handle = registry2.acquirePermit(key, 1, 1000);
+    assertTrue(System.currentTimeMillis() - start >= 175);
+    registry2.unlock(handle);
+    registry.unlock(expired);
+  }
+
+  @Test
+  public void testSemaphoreNeedsPermitTable() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    try {
+      registry.tryAcquirePermit("key", 2, 1000);
+      assertTrue("Permit should not have been obtained", false);
+    } catch (final FlexLockException e) {
+      assertFalse(e instanceof AlreadyLockedException);
+    }
+  }
+
+  private static DatabaseFlexLockAdapter<String> permitAdapter() {
+    return DatabaseFlexLockAdapter.<String>builder().driver(DB_DRIVER).url(DB_URL).tableName(DB_TABLE_NAME)
+        .permitTableName(DB_PERMIT_TABLE_NAME).build();
+  }
+
+  private static DatabaseFlexLockAdapter<String> sharedAdapter() {
+    return DatabaseFlexLockAdapter.<String>builder().driver(DB_DRIVER).url(DB_URL).tableName(DB_SHARED_TABLE_NAME)
+        .readersColumnName(DB_READERS_COL).build();
+  }
+
+  @Test
+  public void testLeaseIsRenewedWhileHeld() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setLeaseTimeInMilliseconds(100);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final FlexLockHandle handle = registry.lock("lease", 5000);
+    Thread.sleep(350);
+    long now = System.currentTimeMillis();
+    assertFalse("Lease was not renewed", other.tryLock("lease", otherHandle, now, now + 1000));
+    registry.unlock(handle);
+    now = System.currentTimeMillis();
+    assertTrue("Lock was not released", other.tryLock("lease", otherHandle, now, now + 1000));
+    other.unlock("lease", otherHandle);
+  }
+
+  @Test
+  public void testLeaseExpiresWithoutRenewal() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setLeaseTimeInMilliseconds(100);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final FlexLockHandle handle = registry.lock("lease-crash", 5000);
+    // stands in for the holder dying: renewals stop and the lease runs out
+    registry.setLeaseTimeInMilliseconds(0);
+    Thread.sleep(200);
+    final long now = System.currentTimeMillis();
+    assertTrue("Lease outlived its renewals", other.tryLock("lease-crash", otherHandle, now, now + 1000));
+    other.unlock("lease-crash", otherHandle);
+    registry.unlock(handle);
+  }
+
+  @Test
+  public void testLeaseIsNotRenewedPastMaxTime() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setLeaseTimeInMilliseconds(100);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final FlexLockHandle handle = registry.lock("lease-max", 250);
+    Thread.sleep(150);
+    long now = System.currentTimeMillis();
+    assertFalse("Lease was not renewed", other.tryLock("lease-max", otherHandle, now, now + 1000));
+    Thread.sleep(200);
+    now = System.currentTimeMillis();
+    assertTrue("Lease outlived the maximum time", other.tryLock("lease-max", otherHandle, now, now + 1000));
+    other.unlock("lease-max", otherHandle);
+    registry.unlock(handle);
+  }
+
+  @Test
+  public void testSlowExpiryReleaseDoesNotHoldUpOthers() throws Exception {
+    final CountDownLatch slowReleased = new CountDownLatch(1);
+    final DatabaseFlexLockAdapter<String> slow = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME) {
+      @Override
+      public void unlock(final String key, final FlexLockHandle handle) throws Exception {
+        if (key.startsWith("expire-slow"))
+          slowReleased.await();
+        super.unlock(key, handle);
+      }
+    };
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(slow);
+    registry.setExpiryTickInMilliseconds(10);
+    final String slowKey = "expire-slow-" + System.nanoTime();
+    final String fastKey = "expire-fast-" + System.nanoTime();
+    registry.lock(slowKey, 100);
+    registry.lock(fastKey, 150);
+    final CompletableFuture<FlexLockHandle> waiter = registry.lockAsync(fastKey, 1000);
+    try {
+      registry.unlock(waiter.get(1, TimeUnit.SECONDS));
+    } finally {
+      slowReleased.countDown();
+    }
+  }
+
+  @Test
+  public void testBusyMutexDoesNotHoldUpExpiry() throws Exception {
+    final CountDownLatch busyReleased = new CountDownLatch(1);
+    final DatabaseFlexLockAdapter<String> slow = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME) {
+      @Override
+      public void unlock(final String key, final FlexLockHandle handle) throws Exception {
+        if (key.startsWith("expire-busy"))
+          busyReleased.await();
+        super.unlock(key, handle);
+      }
+    };
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(slow);
+    registry.setExpiryTickInMilliseconds(10);
+    final String busyKey = "expire-busy-" + System.nanoTime();
+    final String fastKey = "expire-fast-" + System.nanoTime();
+    final FlexLockHandle busy = registry.lock(busyKey, 100);
+    registry.lock(fastKey, 150);
+    // the unlock keeps the mutex busy past its expiry
+    final Thread unlocker = new Thread(() -> {
+      try {
+        registry.unlock(busy);
+      } catch (final FlexLockException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    unlocker.start();
+    final CompletableFuture<FlexLockHandle> waiter = registry.lockAsync(fastKey, 1000);
+    try {
+      registry.unlock(waiter.get(1, TimeUnit.SECONDS));
+    } finally {
+      busyReleased.countDown();
+    }
+    unlocker.join();
+  }
+
+  @Test
+  public void testAsyncLockCompletesWhenAdapterThrows() throws Exception {
+    final DatabaseFlexLockAdapter<String> broken = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME) {
+      @Override
+      public boolean tryLock(final String key, final FlexLockHandle handle, final long now, final long expireTime)
+          throws Exception {
+        if (key.startsWith("async-broken"))
+          throw new IllegalStateException("adapter bug");
+        if (key.startsWith("async-error"))
+          throw new AssertionError("adapter bug");
+        return super.tryLock(key, handle, now, expireTime);
+      }
+    };
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(broken);
+    for (final String key : Arrays.asList("async-broken-" + System.nanoTime(), "async-error-" + System.nanoTime())) {
+      final List<CompletableFuture<FlexLockHandle>> futures = Arrays.asList(registry.tryLockAsync(key, 1000),
+          registry.lockAsync(key, 1000));
+      for (final CompletableFuture<FlexLockHandle> future : futures) {
+        try {
+          future.get(1, TimeUnit.SECONDS);
+          assertTrue("Lock should have failed", false);
+        } catch (final ExecutionException e) {
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFailedRenewalStopsLocalHandOff() throws Exception {
+    final DatabaseFlexLockAdapter<String> failing = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME) {
+      @Override
+      public Set<String> renew(final Map<String, FlexLockHandle> leases, final long now, final long expireTime)
+          throws SQLException {
+        throw new SQLException("connection lost");
+      }
+    };
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>(failing);
+    registry.setLeaseTimeInMilliseconds(100);
+    registry.setLocalHandOffLimit(10);
+    final String key = "lease-failed-" + System.nanoTime();
+    final FlexLockHandle first = registry.lock(key, 5000);
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final Thread next = new Thread(() -> {
+      try {
+        registry.unlock(registry.lock(key, 1000));
+        acquired.countDown();
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    next.start();
+    Thread.sleep(150);
+    registry.unlock(first);
+    assertTrue("Lock was not passed on", acquired.await(1, TimeUnit.SECONDS));
+    assertEquals("Lock was handed on without a renewed lease", 0, registry.getLocalHandOffCount());
+    next.join();
+  }
+
+  @Test
+  public void testLostLeaseIsReportedAndNotRenewed() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockStatistics statistics = new FlexLockStatistics();
+    registry.setMetrics(statistics);
+    registry.setLeaseTimeInMilliseconds(100);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final FlexLockHandle handle = registry.lock("lease-lost", 5000);
+    other.forceUnlock("lease-lost");
+    long now = System.currentTimeMillis();
+    assertTrue("Row was not taken over", other.tryLock("lease-lost", otherHandle, now, now + 5000));
+    Thread.sleep(150);
+    final long errors = statistics.snapshot().getAdapterErrors();
+    assertEquals("Lost lease was not reported", 1, errors);
+    Thread.sleep(150);
+    assertEquals("Lost lease was still renewed", errors, statistics.snapshot().getAdapterErrors());
+    now = System.currentTimeMillis();
+    assertFalse("Lost lease took the row back", other.tryLock("lease-lost", new FlexLockHandle(), now, now + 1000));
+    registry.unlock(handle);
+    other.unlock("lease-lost", otherHandle);
+  }
+
+  @Test
+  public void testMetricsRecordAdapterCalls() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockStatistics statistics = new FlexLockStatistics();
+    registry.setMetrics(statistics);
+    registry.unlock(registry.lock("metrics", 1000));
+    FlexLockStatistics.Snapshot snapshot = statistics.snapshot();
+    assertEquals(1, snapshot.getAcquireTime().getCount());
+    assertEquals(1, snapshot.getHoldTime().getCount());
+    // creating the row, claiming it and releasing it
+    assertEquals(3, snapshot.getAdapterTime().getCount());
+    assertEquals(0, snapshot.getAdapterErrors());
+
+    registry.setAdapter(new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER, DB_PASSWORD, "NOSUCHTABLE"));
+    try {
+      registry.tryLock("metrics-missing", 1000);
+      assertTrue("Lock should not have been obtained", false);
+    } catch (final FlexLockException e) {
+    }
+    snapshot = statistics.snapshot();
+    assertEquals(1, snapshot.getAdapterErrors());
+    assertEquals(1.0 / snapshot.getAdapterTime().getCount(), snapshot.getAdapterErrorRate(), 0.001);
+  }
+
+  @Test
+  public void testRetryPolicyPacesRemoteWaits() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setRetryPolicy(new DecorrelatedJitterRetryPolicy(5, 20));
+    final FlexLockStatistics statistics = new FlexLockStatistics();
+    registry.setMetrics(statistics);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final String key = "retry-" + System.nanoTime();
+    other.ensureKeyExistsCreatingIfNessessary(key);
+    final long now = System.currentTimeMillis();
+    assertTrue(other.tryLock(key, otherHandle, now, now + 10000));
+    final CompletableFuture<FlexLockHandle> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return registry.lock(key, 1000);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(150);
+    other.unlock(key, otherHandle);
+    registry.unlock(waiting.get(1, TimeUnit.SECONDS));
+    final FlexLockStatistics.Snapshot snapshot = statistics.snapshot();
+    assertTrue("Waiter did not retry within the policy", snapshot.getPolls().getMax() >= 5);
+    assertTrue("Waiter polled past the maximum delay",
+        snapshot.getAcquireTime().getMax() < TimeUnit.MILLISECONDS.toNanos(150 + 100));
+  }
+
+  @Test
+  public void testWaitsForHolderExpiry() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    registry.setWaitForHolderExpiry(true);
+    registry.setPollingIntervalInMilliseconds(20);
+    final FlexLockStatistics statistics = new FlexLockStatistics();
+    registry.setMetrics(statistics);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final String key = "expiry-" + System.nanoTime();
+    other.ensureKeyExistsCreatingIfNessessary(key);
+    final long now = System.currentTimeMillis();
+    assertTrue(other.tryLock(key, otherHandle, now, now + 300));
+    final TryLockResult refused = other.tryLockReportingExpiry(key, new FlexLockHandle(), now, now + 1000);
+    assertFalse(refused.isLocked());
+    assertEquals(now + 300, refused.getHolderExpireTime());
+
+    final FlexLockHandle handle = registry.lock(key, 1000);
+    assertTrue("Lock was obtained before the holder expired", System.currentTimeMillis() >= now + 300);
+    registry.unlock(handle);
+    assertTrue("Waiter polled instead of waiting for the expiry", statistics.snapshot().getPolls().getMax() <= 2);
+  }
+
+  @Test
+  public void testLockAllClaimsEveryRow() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final List<String> keys = Arrays.asList("all-3", "all-1", "all-2");
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    final Map<String, FlexLockHandle> locked = registry.lockAll(keys, 5000);
+    long now = System.currentTimeMillis();
+    for (final String key : keys)
+      assertFalse("Row was not claimed", other.tryLock(key, otherHandle, now, now + 1000));
+    registry.unlockAll(locked.values());
+    now = System.currentTimeMillis();
+    for (final String key : keys) {
+      assertTrue("Row was not released", other.tryLock(key, otherHandle, now, now + 1000));
+      other.unlock(key, otherHandle);
+    }
+  }
+
+  @Test
+  public void testTryLockAllRollsBack() throws Exception {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final DatabaseFlexLockAdapter<String> other = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, DB_TABLE_NAME);
+    final FlexLockHandle otherHandle = new FlexLockHandle();
+    other.ensureKeyExistsCreatingIfNessessary("rollback-2");
+    long now = System.currentTimeMillis();
+    assertTrue(other.tryLock("rollback-2", otherHandle, now, now + 5000));
+    try {
+      registry.tryLockAll(Arrays.asList("rollback-1", "rollback-2", "rollback-3"), 5000);
+      assertTrue("Locks should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    now = System.currentTimeMillis();
+    assertTrue("Claim was not rolled back", other.tryLock("rollback-1", otherHandle, now, now + 1000));
+    other.unlock("rollback-1", otherHandle);
+    other.unlock("rollback-2", otherHandle);
+  }
+
+  @Test
+  public void testVirtualThreadLockersDoNotPin() throws Exception {
+    Assume.assumeNotNull(VirtualThreadLockers.virtualThreadFactory());
+    // the trace is process wide, so the lockers run in a process of their own
+    final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    final Process lockers = new ProcessBuilder(java, "-Djdk.tracePinnedThreads=full", "-cp",
+        System.getProperty("java.class.path"), VirtualThreadLockers.class.getName()).redirectErrorStream(true)
+            .start();
+    try {
+      final BufferedReader output = new BufferedReader(new InputStreamReader(lockers.getInputStream()));
+      final List<String> lines = new ArrayList<String>();
+      for (String line = output.readLine(); line != null; line = output.readLine())
+        lines.add(line);
+      assertEquals("Lockers failed: " + lines, 0, lockers.waitFor());
+      assertTrue("Not every locker completed: " + lines,
+          lines.contains("completed " + VirtualThreadLockers.LOCKERS));
+      for (final String line : lines) {
+        assertFalse("Virtual thread pinned by " + line,
+            line.contains("com.nofacepress.flexlock.") && line.contains("<== monitors"));
+      }
+    } finally {
+      lockers.destroy();
+    }
+  }
+
+  private void assertOwnerColumnWorks(final String tableName, final OwnerColumnType ownerColumnType)
+      throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = new DatabaseFlexLockAdapter<String>(DB_DRIVER, DB_URL, DB_USER,
+        DB_PASSWORD, tableName);
+    adapter.setOwnerColumnType(ownerColumnType);
+    adapter.ensureKeyExistsCreatingIfNessessary("key");
+    final FlexLockHandle owner = new FlexLockHandle();
+    final FlexLockHandle other = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue("Could not get lock", adapter.tryLock("key", owner, now, now + 10000));
+    adapter.unlock("key", other);
+    assertFalse("Lock was released by a different owner", adapter.tryLock("key", other, now, now + 10000));
+    adapter.unlock("key", owner);
+    assertTrue("Lock was not released by its owner", adapter.tryLock("key", other, now, now + 10000));
+    adapter.unlock("key", other);
+  }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+import com.nofacepress.flexlock.handle.FlexLockHandlePool;
+import com.nofacepress.flexlock.handle.OwnerToken;
+import com.nofacepress.flexlock.handle.SequentialOwnerTokenGenerator;
+
+@RunWith(Run100.class)
+public class FlexLockHandlePoolTest {
+
+  @Test
+  public void testReserveAndRelease() {
+    final FlexLockHandlePool<String> pool = new FlexLockHandlePool<String>();
+    final FlexLockHandle handle = pool.reserve("data");
+    assertEquals("data", pool.release(handle));
+    assertNull(pool.release(handle));
+    assertSame(handle, pool.reserve("again"));
+  }
+
+  @Test
+  public void testGetDoesNotRelease() {
+    final FlexLockHandlePool<String> pool = new FlexLockHandlePool<String>();
+    final FlexLockHandle handle = pool.reserve("data");
+    assertEquals("data", pool.get(handle));
+    assertEquals("data", pool.release(handle));
+    assertNull(pool.get(handle));
+  }
+
+  @Test
+  public void testExpireRetiresHandle() {
+    final FlexLockHandlePool<String> pool = new FlexLockHandlePool<String>();
+    final FlexLockHandle handle = pool.reserve("data");
+    assertEquals("data", pool.expire(handle));
+    assertNull(pool.expire(handle));
+    final FlexLockHandle reused = pool.reserve("again");
+    assertNotSame(handle, reused);
+    assertEquals(handle.getIndex(), reused.getIndex());
+    assertNotEquals(handle.getOwner(), reused.getOwner());
+    assertNull(pool.release(handle));
+    assertEquals("again", pool.get(reused));
+  }
+
+  @Test
+  public void testHandlesHaveDistinctOwners() {
+    final FlexLockHandlePool<String> pool = new FlexLockHandlePool<String>();
+    final FlexLockHandle first = pool.reserve("first");
+    final FlexLockHandle second = pool.reserve("second");
+    assertNotEquals(first.getOwner(), second.getOwner());
+    assertNotEquals(first.getUuid(), second.getUuid());
+    assertEquals(36, first.getUuid().length());
+  }
+
+  @Test
+  public void testOwnerTokenLowBits() {
+    final OwnerToken withNodeId = new SequentialOwnerTokenGenerator(0x123456).next();
+    assertEquals(0x123456L << 40 | 1, withNodeId.asLong());
+    final SequentialOwnerTokenGenerator random = new SequentialOwnerTokenGenerator();
+    final long first = random.next().asLong();
+    assertEquals(first + 1, random.next().asLong());
+    assertNotEquals(first, new SequentialOwnerTokenGenerator().next().asLong());
+  }
+
+  @Test
+  public void testForeignHandleIsIgnored() {
+    final FlexLockHandlePool<String> pool = new FlexLockHandlePool<String>();
+    pool.reserve("data");
+    assertNull(pool.release(new FlexLockHandle()));
+  }
+
+  @Test
+  public void testConcurrentReserveAndRelease() throws InterruptedException {
+    final FlexLockHandlePool<Integer> pool = new FlexLockHandlePool<Integer>();
+    final AtomicInteger errors = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final Integer id = i;
+      threads.add(new Thread(() -> {
+        final FlexLockHandle[] held = new FlexLockHandle[100];
+        for (int round = 0; round < 50; round++) {
+          for (int j = 0; j < held.length; j++)
+            held[j] = pool.reserve(id);
+          for (int j = 0; j < held.length; j++) {
+            if (pool.release(held[j]) != id)
+              errors.incrementAndGet();
+          }
+        }
+      }));
+    }
+    for (final Thread thread : threads)
+      thread.start();
+    for (final Thread thread : threads)
+      thread.join();
+    assertEquals(0, errors.get());
+  }
+}
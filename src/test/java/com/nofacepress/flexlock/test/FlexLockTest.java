@@ -13,13 +13,37 @@
  */
 package com.nofacepress.flexlock.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import com.nofacepress.flexlock.FlexLockInfo;
 import com.nofacepress.flexlock.FlexLockRegistry;
+import com.nofacepress.flexlock.FlexLockStallDetector;
+import com.nofacepress.flexlock.FlexSemaphore;
+import com.nofacepress.flexlock.LongFlexLockRegistry;
+import com.nofacepress.flexlock.exception.AlreadyLockedException;
 import com.nofacepress.flexlock.exception.FlexLockException;
 import com.nofacepress.flexlock.handle.FlexLockHandle;
+import com.nofacepress.flexlock.metrics.FlexLockMetrics;
+import com.nofacepress.flexlock.metrics.FlexLockStatistics;
+import com.nofacepress.flexlock.metrics.Histogram;
+import com.nofacepress.flexlock.retry.DecorrelatedJitterRetryPolicy;
 
 @RunWith(Run100.class)
 public class FlexLockTest {
@@ -46,6 +70,73 @@ public class FlexLockTest {
     assertTrue(stop - start < 525);
   }
 
+  @Test
+  public void testExpiryWheelGivesBackExpiredHandles() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setExpiryTickInMilliseconds(10);
+    final FlexLockHandle expired = registry.lock("key", 100);
+    Thread.sleep(200);
+    final FlexLockHandle handle = registry.lock("other", 1000);
+    assertEquals(expired.getIndex(), handle.getIndex());
+    assertNotSame(expired, handle);
+    registry.unlock(expired);
+    try {
+      registry.tryLock("other", 1000);
+      assertTrue("The expired handle should not have unlocked the key", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(handle);
+    assertTrue(registry.snapshot().isEmpty());
+  }
+
+  @Test
+  public void testExpiryWheelWakesWaiters() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setExpiryTickInMilliseconds(10);
+    final long start = System.currentTimeMillis();
+    registry.lock("key", 200);
+    final CompletableFuture<FlexLockHandle> async = registry.lockAsync("key", 200);
+    final FlexLockHandle handle = registry.lock("key", 1000);
+    final long stop = System.currentTimeMillis();
+    assertTrue(stop - start >= 375);
+    assertTrue(stop - start < 600);
+    assertTrue(async.isDone());
+    registry.unlock(handle);
+  }
+
+  @Test
+  public void testLongKeys() throws Exception {
+    final LongFlexLockRegistry registry = new LongFlexLockRegistry();
+    final FlexLockHandle handle = registry.lock(100000L, 1000);
+    try {
+      registry.tryLock(100000L, 1000);
+      assertTrue("Lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    try {
+      registry.tryLock(Long.valueOf(100000L), 1000);
+      assertTrue("Lock should not have been obtained with a boxed key", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(handle);
+    final FlexLockHandle reader = registry.lockShared(100000L, 1000);
+    registry.unlock(registry.tryLockShared(100000L, 1000));
+    registry.unlock(reader);
+    registry.unlock(registry.tryLock(100000L, 1000));
+  }
+
+  @Test
+  public void testLongKeysAreReclaimed() throws Exception {
+    final LongFlexLockRegistry registry = new LongFlexLockRegistry();
+    registry.setIdleEvictionInMilliseconds(0);
+    for (long key = 0; key < 1000; key++)
+      registry.unlock(registry.lock(key, 1000));
+    assertEquals(0, registry.getLiveMutexCount());
+    assertEquals(1000, registry.getReclaimedMutexCount());
+    final FlexLockHandle handle = registry.lock(7L, 1000);
+    registry.unlock(handle);
+  }
+
   @Test
   public void testUnlockTwice() throws InterruptedException, FlexLockException {
     final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
@@ -59,4 +150,629 @@ public class FlexLockTest {
     final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
     registry.unlock(null);
   }
+
+  @Test
+  public void testMetricsRecordWaitsAndHolds() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockStatistics statistics = new FlexLockStatistics();
+    registry.setMetrics(statistics);
+    final FlexLockHandle held = registry.lock("key", 5000);
+    final CompletableFuture<FlexLockHandle> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return registry.lock("key", 1000);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+    registry.unlock(held);
+    registry.unlock(waiting.get(1, TimeUnit.SECONDS));
+
+    final FlexLockStatistics.Snapshot snapshot = statistics.snapshot();
+    assertEquals(2, snapshot.getAcquireTime().getCount());
+    assertTrue(snapshot.getAcquireTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(75));
+    assertEquals(2, snapshot.getHoldTime().getCount());
+    assertTrue(snapshot.getHoldTime().getPercentile(100) >= TimeUnit.MILLISECONDS.toNanos(75));
+    assertEquals(1, snapshot.getQueueDepth().getCount());
+    assertEquals(1, snapshot.getQueueDepth().getMax());
+    assertEquals(0, snapshot.getAdapterTime().getCount());
+  }
+
+  @Test
+  public void testMetricsAreOffByDefault() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    assertTrue(registry.getMetrics() == FlexLockMetrics.NONE);
+    registry.setMetrics(null);
+    assertTrue(registry.getMetrics() == FlexLockMetrics.NONE);
+    registry.unlock(registry.lock("key", 1000));
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    final Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100; i++)
+      histogram.record(i);
+    final Histogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(100, snapshot.getCount());
+    assertEquals(5050, snapshot.getSum());
+    assertEquals(100, snapshot.getMax());
+    assertEquals(63, snapshot.getPercentile(50));
+    assertEquals(100, snapshot.getPercentile(99));
+    assertEquals(0, new Histogram().snapshot().getPercentile(50));
+  }
+
+  @Test
+  public void testSnapshotShowsHoldersAndWaiters() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final long before = System.currentTimeMillis();
+    final FlexLockHandle held = registry.lock("held", 5000);
+    final FlexLockHandle reader = registry.lockShared("shared", 5000);
+    registry.unlock(registry.lock("idle", 1000));
+    final CompletableFuture<FlexLockHandle> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return registry.lock("held", 1000);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+
+    final Map<String, FlexLockInfo<String>> byKey = new HashMap<String, FlexLockInfo<String>>();
+    for (final FlexLockInfo<String> info : registry.snapshot())
+      byKey.put(info.getKey(), info);
+    assertEquals(2, byKey.size());
+    final FlexLockInfo<String> info = byKey.get("held");
+    assertTrue(info.isHeld());
+    assertEquals(held.getUuid(), info.getOwner());
+    assertTrue(info.getHeldSince() >= before);
+    assertTrue(info.getExpireTime() >= info.getHeldSince() + 5000);
+    assertEquals(1, info.getWaiters());
+    assertFalse(byKey.get("shared").isHeld());
+    assertEquals(1, byKey.get("shared").getSharedHolders());
+
+    registry.unlock(held);
+    registry.unlock(waiting.get(1, TimeUnit.SECONDS));
+    registry.unlock(reader);
+    assertTrue(registry.snapshot().isEmpty());
+  }
+
+  @Test
+  public void testStallDetectorReportsLongHeldLocks() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockStallDetector<String> detector = new FlexLockStallDetector<String>(registry);
+    detector.setHeldThresholdInMilliseconds(50);
+    final List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+    detector.setListener(info -> reported.add(info.getKey()));
+    final FlexLockHandle slow = registry.lock("slow", 5000);
+    final FlexLockHandle fast = registry.lock("fast", 5000);
+    assertTrue(detector.detect().isEmpty());
+    Thread.sleep(100);
+    registry.unlock(fast);
+    detector.start(20);
+    Thread.sleep(100);
+    detector.stop();
+    assertFalse("Long held lock was not reported", reported.isEmpty());
+    assertFalse("Released lock was reported", reported.contains("fast"));
+    final int count = reported.size();
+    Thread.sleep(60);
+    assertEquals("Detector kept running after stop", count, reported.size());
+    registry.unlock(slow);
+  }
+
+  @Test
+  public void testStallDetectorReportsDeepQueues() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockStallDetector<String> detector = new FlexLockStallDetector<String>(registry);
+    detector.setHeldThresholdInMilliseconds(0);
+    detector.setWaiterThreshold(2);
+    final FlexLockHandle held = registry.lock("key", 5000);
+    final CompletableFuture<FlexLockHandle> first = registry.lockAsync("key", 1000);
+    assertTrue(detector.detect().isEmpty());
+    final CompletableFuture<FlexLockHandle> second = registry.lockAsync("key", 1000);
+    Thread.sleep(50);
+    final List<FlexLockInfo<String>> found = detector.detect();
+    assertEquals(1, found.size());
+    assertEquals(2, found.get(0).getWaiters());
+    registry.unlock(held);
+    registry.unlock(first.get(1, TimeUnit.SECONDS));
+    registry.unlock(second.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testDecorrelatedJitterStaysInBounds() {
+    final DecorrelatedJitterRetryPolicy policy = new DecorrelatedJitterRetryPolicy(10, 1000);
+    long delay = 0;
+    long longest = 0;
+    for (int i = 0; i < 1000; i++) {
+      delay = policy.nextDelay(delay);
+      assertTrue(delay >= 10 && delay <= 1000);
+      longest = Math.max(longest, delay);
+    }
+    assertTrue("Delay did not back off", longest > 30);
+    assertEquals(10, new DecorrelatedJitterRetryPolicy(10, 10).nextDelay(500));
+    assertEquals(250, policy.afterAcquired(500));
+    try {
+      new DecorrelatedJitterRetryPolicy(0, 10);
+      assertTrue("Policy should have been rejected", false);
+    } catch (final IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testIdleMutexIsReclaimed() throws InterruptedException, FlexLockException {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setIdleEvictionInMilliseconds(0);
+    final FlexLockHandle handle = registry.lock("key", 1000);
+    assertEquals(1, registry.getLiveMutexCount());
+    registry.unlock(handle);
+    assertEquals(0, registry.getLiveMutexCount());
+    assertEquals(1, registry.getReclaimedMutexCount());
+  }
+
+  @Test
+  public void testReclaimKeepsLocksExclusive() throws InterruptedException {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setIdleEvictionInMilliseconds(0);
+    final AtomicInteger holders = new AtomicInteger();
+    final AtomicInteger violations = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          for (int j = 0; j < 200; j++) {
+            final FlexLockHandle handle = registry.lock("key", 1000);
+            if (holders.incrementAndGet() != 1)
+              violations.incrementAndGet();
+            holders.decrementAndGet();
+            registry.unlock(handle);
+          }
+        } catch (final Exception e) {
+          violations.incrementAndGet();
+        }
+      }));
+    }
+    for (final Thread thread : threads)
+      thread.start();
+    for (final Thread thread : threads)
+      thread.join();
+    assertEquals(0, violations.get());
+    assertEquals(0, registry.getLiveMutexCount());
+  }
+
+  @Test
+  public void testWaitersAreServedInOrder() throws InterruptedException, FlexLockException {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<Thread> threads = new ArrayList<Thread>();
+    final FlexLockHandle handle = registry.lock("key", 5000);
+    for (int i = 0; i < 5; i++) {
+      final int id = i;
+      final Thread thread = new Thread(() -> {
+        try {
+          final FlexLockHandle waiterHandle = registry.lock("key", 5000);
+          order.add(id);
+          registry.unlock(waiterHandle);
+        } catch (final Exception e) {
+          order.add(-1);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+      Thread.sleep(10);
+    }
+    final long start = System.currentTimeMillis();
+    registry.unlock(handle);
+    for (final Thread thread : threads)
+      thread.join();
+    assertTrue(System.currentTimeMillis() - start < 100);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+  }
+
+  @Test
+  public void testLockAsync() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle handle = registry.lock("key", 5000);
+    final CompletableFuture<FlexLockHandle> future = registry.lockAsync("key", 1000);
+    assertFalse(future.isDone());
+    registry.unlock(handle);
+    registry.unlock(future.get(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testLockAsyncManyWaiters() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle handle = registry.lock("key", 5000);
+    final AtomicInteger holders = new AtomicInteger();
+    final AtomicInteger violations = new AtomicInteger();
+    final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+    for (int i = 0; i < 1000; i++) {
+      futures.add(registry.lockAsync("key", 5000).thenAccept(acquired -> {
+        if (holders.incrementAndGet() != 1)
+          violations.incrementAndGet();
+        holders.decrementAndGet();
+        try {
+          registry.unlock(acquired);
+        } catch (final FlexLockException e) {
+          violations.incrementAndGet();
+        }
+      }));
+    }
+    registry.unlock(handle);
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+    assertEquals(0, violations.get());
+  }
+
+  @Test
+  public void testLockAsyncTimesOut() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle handle = registry.lock("key", 5000);
+    final CompletableFuture<FlexLockHandle> future = registry.lockAsync("key", 1000, 20);
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      assertTrue("Lock should have timed out", false);
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    registry.unlock(handle);
+    registry.unlock(registry.tryLock("key", 1000));
+  }
+
+  @Test
+  public void testLockAsyncCancel() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle handle = registry.lock("key", 5000);
+    final CompletableFuture<FlexLockHandle> future = registry.lockAsync("key", 1000);
+    assertTrue(future.cancel(true));
+    registry.unlock(handle);
+    registry.unlock(registry.tryLock("key", 1000));
+  }
+
+  @Test
+  public void testSharedLocksExcludeOnlyExclusiveLocks() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle first = registry.tryLockShared("key", 1000);
+    final FlexLockHandle second = registry.tryLockShared("key", 1000);
+    try {
+      registry.tryLockExclusive("key", 1000);
+      assertTrue("Exclusive lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(first);
+    try {
+      registry.tryLock("key", 1000);
+      assertTrue("Exclusive lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(second);
+    final FlexLockHandle exclusive = registry.tryLockExclusive("key", 1000);
+    try {
+      registry.tryLockShared("key", 1000);
+      assertTrue("Shared lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(exclusive);
+  }
+
+  @Test
+  public void testExclusiveWaiterIsNotStarved() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final FlexLockHandle reader = registry.lockShared("key", 5000);
+    final Thread writer = new Thread(() -> {
+      try {
+        final FlexLockHandle handle = registry.lockExclusive("key", 1000);
+        order.add("writer");
+        registry.unlock(handle);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    writer.start();
+    Thread.sleep(100);
+    try {
+      registry.tryLockShared("key", 1000);
+      assertTrue("Shared lock should not have passed the waiting writer", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    final Thread lateReader = new Thread(() -> {
+      try {
+        final FlexLockHandle handle = registry.lockShared("key", 1000);
+        order.add("reader");
+        registry.unlock(handle);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    lateReader.start();
+    Thread.sleep(100);
+    assertTrue(order.isEmpty());
+    registry.unlock(reader);
+    writer.join();
+    lateReader.join();
+    assertEquals(Arrays.asList("writer", "reader"), order);
+  }
+
+  @Test
+  public void testReentrantLock() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setReentrant(true);
+    final FlexLockHandle outer = registry.lock("key", 5000);
+    final FlexLockHandle inner = registry.lock("key", 1000);
+    assertEquals(outer, inner);
+    assertEquals(outer, registry.tryLock("key", 1000));
+    final AtomicInteger otherThreadLocked = new AtomicInteger();
+    final Thread other = new Thread(() -> {
+      try {
+        registry.tryLock("key", 1000);
+        otherThreadLocked.incrementAndGet();
+      } catch (final FlexLockException e) {
+      }
+    });
+    other.start();
+    other.join();
+    assertEquals("Another thread entered the lock", 0, otherThreadLocked.get());
+    registry.unlock(inner);
+    registry.unlock(inner);
+    try {
+      registry.tryLockShared("key", 1000);
+      assertTrue("Lock was released before the outer hold", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(outer);
+    registry.unlock(registry.tryLockShared("key", 1000));
+  }
+
+  @Test
+  public void testReentrantLockKeepsLocksExclusive() throws InterruptedException {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setReentrant(true);
+    final AtomicInteger holders = new AtomicInteger();
+    final AtomicInteger violations = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          start.await();
+          for (int j = 0; j < 20000; j++) {
+            final FlexLockHandle handle = registry.lock("key", 1000);
+            if (holders.incrementAndGet() != 1)
+              violations.incrementAndGet();
+            registry.unlock(registry.lock("key", 1000));
+            holders.decrementAndGet();
+            registry.unlock(handle);
+          }
+        } catch (final Exception e) {
+          violations.incrementAndGet();
+        }
+      }));
+    }
+    for (final Thread thread : threads)
+      thread.start();
+    start.countDown();
+    for (final Thread thread : threads)
+      thread.join();
+    assertEquals(0, violations.get());
+  }
+
+  @Test
+  public void testReentrancyOwnerSpansThreads() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setReentrant(true);
+    registry.setReentrancyOwner(() -> "request-1");
+    final FlexLockHandle outer = registry.lock("key", 5000);
+    final AtomicInteger nested = new AtomicInteger();
+    final Thread worker = new Thread(() -> {
+      try {
+        registry.unlock(registry.tryLock("key", 1000));
+        nested.incrementAndGet();
+      } catch (final FlexLockException e) {
+      }
+    });
+    worker.start();
+    worker.join();
+    assertEquals("Context owner could not enter the lock", 1, nested.get());
+    registry.setReentrancyOwner(() -> "request-2");
+    try {
+      registry.tryLock("key", 1000);
+      assertTrue("Another owner entered the lock", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(outer);
+  }
+
+  @Test
+  public void testLockAllIsNotReentrant() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    registry.setReentrant(true);
+    final FlexLockHandle held = registry.lock("a", 200);
+    final long start = System.currentTimeMillis();
+    final Map<String, FlexLockHandle> locked = registry.lockAll(Arrays.asList("a", "b"), 1000);
+    assertTrue("A held key was entered again", System.currentTimeMillis() - start >= 150);
+    assertNotSame(held, locked.get("a"));
+    registry.unlockAll(locked.values());
+    registry.unlock(registry.tryLock("a", 1000));
+  }
+
+  @Test
+  public void testNotReentrantByDefault() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle handle = registry.lock("key", 1000);
+    try {
+      registry.tryLock("key", 1000);
+      assertTrue("Lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(handle);
+  }
+
+  @Test
+  public void testSemaphoreLimitsHolders() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexSemaphore<String> semaphore = new FlexSemaphore<String>("key", registry, 2);
+    final FlexLockHandle first = semaphore.tryAcquire(1000);
+    final FlexLockHandle second = semaphore.tryAcquire(1000);
+    try {
+      semaphore.tryAcquire(1000);
+      assertTrue("Permit should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    semaphore.release(first);
+    final FlexLockHandle third = semaphore.tryAcquire(1000);
+    semaphore.release(second);
+    semaphore.release(third);
+  }
+
+  @Test
+  public void testSemaphoreWaitsForRelease() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexSemaphore<String> semaphore = new FlexSemaphore<String>("key", registry, 1);
+    final FlexLockHandle held = semaphore.acquire(5000);
+    final CompletableFuture<FlexLockHandle> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return semaphore.acquire(1000);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse("Permit was granted while held", waiting.isDone());
+    semaphore.release(held);
+    semaphore.release(waiting.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSemaphorePermitExpires() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexSemaphore<String> semaphore = new FlexSemaphore<String>("key", registry, 1);
+    final long start = System.currentTimeMillis();
+    final FlexLockHandle expired = semaphore.acquire(200);
+    final FlexLockHandle handle = semaphore.acquire(1000);
+    assertTrue(System.currentTimeMillis() - start >= 175);
+    semaphore.release(expired);
+    semaphore.release(handle);
+  }
+
+  @Test
+  public void testForceUnlockReleasesPermits() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexSemaphore<String> semaphore = new FlexSemaphore<String>("key", registry, 1);
+    final FlexLockHandle forced = semaphore.acquire(5000);
+    final CompletableFuture<FlexLockHandle> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return semaphore.acquire(1000);
+      } catch (final Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(50);
+    registry.forceUnlock("key");
+    final FlexLockHandle handle = waiting.get(1, TimeUnit.SECONDS);
+    semaphore.release(forced);
+    try {
+      semaphore.tryAcquire(1000);
+      assertTrue("Permit should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    semaphore.release(handle);
+  }
+
+  @Test
+  public void testTryLockAllIsAllOrNothing() throws Exception {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final FlexLockHandle handle = registry.lock("b", 5000);
+    try {
+      registry.tryLockAll(Arrays.asList("c", "b", "a"), 1000);
+      assertTrue("Locks should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    registry.unlock(registry.tryLock("a", 1000));
+    registry.unlock(registry.tryLock("c", 1000));
+    registry.unlock(handle);
+    final Map<String, FlexLockHandle> locked = registry.tryLockAll(Arrays.asList("c", "b", "a", "b"), 1000);
+    assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(locked.keySet()));
+    registry.unlockAll(locked.values());
+    registry.unlock(registry.tryLock("b", 1000));
+  }
+
+  @Test
+  public void testLockAllInOppositeOrdersDoesNotDeadlock() throws InterruptedException {
+    final FlexLockRegistry<String> registry = new FlexLockRegistry<String>();
+    final List<String> forward = Arrays.asList("a", "b", "c", "d");
+    final List<String> backward = Arrays.asList("d", "c", "b", "a");
+    final AtomicInteger holders = new AtomicInteger();
+    final AtomicInteger violations = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final List<String> keys = i % 2 == 0 ? forward : backward;
+      threads.add(new Thread(() -> {
+        try {
+          for (int j = 0; j < 100; j++) {
+            final Map<String, FlexLockHandle> locked = registry.lockAll(keys.subList(j % 2, 4), 1000);
+            if (holders.incrementAndGet() != 1)
+              violations.incrementAndGet();
+            holders.decrementAndGet();
+            registry.unlockAll(locked.values());
+          }
+        } catch (final Exception e) {
+          violations.incrementAndGet();
+        }
+      }));
+    }
+    for (final Thread thread : threads)
+      thread.start();
+    for (final Thread thread : threads)
+      thread.join(5000);
+    for (final Thread thread : threads)
+      assertFalse("Deadlocked", thread.isAlive());
+    assertEquals(0, violations.get());
+  }
+
+  /**
+   * A key the canonical order cannot tell apart from other instances.
+   */
+  private static class TiedKey {
+    @Override
+    public int hashCode() {
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return "tied";
+    }
+  }
+
+  @Test
+  public void testLockAllWithTiedKeysDoesNotDeadlock() throws InterruptedException {
+    final FlexLockRegistry<TiedKey> registry = new FlexLockRegistry<TiedKey>();
+    final TiedKey x = new TiedKey();
+    final TiedKey y = new TiedKey();
+    final AtomicInteger holders = new AtomicInteger();
+    final AtomicInteger violations = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final List<TiedKey> keys = i % 2 == 0 ? Arrays.asList(x, y) : Arrays.asList(y, x);
+      threads.add(new Thread(() -> {
+        try {
+          for (int j = 0; j < 100; j++) {
+            final Map<TiedKey, FlexLockHandle> locked = registry.lockAll(keys, 1000);
+            if (holders.incrementAndGet() != 1)
+              violations.incrementAndGet();
+            holders.decrementAndGet();
+            registry.unlockAll(locked.values());
+          }
+        } catch (final Exception e) {
+          violations.incrementAndGet();
+        }
+      }));
+    }
+    for (final Thread thread : threads)
+      thread.start();
+    for (final Thread thread : threads)
+      thread.join(5000);
+    for (final Thread thread : threads)
+      assertFalse("Deadlocked", thread.isAlive());
+    assertEquals(0, violations.get());
+  }
 }
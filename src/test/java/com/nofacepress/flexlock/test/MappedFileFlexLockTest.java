@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.nofacepress.flexlock.FlexLockRegistry;
+import com.nofacepress.flexlock.MappedFileFlexLockRegistry;
+import com.nofacepress.flexlock.adapter.MappedFileFlexLockAdapter;
+import com.nofacepress.flexlock.exception.AlreadyLockedException;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+@RunWith(Run100.class)
+public class MappedFileFlexLockTest {
+
+  private static File lockFile() throws Exception {
+    final File file = File.createTempFile("flexlock", ".locks");
+    file.delete();
+    file.deleteOnExit();
+    return file;
+  }
+
+  @Test
+  public void testLockAndUnlock() throws Exception {
+    final FlexLockRegistry<String> registry = new MappedFileFlexLockRegistry<String>(lockFile());
+    FlexLockHandle handle = registry.lock("key", 1000);
+    registry.unlock(handle);
+    handle = registry.lock("key", 1000);
+    registry.unlock(handle);
+  }
+
+  @Test
+  public void testSharedFile() throws Exception {
+    final File file = lockFile();
+    final MappedFileFlexLockAdapter<String> adapter = new MappedFileFlexLockAdapter<String>(file, 64);
+    final MappedFileFlexLockAdapter<String> other = new MappedFileFlexLockAdapter<String>(file, 64);
+    final FlexLockHandle owner = new FlexLockHandle();
+    final FlexLockHandle otherOwner = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue(adapter.tryLock("key", owner, now, now + 10000));
+    assertFalse("Lock was claimed twice", other.tryLock("key", otherOwner, now, now + 10000));
+    other.unlock("key", otherOwner);
+    assertFalse("Lock was released by another owner", other.tryLock("key", otherOwner, now, now + 10000));
+    adapter.unlock("key", owner);
+    assertTrue("Lock was not released", other.tryLock("key", otherOwner, now, now + 10000));
+    adapter.forceUnlock("key");
+    assertTrue("Lock was not forced open", adapter.tryLock("key", owner, now, now + 10000));
+    adapter.close();
+    other.close();
+  }
+
+  @Test
+  public void testLockExpires() throws Exception {
+    final FlexLockRegistry<String> registry = new MappedFileFlexLockRegistry<String>(lockFile());
+    final FlexLockHandle handle = registry.lock("key", 100);
+    try {
+      registry.tryLock("key", 1000);
+      assertTrue("Lock should not have been obtained", false);
+    } catch (final AlreadyLockedException e) {
+    }
+    Thread.sleep(150);
+    registry.unlock(registry.tryLock("key", 1000));
+    registry.unlock(handle);
+  }
+
+  @Test
+  public void testRenew() throws Exception {
+    final MappedFileFlexLockAdapter<String> adapter = new MappedFileFlexLockAdapter<String>(lockFile());
+    final FlexLockHandle owner = new FlexLockHandle();
+    final FlexLockHandle otherOwner = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue(adapter.tryLock("key", owner, now, now + 100));
+    assertEquals(Collections.singleton("key"),
+        adapter.renew(Collections.singletonMap("key", owner), now, now + 10000));
+    assertEquals("Lease of another owner was renewed", 0,
+        adapter.renew(Collections.singletonMap("key", otherOwner), now, now + 10000).size());
+    assertFalse("Lease was not renewed", adapter.tryLock("key", otherOwner, now + 1000, now + 10000));
+    adapter.close();
+  }
+
+  @Test
+  public void testExistingFileKeepsSlotCount() throws Exception {
+    final File file = lockFile();
+    final MappedFileFlexLockAdapter<String> adapter = new MappedFileFlexLockAdapter<String>(file, 128);
+    final MappedFileFlexLockAdapter<String> other = new MappedFileFlexLockAdapter<String>(file, 4096);
+    assertEquals(128, other.getSlotCount());
+    adapter.close();
+    other.close();
+  }
+
+  @Test
+  public void testClosingLastAdapterForgetsFile() throws Exception {
+    final File file = lockFile();
+    final String path = file.getCanonicalPath();
+    final Field field = MappedFileFlexLockAdapter.class.getDeclaredField("stripesByFile");
+    field.setAccessible(true);
+    final Map<?, ?> stripesByFile = (Map<?, ?>) field.get(null);
+    final MappedFileFlexLockAdapter<String> adapter = new MappedFileFlexLockAdapter<String>(file, 64);
+    final MappedFileFlexLockAdapter<String> other = new MappedFileFlexLockAdapter<String>(file, 64);
+    adapter.close();
+    adapter.close();
+    assertTrue("File was forgotten while still open", stripesByFile.containsKey(path));
+    final FlexLockHandle owner = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue(other.tryLock("key", owner, now, now + 10000));
+    other.unlock("key", owner);
+    other.close();
+    assertFalse("File was not forgotten", stripesByFile.containsKey(path));
+  }
+
+  @Test
+  public void testLockHeldByAnotherProcess() throws Exception {
+    final File file = lockFile();
+    final MappedFileFlexLockAdapter<String> adapter = new MappedFileFlexLockAdapter<String>(file);
+    final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    final Process holder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        MappedFileLockHolder.class.getName(), file.getPath(), "key").redirectErrorStream(true).start();
+    try {
+      final BufferedReader output = new BufferedReader(new InputStreamReader(holder.getInputStream()));
+      assertEquals("locked", output.readLine());
+      final FlexLockHandle owner = new FlexLockHandle();
+      long now = System.currentTimeMillis();
+      assertFalse("Lock held by another process was claimed", adapter.tryLock("key", owner, now, now + 10000));
+      final OutputStream input = holder.getOutputStream();
+      input.write('\n');
+      input.flush();
+      assertEquals("unlocked", output.readLine());
+      now = System.currentTimeMillis();
+      assertTrue("Lock released by another process was not claimed", adapter.tryLock("key", owner, now, now + 10000));
+      assertEquals(0, holder.waitFor());
+    } finally {
+      holder.destroy();
+      adapter.close();
+    }
+  }
+}
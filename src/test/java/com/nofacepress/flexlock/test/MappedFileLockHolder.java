@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+
+import com.nofacepress.flexlock.adapter.MappedFileFlexLockAdapter;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Holds a lock from a separate process until a line is read from stdin.
+ */
+public class MappedFileLockHolder {
+
+  public static void main(final String[] args) throws Exception {
+    final MappedFileFlexLockAdapter<String> adapter = new MappedFileFlexLockAdapter<String>(new File(args[0]));
+    final FlexLockHandle handle = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    System.out.println(adapter.tryLock(args[1], handle, now, now + 60000) ? "locked" : "busy");
+    System.out.flush();
+    new BufferedReader(new InputStreamReader(System.in)).readLine();
+    adapter.unlock(args[1], handle);
+    System.out.println("unlocked");
+    System.out.flush();
+    adapter.close();
+  }
+}
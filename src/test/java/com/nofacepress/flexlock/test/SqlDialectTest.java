@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.nofacepress.flexlock.adapter.DatabaseFlexLockAdapter;
+import com.nofacepress.flexlock.adapter.dialect.GenericSqlDialect;
+import com.nofacepress.flexlock.adapter.dialect.H2SqlDialect;
+import com.nofacepress.flexlock.adapter.dialect.MySqlDialect;
+import com.nofacepress.flexlock.adapter.dialect.PostgreSqlDialect;
+import com.nofacepress.flexlock.adapter.dialect.SqlDialect;
+import com.nofacepress.flexlock.adapter.dialect.SqlDialects;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+@RunWith(Run100.class)
+public class SqlDialectTest {
+
+  public static final String DB_DRIVER = "org.h2.Driver";
+  public static final String DB_TABLE_NAME = "dialect_mutex";
+  public static final String DB_PERMIT_TABLE_NAME = "dialect_permit";
+  public static final String DB_URL = "jdbc:h2:mem:dialect_[MODE];MODE=[MODE];DB_CLOSE_DELAY=-1;INIT=CREATE TABLE IF NOT EXISTS dialect_mutex (mutex_id VARCHAR(128) PRIMARY KEY, expire_time BIGINT DEFAULT 0, owner VARCHAR(36), readers INT DEFAULT 0)\\;CREATE TABLE IF NOT EXISTS dialect_permit (mutex_id VARCHAR(128), slot INT, expire_time BIGINT DEFAULT 0, owner VARCHAR(36), PRIMARY KEY (mutex_id, slot))";
+
+  public static final String[] H2_MODES = { "REGULAR", "MySQL", "PostgreSQL", "MSSQLServer", "Oracle" };
+
+  @Test
+  public void testDetectsH2() throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = adapter("REGULAR");
+    final FlexLockHandle handle = new FlexLockHandle();
+    final long now = System.currentTimeMillis();
+    assertTrue(adapter.tryLock("detect", handle, now, now + 10000));
+    adapter.unlock("detect", handle);
+    assertTrue("H2 was not detected", adapter.getSqlDialect() instanceof H2SqlDialect);
+  }
+
+  @Test
+  public void testDetectsByProductName() {
+    assertTrue(SqlDialects.forDatabase("H2") instanceof H2SqlDialect);
+    assertTrue(SqlDialects.forDatabase("PostgreSQL") instanceof PostgreSqlDialect);
+    assertTrue(SqlDialects.forDatabase("MySQL") instanceof MySqlDialect);
+    assertTrue(SqlDialects.forDatabase("MariaDB") instanceof MySqlDialect);
+    assertSame(SqlDialects.GENERIC, SqlDialects.forDatabase("Unknown"));
+  }
+
+  @Test
+  public void testRegisteredDialectIsDetected() {
+    final SqlDialect custom = new GenericSqlDialect() {
+      @Override
+      public boolean supports(final String databaseProductName) {
+        return "Custom Test Database".equals(databaseProductName);
+      }
+    };
+    SqlDialects.register(custom);
+    assertSame(custom, SqlDialects.forDatabase("Custom Test Database"));
+  }
+
+  @Test
+  public void testH2DialectInEveryMode() throws Exception {
+    for (final String mode : H2_MODES)
+      assertLockCycle(mode, new H2SqlDialect());
+  }
+
+  @Test
+  public void testGenericDialectInEveryMode() throws Exception {
+    for (final String mode : H2_MODES)
+      assertLockCycle(mode, new GenericSqlDialect());
+  }
+
+  @Test
+  public void testMySqlDialect() throws Exception {
+    assertLockCycle("MySQL", new MySqlDialect());
+  }
+
+  private static DatabaseFlexLockAdapter<String> adapter(final String mode) throws Exception {
+    return DatabaseFlexLockAdapter.<String>builder().driver(DB_DRIVER).url(DB_URL.replace("[MODE]", mode))
+        .tableName(DB_TABLE_NAME).readersColumnName("readers").permitTableName(DB_PERMIT_TABLE_NAME).build();
+  }
+
+  private static void assertLockCycle(final String mode, final SqlDialect dialect) throws Exception {
+    final DatabaseFlexLockAdapter<String> adapter = adapter(mode);
+    adapter.setSqlDialect(dialect);
+    final String prefix = dialect.getClass().getSimpleName() + "-" + System.nanoTime() + "-";
+    final FlexLockHandle owner = new FlexLockHandle();
+    final FlexLockHandle other = new FlexLockHandle();
+    final String key = prefix + "one";
+    long now = System.currentTimeMillis();
+
+    adapter.ensureKeyExistsCreatingIfNessessary(key);
+    assertTrue(mode + ": could not get lock", adapter.tryLock(key, owner, now, now + 10000));
+    assertFalse(mode + ": lock was claimed twice", adapter.tryLock(key, other, now, now + 10000));
+    assertEquals(mode + ": wrong holder expiry", now + 10000,
+        adapter.tryLockReportingExpiry(key, other, now, now + 10000).getHolderExpireTime());
+    adapter.unlock(key, other);
+    assertFalse(mode + ": lock was released by another owner", adapter.tryLock(key, other, now, now + 10000));
+    adapter.unlock(key, owner);
+    assertTrue(mode + ": lock was not released", adapter.tryLock(key, other, now, now + 10000));
+    adapter.forceUnlock(key);
+    assertTrue(mode + ": lock was not forced open", adapter.tryLock(key, owner, now, now + 100));
+
+    final Map<String, FlexLockHandle> leases = new LinkedHashMap<String, FlexLockHandle>();
+    leases.put(key, owner);
+    leases.put(prefix + "missing", other);
+    assertEquals(mode + ": wrong renewal", Collections.singleton(key), adapter.renew(leases, now, now + 10000));
+    assertFalse(mode + ": lease was not renewed", adapter.tryLock(key, other, now + 1000, now + 10000));
+    adapter.unlock(key, owner);
+
+    // each key only renews with its own owner, not another lease's
+    adapter.ensureKeysExistCreatingIfNessessary(Arrays.asList(prefix + "x", prefix + "y"));
+    assertTrue(mode + ": could not get lock", adapter.tryLock(prefix + "x", owner, now, now + 100));
+    assertTrue(mode + ": could not get lock", adapter.tryLock(prefix + "y", other, now, now + 100));
+    final Map<String, FlexLockHandle> crossed = new LinkedHashMap<String, FlexLockHandle>();
+    crossed.put(prefix + "x", other);
+    crossed.put(prefix + "y", owner);
+    assertEquals(mode + ": renewed another lease's lock", 0, adapter.renew(crossed, now, now + 10000).size());
+    adapter.unlock(prefix + "x", owner);
+    adapter.unlock(prefix + "y", other);
+
+    final List<String> keys = Arrays.asList(prefix + "a", prefix + "b", prefix + "c");
+    final List<FlexLockHandle> handles = Arrays.asList(owner, owner, owner);
+    adapter.ensureKeysExistCreatingIfNessessary(keys);
+    adapter.ensureKeyExistsCreatingIfNessessary(prefix + "b");
+    assertTrue(mode + ": could not get lock", adapter.tryLock(prefix + "b", other, now, now + 10000));
+    assertFalse(mode + ": locks were not all or nothing", adapter.tryLockAll(keys, handles, now, now + 10000));
+    assertTrue(mode + ": claim was not rolled back", adapter.tryLock(prefix + "a", other, now, now + 10000));
+    adapter.unlock(prefix + "a", other);
+    adapter.unlock(prefix + "b", other);
+    assertTrue(mode + ": could not get locks", adapter.tryLockAll(keys, handles, now, now + 10000));
+    adapter.unlockAll(keys, handles);
+    assertTrue(mode + ": locks were not released", adapter.tryLockAll(keys, handles, now, now + 10000));
+    adapter.unlockAll(keys, handles);
+
+    final String shared = prefix + "shared";
+    adapter.ensureKeyExistsCreatingIfNessessary(shared);
+    assertTrue(mode + ": could not get shared lock", adapter.tryLockShared(shared, now, now + 10000));
+    assertTrue(mode + ": could not share lock", adapter.tryLockShared(shared, now, now + 5000));
+    assertFalse(mode + ": shared lock was claimed", adapter.tryLock(shared, owner, now, now + 10000));
+    adapter.unlockShared(shared, 1, now);
+    assertFalse(mode + ": shared lock was released early", adapter.tryLock(shared, owner, now, now + 10000));
+    adapter.unlockShared(shared, 1, now);
+    assertTrue(mode + ": shared lock was not released", adapter.tryLock(shared, owner, now, now + 10000));
+    assertFalse(mode + ": locked lock was shared", adapter.tryLockShared(shared, now, now + 10000));
+    adapter.unlock(shared, owner);
+
+    final String semaphore = prefix + "permits";
+    final FlexLockHandle third = new FlexLockHandle();
+    assertTrue(mode + ": could not get permit", adapter.tryAcquirePermit(semaphore, owner, 2, now, now + 10000));
+    assertTrue(mode + ": could not get permit", adapter.tryAcquirePermit(semaphore, other, 2, now, now + 10000));
+    assertFalse(mode + ": permit was claimed", adapter.tryAcquirePermit(semaphore, third, 2, now, now + 10000));
+    adapter.releasePermit(semaphore, owner);
+    assertTrue(mode + ": permit was not released", adapter.tryAcquirePermit(semaphore, third, 2, now, now + 10000));
+    adapter.releasePermit(semaphore, other);
+    adapter.releasePermit(semaphore, third);
+  }
+}
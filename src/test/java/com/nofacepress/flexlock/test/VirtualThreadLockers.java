@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018,2020 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.nofacepress.flexlock.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.nofacepress.flexlock.DatabaseFlexLockRegistry;
+import com.nofacepress.flexlock.FlexLockRegistry;
+import com.nofacepress.flexlock.handle.FlexLockHandle;
+
+/**
+ * Contends for a few database locks from many virtual threads in a separate
+ * process, so that the pinned thread trace can be turned on for it alone.
+ * Prints the number of lockers that completed.
+ */
+public class VirtualThreadLockers {
+
+  public static final int LOCKERS = 2000;
+  public static final int CONTENDED_KEYS = 8;
+
+  public static void main(final String[] args) throws Throwable {
+    final FlexLockRegistry<String> registry = new DatabaseFlexLockRegistry<String>(DatabaseFlexLockTest.DB_DRIVER,
+        DatabaseFlexLockTest.DB_URL, DatabaseFlexLockTest.DB_USER, DatabaseFlexLockTest.DB_PASSWORD,
+        DatabaseFlexLockTest.DB_TABLE_NAME);
+    final ThreadFactory factory = virtualThreadFactory();
+    final AtomicInteger[] holders = new AtomicInteger[CONTENDED_KEYS];
+    for (int i = 0; i < holders.length; i++)
+      holders[i] = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < LOCKERS; i++) {
+      final int key = i % CONTENDED_KEYS;
+      final Thread thread = factory.newThread(() -> {
+        try {
+          final FlexLockHandle handle = registry.lock("vt-" + key, 10000);
+          try {
+            if (holders[key].incrementAndGet() != 1)
+              throw new IllegalStateException("Two lockers held vt-" + key);
+            Thread.yield();
+            holders[key].decrementAndGet();
+          } finally {
+            registry.unlock(handle);
+          }
+          completed.incrementAndGet();
+        } catch (final Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (final Thread thread : threads)
+      thread.join();
+
+    if (failure.get() != null)
+      throw failure.get();
+    System.out.println("completed " + completed.get());
+    System.out.flush();
+    System.exit(0);
+  }
+
+  /**
+   * @return a factory for virtual threads, or null if the runtime has none
+   */
+  static ThreadFactory virtualThreadFactory() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch (final ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -11,4 +11,34 @@ CREATE TABLE IF NOT EXISTS `TestLongMutex` (
 	`alt_expires` LONG DEFAULT 0,
 	`alt_owner` VARCHAR(36),
 	PRIMARY KEY (`alt_id`)
+);
+
+CREATE TABLE IF NOT EXISTS `TestNumericOwnerMutex` (
+	`mutex_id` VARCHAR(128) NOT NULL,
+	`expire_time` LONG DEFAULT 0,
+	`owner` BIGINT,
+	PRIMARY KEY (`mutex_id`)
+);
+
+CREATE TABLE IF NOT EXISTS `TestBinaryOwnerMutex` (
+	`mutex_id` VARCHAR(128) NOT NULL,
+	`expire_time` LONG DEFAULT 0,
+	`owner` BINARY(16),
+	PRIMARY KEY (`mutex_id`)
+);
+
+CREATE TABLE IF NOT EXISTS `TestSharedMutex` (
+	`mutex_id` VARCHAR(128) NOT NULL,
+	`expire_time` LONG DEFAULT 0,
+	`owner` VARCHAR(36),
+	`readers` INT DEFAULT 0,
+	PRIMARY KEY (`mutex_id`)
+);
+
+CREATE TABLE IF NOT EXISTS `TestPermit` (
+	`mutex_id` VARCHAR(128) NOT NULL,
+	`slot` INT NOT NULL,
+	`expire_time` LONG DEFAULT 0,
+	`owner` VARCHAR(36),
+	PRIMARY KEY (`mutex_id`, `slot`)
 );
\ No newline at end of file